@@ -26,6 +26,7 @@ package org.kitteh.hyrc;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.yaml.YAMLConfigurationLoader;
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.kitteh.hyrc.endpoint.EndpointManager;
 import org.kitteh.hyrc.endpoint.filter.FilterManager;
 import org.kitteh.hyrc.endpoint.link.LinkManager;
@@ -33,6 +34,12 @@ import org.kitteh.hyrc.exceptions.HyRCInvalidConfigException;
 import org.kitteh.hyrc.exceptions.HyRCUnableToStartException;
 import org.kitteh.hyrc.exceptions.HyRCWillLeakTearsException;
 import org.kitteh.hyrc.irc.BotManager;
+import org.kitteh.hyrc.management.Management;
+import org.kitteh.hyrc.metrics.FlightEvents;
+import org.kitteh.hyrc.metrics.Metrics;
+import org.kitteh.hyrc.metrics.PrometheusExporter;
+import org.kitteh.hyrc.metrics.Tracer;
+import org.kitteh.hyrc.util.AsyncLogger;
 import org.kitteh.hyrc.util.Logger;
 import org.kitteh.hyrc.util.shutdownable.Shutdownable;
 
@@ -41,11 +48,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
 
 /**
  * HyRC's core. Be sure to call {@link #shutdown()} when finished to
@@ -61,12 +70,27 @@ public final class HyRC {
         return HyRC.logger;
     }
 
+    private final File dataFolder;
     private BotManager botManager;
     private EndpointManager endpointManager;
     private FilterManager filterManager;
     private LinkManager linkManager;
+    private Metrics metrics = Metrics.DISABLED;
+    private Tracer tracer = Tracer.DISABLED;
+    private FlightEvents flightEvents = FlightEvents.NOOP;
+    private int queueOverflowThreshold = Integer.MAX_VALUE;
+    private @Nullable AsyncLogger asyncLogger;
     private final Set<Shutdownable> shutdownables = new CopyOnWriteArraySet<>();
 
+    /**
+     * Gets the folder in which config.yml and any other files are stored.
+     *
+     * @return the data folder
+     */
+    public @NonNull File getDataFolder() {
+        return this.dataFolder;
+    }
+
     public @NonNull BotManager getBotManager() {
         return this.botManager;
     }
@@ -83,6 +107,46 @@ public final class HyRC {
         return this.linkManager;
     }
 
+    /**
+     * Gets the metrics registry, handing out no-op metrics unless enabled
+     * under 'metrics' in config.
+     *
+     * @return metrics
+     */
+    public @NonNull Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Gets the message tracer, tracing nothing unless a 'sample-rate' is
+     * set under 'tracing' in config.
+     *
+     * @return tracer
+     */
+    public @NonNull Tracer getTracer() {
+        return this.tracer;
+    }
+
+    /**
+     * Gets the Flight Recorder events, going nowhere if Flight Recorder is
+     * unavailable or disabled under 'flight-recorder' in config.
+     *
+     * @return events
+     */
+    public @NonNull FlightEvents getFlightEvents() {
+        return this.flightEvents;
+    }
+
+    /**
+     * Gets the delivery queue depth past which a queue overflow event is
+     * emitted.
+     *
+     * @return queue depth
+     */
+    public int getQueueOverflowThreshold() {
+        return this.queueOverflowThreshold;
+    }
+
     /**
      * Starts tracking a feature which can be shut down.
      *
@@ -103,6 +167,7 @@ public final class HyRC {
      * @throws HyRCUnableToStartException if startup fails
      */
     public HyRC(@NonNull Logger logger, @NonNull File dataFolder) throws HyRCUnableToStartException {
+        this.dataFolder = dataFolder;
         try {
             HyRC.logger = logger;
 
@@ -119,6 +184,13 @@ public final class HyRC {
                 throw new HyRCInvalidConfigException("Config doesn't appear valid. Would advise starting from scratch.");
             }
 
+            ConfigurationNode logging = root.getNode("logging");
+            if (logging.getNode("async").getBoolean(true)) {
+                this.asyncLogger = new AsyncLogger(logger, Math.max(16, logging.getNode("queue-size").getInt(4096)), Math.max(0, logging.getNode("repeat-window-millis").getLong(60000)));
+                this.asyncLogger.start();
+                HyRC.logger = this.asyncLogger;
+            }
+
             ConfigurationNode repeatableFilters = root.getNode("repeatable-filters");
 
             ConfigurationNode botsNode = root.getNode("bots");
@@ -139,11 +211,35 @@ public final class HyRC {
                 throw new HyRCInvalidConfigException("No links defined! How can your endpoints be useful?");
             }
 
+            ConfigurationNode prometheus = root.getNode("metrics", "prometheus");
+            boolean exportMetrics = prometheus.getNode("enabled").getBoolean(false);
+            this.metrics = new Metrics(exportMetrics || root.getNode("metrics", "enabled").getBoolean(false));
+            ConfigurationNode tracing = root.getNode("tracing");
+            double sampleRate = Math.min(1, tracing.getNode("sample-rate").getDouble(0));
+            if (sampleRate > 0) {
+                this.tracer = new Tracer(sampleRate, Math.max(1, tracing.getNode("ring-size").getInt(256)));
+            }
+            ConfigurationNode flightRecorder = root.getNode("flight-recorder");
+            if (flightRecorder.getNode("enabled").getBoolean(true)) {
+                this.flightEvents = FlightEvents.create(TimeUnit.MILLISECONDS.toNanos(flightRecorder.getNode("irc-send-threshold-millis").getLong(1000)));
+                this.queueOverflowThreshold = Math.max(1, flightRecorder.getNode("queue-threshold").getInt(1000));
+            }
             this.filterManager = new FilterManager(this, repeatableFilters);
-            this.botManager = new BotManager(this, bots);
-            this.endpointManager = new EndpointManager(this, endpoints);
-            this.linkManager = new LinkManager(this, links);
+            this.botManager = new BotManager(this, bots, root.getNode("deduplication"));
+            this.endpointManager = new EndpointManager(this, endpoints, root.getNode("loop-protection"), root.getNode("journal"), root.getNode("heap-budget"));
+            this.linkManager = new LinkManager(this, links, root.getNode("filter-quarantine"));
+            this.endpointManager.startDelivery();
+            if (exportMetrics) {
+                this.startPrometheus(prometheus);
+            }
+            if (root.getNode("jmx", "enabled").getBoolean(true)) {
+                this.trackShutdownable(new Management(this));
+            }
         } catch (Exception e) {
+            if (this.asyncLogger != null) {
+                this.asyncLogger.shutdown();
+                HyRC.logger = logger;
+            }
             throw new HyRCUnableToStartException("Could not start HyRC!", e);
         }
     }
@@ -156,10 +252,25 @@ public final class HyRC {
      */
     public void shutdown() {
         this.shutdownables.forEach(Shutdownable::shutdown);
+        if (this.asyncLogger != null) {
+            this.asyncLogger.shutdown();
+        }
         // And lastly...
         HyRC.logger = null;
     }
 
+    private void startPrometheus(@NonNull ConfigurationNode config) {
+        String host = config.getNode("host").getString("127.0.0.1");
+        int port = config.getNode("port").getInt(9464);
+        try {
+            PrometheusExporter exporter = new PrometheusExporter(this.metrics, new InetSocketAddress(host, port));
+            exporter.start();
+            this.trackShutdownable(exporter::close);
+        } catch (IOException e) {
+            log().severe("Could not start the Prometheus exporter on " + host + ':' + port, e);
+        }
+    }
+
     private void saveDefaultConfig(@NonNull File dataFolder) {
         if (!dataFolder.exists()) {
             dataFolder.mkdirs();
@@ -0,0 +1,271 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks delivery outcomes for an endpoint, skipping it while failing.
+ * <p/>
+ * Closed, the outcomes of the last window of calls are kept. Once enough
+ * of them failed or were slow, the breaker opens and deliveries are
+ * skipped until a wait passes. Half-open, a few trial deliveries are let
+ * through: all succeeding closes the breaker, any failing opens it again.
+ */
+final class CircuitBreaker {
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int windowCalls;
+    private final int minimumCalls;
+    private final double failureRate;
+    private final long slowCallNanos;
+    private final double slowCallRate;
+    private final long openNanos;
+    private final int halfOpenCalls;
+    private final boolean buffer;
+    private final long timeoutMillis;
+
+    private final byte[] outcomes;
+    private int position;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+    private volatile State state = State.CLOSED;
+    private volatile long openUntil;
+    private int trials;
+    private int trialSuccesses;
+    private String openReason = "";
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    CircuitBreaker(int windowCalls, int minimumCalls, double failureRate, long slowCallNanos, double slowCallRate, long openMillis, int halfOpenCalls, boolean buffer, long timeoutMillis) {
+        this.windowCalls = windowCalls;
+        this.minimumCalls = Math.min(minimumCalls, windowCalls);
+        this.failureRate = failureRate;
+        this.slowCallNanos = slowCallNanos;
+        this.slowCallRate = slowCallRate;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenCalls = halfOpenCalls;
+        this.buffer = buffer;
+        this.timeoutMillis = timeoutMillis;
+        this.outcomes = new byte[windowCalls];
+    }
+
+    /**
+     * Loads a breaker from config.
+     *
+     * @param endpointName name of the endpoint, for warnings
+     * @param config the 'circuit-breaker' section of the endpoint
+     * @param hasBuffer true if the endpoint has an offline buffer
+     * @return breaker, or null if not enabled
+     */
+    static @Nullable CircuitBreaker load(@NonNull String endpointName, @NonNull ConfigurationNode config, boolean hasBuffer) {
+        if (!config.getNode("enabled").getBoolean(false)) {
+            return null;
+        }
+        String fallback = config.getNode("fallback").getString("buffer");
+        if (!fallback.equals("buffer") && !fallback.equals("drop")) {
+            HyRC.log().warning("Unknown circuit-breaker fallback '" + fallback + "' for endpoint " + endpointName + ", using buffer");
+        }
+        if (!fallback.equals("drop") && !hasBuffer) {
+            HyRC.log().warning("Endpoint " + endpointName + " has circuit-breaker fallback 'buffer' without an enabled 'offline-buffer', so skipped messages will be dropped");
+        }
+        return new CircuitBreaker(
+                Math.max(1, config.getNode("window-calls").getInt(20)),
+                Math.max(1, config.getNode("minimum-calls").getInt(10)),
+                rate(config.getNode("failure-rate").getDouble(0.5)),
+                TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getNode("slow-call-millis").getLong(1000))),
+                rate(config.getNode("slow-call-rate").getDouble(0.5)),
+                Math.max(1, config.getNode("open-millis").getLong(30000)),
+                Math.max(1, config.getNode("half-open-calls").getInt(3)),
+                !fallback.equals("drop"),
+                Math.max(0, config.getNode("timeout-millis").getLong(0)));
+    }
+
+    private static double rate(double rate) {
+        return Math.min(1, Math.max(0.01, rate));
+    }
+
+    /**
+     * Gets if skipped messages go to the offline buffer, rather than being
+     * dropped.
+     *
+     * @return true if buffering
+     */
+    boolean isBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * Gets the time a delivery may take before it counts as failed.
+     *
+     * @return timeout, or zero for none
+     */
+    long getTimeoutMillis() {
+        return this.timeoutMillis;
+    }
+
+    /**
+     * Gets the current state, without moving from open to half-open.
+     *
+     * @return state
+     */
+    @NonNull State getState() {
+        return this.state;
+    }
+
+    /**
+     * Gets if a delivery would currently be let through, without claiming
+     * a trial.
+     *
+     * @return true if a delivery may be attempted
+     */
+    boolean allowsDelivery() {
+        State state = this.state;
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            return System.nanoTime() - this.openUntil >= 0;
+        }
+        synchronized (this) {
+            return this.trials < this.halfOpenCalls;
+        }
+    }
+
+    /**
+     * Claims permission for a delivery, whose outcome must then be
+     * recorded.
+     *
+     * @return true if the delivery may be attempted
+     */
+    boolean tryAcquire() {
+        State state = this.state;
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && System.nanoTime() - this.openUntil < 0) {
+            return false;
+        }
+        synchronized (this) {
+            if (this.state == State.OPEN) {
+                if (System.nanoTime() - this.openUntil < 0) {
+                    return false;
+                }
+                this.state = State.HALF_OPEN;
+                this.trials = 0;
+                this.trialSuccesses = 0;
+            }
+            if (this.state == State.CLOSED) {
+                return true;
+            }
+            if (this.trials < this.halfOpenCalls) {
+                this.trials++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records the outcome of a delivery.
+     *
+     * @param nanos time taken
+     * @param failed true if it threw or timed out
+     * @return the new state if this outcome changed it, else null
+     */
+    synchronized @Nullable State record(long nanos, boolean failed) {
+        boolean slow = nanos >= this.slowCallNanos;
+        if (this.state == State.HALF_OPEN) {
+            if (failed || slow) {
+                this.openReason = "a trial delivery " + (failed ? "failed" : "was slow");
+                this.open();
+                return State.OPEN;
+            }
+            if (++this.trialSuccesses >= this.halfOpenCalls) {
+                this.state = State.CLOSED;
+                return State.CLOSED;
+            }
+            return null;
+        }
+        if (this.state == State.OPEN) {
+            // A late outcome from before opening
+            return null;
+        }
+        if (this.calls == this.windowCalls) {
+            byte old = this.outcomes[this.position];
+            if (old == FAILURE) {
+                this.failures--;
+            } else if (old == SLOW) {
+                this.slowCalls--;
+            }
+        } else {
+            this.calls++;
+        }
+        byte outcome = failed ? FAILURE : (slow ? SLOW : SUCCESS);
+        this.outcomes[this.position] = outcome;
+        this.position = (this.position + 1) % this.windowCalls;
+        if (outcome == FAILURE) {
+            this.failures++;
+        } else if (outcome == SLOW) {
+            this.slowCalls++;
+        }
+        if (this.calls >= this.minimumCalls &&
+                (this.failures >= this.failureRate * this.calls || this.slowCalls >= this.slowCallRate * this.calls)) {
+            this.openReason = this.failures + " failed and " + this.slowCalls + " slow of the last " + this.calls + " deliveries";
+            this.open();
+            return State.OPEN;
+        }
+        return null;
+    }
+
+    /**
+     * Describes why the breaker last opened, for logging.
+     *
+     * @return description
+     */
+    synchronized @NonNull String getOpenReason() {
+        return this.openReason;
+    }
+
+    private void open() {
+        this.openUntil = System.nanoTime() + this.openNanos;
+        this.state = State.OPEN;
+        this.calls = 0;
+        this.position = 0;
+        this.failures = 0;
+        this.slowCalls = 0;
+    }
+}
@@ -25,10 +25,25 @@ package org.kitteh.hyrc.endpoint;
 
 import ninja.leaping.configurate.ConfigurationNode;
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.kitteh.hyrc.HyRC;
 import org.kitteh.hyrc.endpoint.link.Link;
 import org.kitteh.hyrc.exceptions.HyRCInvalidConfigException;
+import org.kitteh.hyrc.metrics.Counter;
+import org.kitteh.hyrc.metrics.Histogram;
+import org.kitteh.hyrc.metrics.Metrics;
+import org.kitteh.hyrc.metrics.Trace;
 import org.kitteh.hyrc.util.loadable.Loadable;
+import org.kitteh.hyrc.util.shutdownable.WackyWavingInterruptableArmFlailingThreadMan;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Endpoints are the origin and destination of messages tracked by HyRC.
@@ -48,6 +63,15 @@ public abstract class Endpoint extends Loadable {
     public static final String SENDER_NAME = "SENDER_NAME";
 
     private String name;
+    private @Nullable OfflineBuffer offlineBuffer;
+    private @Nullable Scrollback scrollback;
+    private @Nullable CircuitBreaker circuitBreaker;
+    private @Nullable ThreadPoolExecutor deliveryExecutor;
+    private Counter sent = Counter.NOOP;
+    private Counter received = Counter.NOOP;
+    private Histogram receiveTime = Histogram.NOOP;
+    private Counter diverted = Counter.NOOP;
+    private Counter timeouts = Counter.NOOP;
 
     /**
      * Gets the name of this Endpoint.
@@ -58,6 +82,69 @@ public abstract class Endpoint extends Loadable {
         return this.name;
     }
 
+    /**
+     * Gets if this Endpoint can currently deliver messages.
+     * <p/>
+     * If an 'offline-buffer' is configured, messages received while
+     * unavailable are held and replayed once available again.
+     *
+     * @return true if available, which is the default
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Gets if this Endpoint sends messages it receives back into HyRC,
+     * such as by way of another HyRC instance, so a cycle of links
+     * through it can loop.
+     *
+     * @return true if relaying, false by default
+     */
+    public boolean isRelaying() {
+        return false;
+    }
+
+    /**
+     * Gets the number of messages held for this Endpoint while it is
+     * unavailable.
+     *
+     * @return held message count, zero if not buffering
+     */
+    public final int getBufferedCount() {
+        OfflineBuffer buffer = this.offlineBuffer;
+        return (buffer == null) ? 0 : buffer.size();
+    }
+
+    /**
+     * Gets if this Endpoint is available and not skipped by an open
+     * 'circuit-breaker'.
+     *
+     * @return true if deliveries may be attempted
+     */
+    final boolean canDeliver() {
+        CircuitBreaker breaker = this.circuitBreaker;
+        return this.isAvailable() && (breaker == null || breaker.allowsDelivery());
+    }
+
+    /**
+     * Gets the recent history of this Endpoint.
+     *
+     * @return scrollback, or null if not kept
+     */
+    @Nullable Scrollback getScrollback() {
+        return this.scrollback;
+    }
+
+    /**
+     * Gets the count of messages sent from this Endpoint.
+     *
+     * @return counter
+     */
+    @NonNull Counter getSentCounter() {
+        return this.sent;
+    }
+
     /**
      * Optional method to load any additional information for this Endpoint.
      * <p/>
@@ -75,10 +162,43 @@ public abstract class Endpoint extends Loadable {
     @Override
     protected final void load(@NonNull HyRC plugin, @NonNull ConfigurationNode data) throws HyRCInvalidConfigException {
         this.name = data.getNode("name").getString();
+        Metrics metrics = plugin.getMetrics();
+        this.sent = metrics.counter("hyrc_endpoint_sent_total", "endpoint", this.name);
+        this.received = metrics.counter("hyrc_endpoint_received_total", "endpoint", this.name);
+        this.receiveTime = metrics.histogram("hyrc_endpoint_receive_nanoseconds", "endpoint", this.name);
         final ConfigurationNode extra = data.getNode("extra");
         if (!extra.isVirtual()) {
             this.loadExtra(extra);
         }
+        final ConfigurationNode buffer = data.getNode("offline-buffer");
+        this.circuitBreaker = CircuitBreaker.load(this.name, data.getNode("circuit-breaker"), buffer.getNode("enabled").getBoolean(false));
+        if (this.circuitBreaker != null) {
+            CircuitBreaker breaker = this.circuitBreaker;
+            this.diverted = metrics.counter("hyrc_endpoint_diverted_total", "endpoint", this.name);
+            this.timeouts = metrics.counter("hyrc_endpoint_delivery_timeouts_total", "endpoint", this.name);
+            metrics.gauge("hyrc_endpoint_circuit_state", () -> breaker.getState().ordinal(), "endpoint", this.name);
+            if (breaker.getTimeoutMillis() > 0) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1024), runnable -> {
+                    Thread thread = new Thread(runnable, "HyRC delivery - " + this.name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                this.deliveryExecutor = executor;
+                plugin.trackShutdownable(executor::shutdownNow);
+            }
+        }
+        if (buffer.getNode("enabled").getBoolean(false)) {
+            File spillFile = new File(new File(plugin.getDataFolder(), "buffers"), this.name + ".spill");
+            this.offlineBuffer = new OfflineBuffer(this, buffer, spillFile, endpointName -> plugin.getEndpointManager().getEndpoint(endpointName));
+            plugin.trackShutdownable(new WackyWavingInterruptableArmFlailingThreadMan(this.offlineBuffer));
+            this.offlineBuffer.start();
+        }
+        final ConfigurationNode scrollback = data.getNode("scrollback");
+        if (scrollback.getNode("enabled").getBoolean(false)) {
+            int messages = Math.max(1, scrollback.getNode("messages").getInt(10000));
+            int bytes = Math.max(1024, scrollback.getNode("bytes").getInt(2 << 20));
+            this.scrollback = new Scrollback(this, messages, bytes, endpointName -> plugin.getEndpointManager().getEndpoint(endpointName));
+        }
     }
 
     /**
@@ -107,7 +227,10 @@ public abstract class Endpoint extends Loadable {
      * <ol>
      * <li>Pre-process</li>
      * <li>Run through filters, stop if rejected</li>
-     * <li>Handle as received</li>
+     * <li>Skip if the circuit breaker is open, buffering or dropping</li>
+     * <li>Hold if buffering while unavailable</li>
+     * <li>Handle as received, buffering or dropping if skipped, rejected
+     * or timed out</li>
      * </ol>
      *
      * @param message the message sent by the source
@@ -115,6 +238,10 @@ public abstract class Endpoint extends Loadable {
      */
     final void receiveMessage(@NonNull Message message, @NonNull Link link) {
         TargetedMessage targetedMessage = new TargetedMessage(this, message);
+        Trace trace = message.getTrace();
+        if (trace != null) {
+            trace.stamp("route " + this.name);
+        }
         try {
             this.preProcessReceivedMessage(targetedMessage);
         } catch (Throwable thrown) {
@@ -124,6 +251,127 @@ public abstract class Endpoint extends Loadable {
         if (targetedMessage.isRejected()) {
             return;
         }
-        this.receiveMessage(targetedMessage);
+        Scrollback scrollback = this.scrollback;
+        if (scrollback != null) {
+            scrollback.addReceived(targetedMessage);
+        }
+        OfflineBuffer buffer = this.offlineBuffer;
+        CircuitBreaker breaker = this.circuitBreaker;
+        if (breaker != null && !breaker.allowsDelivery()) {
+            this.diverted.increment();
+            this.fallback(targetedMessage);
+            return;
+        }
+        if (buffer != null && buffer.offer(targetedMessage)) {
+            return;
+        }
+        if (!this.deliver(targetedMessage, trace)) {
+            this.fallback(targetedMessage);
+        }
+    }
+
+    /**
+     * Buffers or drops a message the circuit breaker kept from delivery.
+     *
+     * @param message message
+     */
+    private void fallback(@NonNull TargetedMessage message) {
+        OfflineBuffer buffer = this.offlineBuffer;
+        CircuitBreaker breaker = this.circuitBreaker;
+        if (breaker != null && breaker.isBuffer() && buffer != null) {
+            buffer.hold(message);
+        }
+    }
+
+    /**
+     * Delivers a message held by the offline buffer.
+     *
+     * @param message message to deliver
+     * @return false if skipped by the circuit breaker, or rejected or
+     * timed out by the delivery thread
+     */
+    final boolean replay(@NonNull TargetedMessage message) {
+        return this.deliver(message, null);
+    }
+
+    private boolean deliver(@NonNull TargetedMessage message, @Nullable Trace trace) {
+        CircuitBreaker breaker = this.circuitBreaker;
+        if (breaker != null && !breaker.tryAcquire()) {
+            this.diverted.increment();
+            return false;
+        }
+        this.received.increment();
+        if (trace != null) {
+            trace.stamp("deliver " + this.name);
+        }
+        if (breaker == null) {
+            if (this.receiveTime.isEnabled()) {
+                long start = System.nanoTime();
+                this.receiveMessage(message);
+                this.receiveTime.recordSince(start);
+            } else {
+                this.receiveMessage(message);
+            }
+        } else {
+            long start = System.nanoTime();
+            Throwable failure = this.attemptDelivery(message, breaker.getTimeoutMillis());
+            boolean undelivered = failure instanceof TimeoutException || failure instanceof RejectedExecutionException;
+            long elapsed = System.nanoTime() - start;
+            this.receiveTime.record(elapsed);
+            CircuitBreaker.State changed = breaker.record(elapsed, failure != null);
+            if (changed == CircuitBreaker.State.OPEN) {
+                String warning = "Endpoint " + this.name + " opened its circuit breaker after " + breaker.getOpenReason() + ", " + (breaker.isBuffer() ? "buffering" : "dropping") + " messages";
+                if (failure == null) {
+                    HyRC.log().warning(warning);
+                } else {
+                    HyRC.log().warning(warning, failure);
+                }
+            } else if (changed == CircuitBreaker.State.CLOSED) {
+                HyRC.log().info("Endpoint " + this.name + " closed its circuit breaker");
+            } else if (failure != null) {
+                HyRC.log().warning(() -> "Unable to deliver a message to " + this.name, failure);
+            }
+            if (undelivered) {
+                this.diverted.increment();
+                return false;
+            }
+        }
+        if (trace != null) {
+            trace.stamp("delivered " + this.name);
+        }
+        return true;
+    }
+
+    private @Nullable Throwable attemptDelivery(@NonNull TargetedMessage message, long timeoutMillis) {
+        ThreadPoolExecutor executor = this.deliveryExecutor;
+        if (executor == null || timeoutMillis == 0) {
+            try {
+                this.receiveMessage(message);
+                return null;
+            } catch (Throwable thrown) {
+                return thrown;
+            }
+        }
+        Future<?> future;
+        try {
+            future = executor.submit(() -> this.receiveMessage(message));
+        } catch (RejectedExecutionException e) {
+            return e;
+        }
+        try {
+            future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return null;
+        } catch (TimeoutException e) {
+            // Interrupt the stuck delivery so the next one isn't queued behind it
+            future.cancel(true);
+            this.timeouts.increment();
+            return e;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return e;
+        }
     }
 }
@@ -25,13 +25,25 @@ package org.kitteh.hyrc.endpoint;
 
 import ninja.leaping.configurate.ConfigurationNode;
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.defaults.ArchiveEndpoint;
+import org.kitteh.hyrc.endpoint.defaults.BridgeEndpoint;
+import org.kitteh.hyrc.endpoint.defaults.HttpEndpoint;
 import org.kitteh.hyrc.endpoint.defaults.IRCEndpoint;
+import org.kitteh.hyrc.endpoint.defaults.LineEndpoint;
+import org.kitteh.hyrc.endpoint.defaults.TailEndpoint;
 import org.kitteh.hyrc.endpoint.link.Link;
+import org.kitteh.hyrc.metrics.Counter;
+import org.kitteh.hyrc.metrics.Tracer;
 import org.kitteh.hyrc.exceptions.HyRCInvalidConfigException;
 import org.kitteh.hyrc.util.loadable.LoadableTypeManager;
 import org.kitteh.irc.client.library.util.Pair;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -44,29 +56,303 @@ import java.util.concurrent.ConcurrentHashMap;
 public final class EndpointManager extends LoadableTypeManager<Endpoint> {
     private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
     private final MessageDistributor messageDistributor;
+    private final int hopLimit;
+    private final Counter looped;
+    private final Tracer tracer;
+    private final MessageJournal journal;
+    private final HeapBudget heapBudget;
+    private final Object queueLock = new Object();
 
     /**
      * Initialized by {@link HyRC} main.
      *
      * @param plugin the HyRC instance
      * @param endpoints a list of endpoint data to load
+     * @param loopProtection loop protection settings
+     * @param journal journal settings
+     * @param heapBudget heap budget settings
      */
-    public EndpointManager(@NonNull HyRC plugin, @NonNull List<? extends ConfigurationNode> endpoints) {
+    public EndpointManager(@NonNull HyRC plugin, @NonNull List<? extends ConfigurationNode> endpoints, @NonNull ConfigurationNode loopProtection, @NonNull ConfigurationNode journal, @NonNull ConfigurationNode heapBudget) {
         super(plugin, Endpoint.class);
-        this.messageDistributor = new MessageDistributor(this, plugin);
+        this.hopLimit = loopProtection.getNode("hop-limit").getInt(4);
+        this.looped = plugin.getMetrics().counter("hyrc_messages_looped_total");
+        this.tracer = plugin.getTracer();
+        plugin.getMetrics().gauge("hyrc_queue_depth", this::getQueuedCount);
+        this.heapBudget = new HeapBudget(heapBudget, new File(new File(plugin.getDataFolder(), "buffers"), "queue.spill"), this::getEndpoint, this::unreadable, plugin.getMetrics());
+        this.messageDistributor = new MessageDistributor(this, this.heapBudget, plugin);
+        plugin.trackShutdownable(this.heapBudget::close);
         // We register ours first.
         this.registerType(IRCEndpoint.class);
+        this.registerType(ArchiveEndpoint.class);
+        this.registerType(BridgeEndpoint.class);
+        this.registerType(LineEndpoint.class);
+        this.registerType(HttpEndpoint.class);
+        this.registerType(TailEndpoint.class);
 
         this.loadList(endpoints);
+
+        this.journal = this.openJournal(journal);
+    }
+
+    /**
+     * Starts delivering queued messages. Called by {@link HyRC} main once
+     * links are loaded.
+     */
+    public void startDelivery() {
+        this.messageDistributor.start();
     }
 
     /**
      * Queues a message for delivery.
+     * <p/>
+     * Relayed messages which have exceeded the hop limit, or which have
+     * come back around to the HyRC instance they entered, are dropped.
+     * Messages past the heap budget are dropped, spilled or wait for room
+     * as configured.
      *
      * @param message message to be sent
      */
     public void sendMessage(@NonNull Message message) {
-        this.messageDistributor.addMessage(message);
+        if (!this.admit(message)) {
+            return;
+        }
+        HeapBudget.Admission admission = this.heapBudget.reserve(message);
+        if (admission == HeapBudget.Admission.DROP) {
+            return;
+        }
+        synchronized (this.queueLock) {
+            this.enqueue(message, admission);
+        }
+    }
+
+    /**
+     * Queues several messages for delivery, in order, as if sent through
+     * {@link #sendMessage(Message)} one at a time but without other
+     * messages interleaved.
+     *
+     * @param messages messages to be sent
+     * @return the number of messages queued, the rest having been dropped
+     */
+    public int sendMessages(@NonNull Collection<Message> messages) {
+        Message[] admitted = new Message[messages.size()];
+        HeapBudget.Admission[] admissions = new HeapBudget.Admission[admitted.length];
+        int count = 0;
+        // Reserved before taking the queue lock, as reserving may wait
+        for (Message message : messages) {
+            if (this.admit(message)) {
+                HeapBudget.Admission admission = this.heapBudget.reserve(message);
+                if (admission != HeapBudget.Admission.DROP) {
+                    admitted[count] = message;
+                    admissions[count++] = admission;
+                }
+            }
+        }
+        synchronized (this.queueLock) {
+            for (int i = 0; i < count; i++) {
+                this.enqueue(admitted[i], admissions[i]);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Journals and queues or spills a message. Called holding the queue
+     * lock, so the journal, queue and spill file agree on order.
+     *
+     * @param message message
+     * @param admission result of reserving room for the message
+     */
+    private void enqueue(@NonNull Message message, HeapBudget.@NonNull Admission admission) {
+        admission = this.heapBudget.order(message, admission);
+        if (this.journal != null) {
+            this.journal.append(message);
+        }
+        if (admission == HeapBudget.Admission.SPILL) {
+            this.messageDistributor.spillMessage(message);
+        } else {
+            this.messageDistributor.addMessage(message);
+        }
+    }
+
+    /**
+     * Reads back the oldest spilled message, holding the queue lock so no
+     * message is spilled meanwhile.
+     *
+     * @return message, or null if none spilled or it could not be read,
+     * in which case it has been accounted and committed already
+     */
+    @Nullable Message unspill() {
+        synchronized (this.queueLock) {
+            return this.heapBudget.unspill();
+        }
+    }
+
+    private boolean admit(@NonNull Message message) {
+        if (message.getHops() > 0 && (message.getHops() > this.hopLimit || message.getOriginInstance().equals(Message.getInstanceId()))) {
+            this.looped.increment();
+            return false;
+        }
+        message.getSource().getSentCounter().increment();
+        if (this.tracer.isSampling()) {
+            message.setTrace(this.tracer.start(message.getSource().getName()));
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of messages queued for delivery.
+     *
+     * @return queued message count
+     */
+    public int getQueuedCount() {
+        return this.messageDistributor.getQueued();
+    }
+
+    /**
+     * Gets the heap budget for queued messages.
+     *
+     * @return bytes, or zero if not limited
+     */
+    public long getHeapBudgetBytes() {
+        return this.heapBudget.getMaxBytes();
+    }
+
+    /**
+     * Gets the estimated heap retained by messages queued or being
+     * delivered.
+     *
+     * @return bytes
+     */
+    public long getHeapUsedBytes() {
+        return this.heapBudget.getUsedBytes();
+    }
+
+    /**
+     * Gets the most heap retained at once by messages queued or being
+     * delivered since startup.
+     *
+     * @return bytes
+     */
+    public long getHeapHighWaterBytes() {
+        return this.heapBudget.getHighWaterBytes();
+    }
+
+    /**
+     * Gets the number of messages delivered since startup.
+     *
+     * @return delivered message count
+     */
+    public long getDispatchedCount() {
+        return this.messageDistributor.getDispatched();
+    }
+
+    /**
+     * Gets the number of messages delivered per second over the last
+     * minute.
+     *
+     * @return messages per second
+     */
+    public double getDispatchRate() {
+        return this.messageDistributor.getDispatchRate();
+    }
+
+    /**
+     * Discards all messages queued for delivery. Discarded messages are
+     * also dropped from the journal.
+     *
+     * @return number of discarded messages
+     */
+    public int drainQueue() {
+        int drained = this.messageDistributor.drain();
+        if (drained > 0) {
+            HyRC.log().warning(String.format("Discarded %d queued messages", drained));
+        }
+        return drained;
+    }
+
+    /**
+     * Gets an Endpoint by name.
+     *
+     * @param name endpoint name
+     * @return the named endpoint or null if no such endpoint exists
+     */
+    public @Nullable Endpoint getEndpoint(@NonNull String name) {
+        return this.endpoints.get(name);
+    }
+
+    /**
+     * Gets the most recent messages sent from or received by an Endpoint,
+     * if it keeps scrollback.
+     *
+     * @param name endpoint name
+     * @param count maximum number of messages
+     * @return messages, oldest first, empty if none are kept
+     */
+    public @NonNull List<Scrollback.Entry> getScrollback(@NonNull String name, int count) {
+        Scrollback scrollback = this.getScrollback(name);
+        return (scrollback == null) ? Collections.emptyList() : scrollback.getLast(count);
+    }
+
+    /**
+     * Gets the messages sent from or received by an Endpoint within a time
+     * range, if it keeps scrollback.
+     *
+     * @param name endpoint name
+     * @param from start of range, inclusive, in milliseconds since the epoch
+     * @param to end of range, exclusive, in milliseconds since the epoch
+     * @return messages, oldest first, empty if none are kept
+     */
+    public @NonNull List<Scrollback.Entry> getScrollback(@NonNull String name, long from, long to) {
+        Scrollback scrollback = this.getScrollback(name);
+        return (scrollback == null) ? Collections.emptyList() : scrollback.getRange(from, to);
+    }
+
+    private @Nullable Scrollback getScrollback(@NonNull String name) {
+        Endpoint endpoint = this.endpoints.get(name);
+        return (endpoint == null) ? null : endpoint.getScrollback();
+    }
+
+    /**
+     * Called by the distributor after each message is delivered, or
+     * discarded.
+     *
+     * @param message message
+     */
+    void delivered(@NonNull Message message) {
+        this.commit(message.getJournalPosition());
+    }
+
+    private void unreadable(long journalPosition) {
+        this.messageDistributor.unreadable();
+        this.commit(journalPosition);
+    }
+
+    private void commit(long journalPosition) {
+        if (this.journal != null) {
+            this.journal.commit(journalPosition);
+        }
+    }
+
+    private @Nullable MessageJournal openJournal(@NonNull ConfigurationNode config) {
+        if (!config.getNode("enabled").getBoolean()) {
+            return null;
+        }
+        File directory = new File(this.getHyRC().getDataFolder(), config.getNode("directory").getString("journal"));
+        int segmentSize = Math.max(1 << 20, config.getNode("segment-size").getInt(16 << 20));
+        try {
+            MessageJournal journal = new MessageJournal(directory, segmentSize);
+            int replayed = journal.replay(this::getEndpoint, message -> {
+                this.heapBudget.force(message);
+                this.messageDistributor.addMessage(message);
+            });
+            if (replayed > 0) {
+                HyRC.log().info(String.format("Replaying %d undelivered messages from the journal", replayed));
+            }
+            return journal;
+        } catch (IOException e) {
+            HyRC.log().severe("Could not open message journal, continuing without", e);
+            return null;
+        }
     }
 
     /**
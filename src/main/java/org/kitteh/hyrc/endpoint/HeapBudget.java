@@ -0,0 +1,435 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.metrics.Counter;
+import org.kitteh.hyrc.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/**
+ * Accounts the estimated heap retained by messages queued or being
+ * distributed, against a budget.
+ * <p/>
+ * Messages past the budget are dropped, spilled to a file to be read back
+ * once the queue empties, or make their sender wait for room up to a
+ * limit, then dropped. Once anything is spilled, every following message
+ * is spilled too until the file is read back, so order is kept. The
+ * choice between queueing and spilling, the spilling itself and reading
+ * back are all done holding the dispatcher's queue lock. A single message
+ * larger than the whole budget is let through while nothing else is
+ * queued.
+ * <p/>
+ * With no budget set, usage is tracked but never limited.
+ */
+final class HeapBudget {
+    enum Admission {
+        QUEUE,
+        SPILL,
+        DROP
+    }
+
+    enum Overflow {
+        DROP,
+        SPILL,
+        BLOCK
+    }
+
+    private final long maxBytes;
+    private final Overflow overflow;
+    private final long blockNanos;
+    private final long spillLimit;
+    private final File spillFile;
+    private final Function<String, Endpoint> endpoints;
+    private final LongConsumer unreadable;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong highWater = new AtomicLong();
+    private final Counter dropped;
+    private final Counter spilledTotal;
+    private volatile boolean overflowing;
+    private volatile int waiting;
+    private volatile int spilled;
+    private volatile boolean spilling;
+
+    private @Nullable FileChannel spill;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private long spillReadPosition;
+    private long spillWritePosition;
+
+    /**
+     * Creates a budget from config.
+     *
+     * @param config the 'heap-budget' section
+     * @param spillFile file to spill to, replaced if it exists
+     * @param endpoints looks up endpoints by name, for reading spilled
+     * messages
+     * @param unreadable accepts the journal position of each spilled
+     * message which could not be read back
+     * @param metrics metrics to register with
+     */
+    HeapBudget(@NonNull ConfigurationNode config, @NonNull File spillFile, @NonNull Function<String, Endpoint> endpoints, @NonNull LongConsumer unreadable, @NonNull Metrics metrics) {
+        this(Math.max(0, config.getNode("max-bytes").getLong(0)), overflow(config.getNode("overflow").getString("drop")),
+                Math.max(0, config.getNode("block-millis").getLong(1000)), Math.max(0, config.getNode("spill-bytes").getLong(64L * 1024 * 1024)),
+                spillFile, endpoints, unreadable, metrics);
+    }
+
+    HeapBudget(long maxBytes, @NonNull Overflow overflow, long blockMillis, long spillLimit, @NonNull File spillFile, @NonNull Function<String, Endpoint> endpoints, @NonNull LongConsumer unreadable, @NonNull Metrics metrics) {
+        this.maxBytes = maxBytes;
+        this.overflow = overflow;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+        this.spillLimit = spillLimit;
+        this.spillFile = spillFile;
+        this.endpoints = endpoints;
+        this.unreadable = unreadable;
+        this.dropped = metrics.counter("hyrc_heap_budget_dropped_total");
+        this.spilledTotal = metrics.counter("hyrc_heap_budget_spilled_total");
+        metrics.gauge("hyrc_heap_budget_used_bytes", this::getUsedBytes);
+        metrics.gauge("hyrc_heap_budget_high_water_bytes", this::getHighWaterBytes);
+        metrics.gauge("hyrc_heap_budget_spilled", this::getSpilled);
+    }
+
+    static @NonNull Overflow overflow(@NonNull String overflow) {
+        switch (overflow) {
+            case "spill":
+                return Overflow.SPILL;
+            case "block":
+                return Overflow.BLOCK;
+            case "drop":
+                return Overflow.DROP;
+            default:
+                HyRC.log().warning("Unknown heap-budget overflow '" + overflow + "', using drop");
+                return Overflow.DROP;
+        }
+    }
+
+    /**
+     * Gets the budget.
+     *
+     * @return bytes, or zero if only tracking
+     */
+    long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * Gets the estimated bytes of messages currently queued or being
+     * distributed.
+     *
+     * @return bytes
+     */
+    long getUsedBytes() {
+        return this.used.get();
+    }
+
+    /**
+     * Gets the most bytes used at once since startup.
+     *
+     * @return bytes
+     */
+    long getHighWaterBytes() {
+        return this.highWater.get();
+    }
+
+    /**
+     * Gets the number of messages currently spilled.
+     *
+     * @return spilled message count
+     */
+    int getSpilled() {
+        return this.spilled;
+    }
+
+    /**
+     * Reserves room for a message about to be queued, possibly waiting
+     * for room if so configured. Called before taking the queue lock, with
+     * {@link #order(Message, Admission)} then called holding it.
+     *
+     * @param message message
+     * @return whether to queue, spill or drop the message
+     */
+    @NonNull Admission reserve(@NonNull Message message) {
+        int bytes = message.getEstimatedBytes();
+        if (this.spilling) {
+            return Admission.SPILL;
+        }
+        long deadline = 0;
+        while (true) {
+            long current = this.used.get();
+            if (this.maxBytes == 0 || current + bytes <= this.maxBytes || current == 0) {
+                if (!this.used.compareAndSet(current, current + bytes)) {
+                    continue;
+                }
+                this.updateHighWater(current + bytes);
+                if (this.overflowing) {
+                    this.overflowing = false;
+                    HyRC.log().info("Message queue back under its heap budget");
+                }
+                return Admission.QUEUE;
+            }
+            if (this.overflow == Overflow.SPILL) {
+                return this.overflowed(Admission.SPILL);
+            }
+            if (this.overflow == Overflow.DROP) {
+                return this.overflowed(Admission.DROP);
+            }
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + this.blockNanos;
+            }
+            long remaining = deadline - now;
+            if (remaining <= 0) {
+                return this.overflowed(Admission.DROP);
+            }
+            synchronized (this.used) {
+                this.waiting++;
+                try {
+                    if (this.used.get() + bytes > this.maxBytes) {
+                        this.used.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return this.overflowed(Admission.DROP);
+                } finally {
+                    this.waiting--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Settles whether a reserved message is queued or spilled, keeping
+     * order. Must be called holding the queue lock, and followed by
+     * queueing or spilling the message before releasing it.
+     *
+     * @param message message
+     * @param admission result of reserving
+     * @return whether to queue or spill the message
+     */
+    @NonNull Admission order(@NonNull Message message, @NonNull Admission admission) {
+        if (admission == Admission.SPILL) {
+            this.spilling = true;
+        } else if (this.spilling) {
+            this.release(message);
+            return Admission.SPILL;
+        }
+        return admission;
+    }
+
+    private @NonNull Admission overflowed(@NonNull Admission admission) {
+        if (admission == Admission.DROP) {
+            this.dropped.increment();
+        }
+        if (!this.overflowing) {
+            this.overflowing = true;
+            HyRC.log().warning(String.format("Message queue over its heap budget of %d bytes, %s messages", this.maxBytes, admission == Admission.SPILL ? "spilling" : "dropping"));
+        }
+        return admission;
+    }
+
+    /**
+     * Accounts a message queued regardless of the budget, such as when
+     * replaying the journal.
+     *
+     * @param message message
+     */
+    void force(@NonNull Message message) {
+        this.updateHighWater(this.used.addAndGet(message.getEstimatedBytes()));
+    }
+
+    /**
+     * Releases the room of a message done being distributed.
+     *
+     * @param message message
+     */
+    void release(@NonNull Message message) {
+        this.used.addAndGet(-message.getEstimatedBytes());
+        if (this.waiting > 0) {
+            synchronized (this.used) {
+                this.used.notifyAll();
+            }
+        }
+    }
+
+    private void updateHighWater(long used) {
+        long high;
+        while (used > (high = this.highWater.get())) {
+            if (this.highWater.compareAndSet(high, used)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes a message to the spill file. Must be called holding the queue
+     * lock.
+     *
+     * @param message message
+     * @return false if it could not be spilled
+     */
+    synchronized boolean spill(@NonNull Message message) {
+        ByteBuffer record = this.encode(message);
+        if (record == null || this.spillWritePosition + record.remaining() > this.spillLimit) {
+            return this.spillFailed();
+        }
+        try {
+            if (this.spill == null) {
+                File parent = this.spillFile.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create " + parent);
+                }
+                this.spill = FileChannel.open(this.spillFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            while (record.hasRemaining()) {
+                this.spillWritePosition += this.spill.write(record, this.spillWritePosition);
+            }
+            this.spilled++;
+            this.spilledTotal.increment();
+            return true;
+        } catch (IOException e) {
+            HyRC.log().warning("Unable to spill a queued message", e);
+            return this.spillFailed();
+        }
+    }
+
+    private boolean spillFailed() {
+        this.dropped.increment();
+        if (this.spilled == 0) {
+            this.spilling = false;
+        }
+        return false;
+    }
+
+    /**
+     * Reads back the oldest spilled message, accounting it. Must be
+     * called holding the queue lock.
+     *
+     * @return message, or null if none spilled or it could not be read
+     */
+    synchronized @Nullable Message unspill() {
+        if (this.spilled == 0) {
+            return null;
+        }
+        Message message = null;
+        long journalPosition = -1;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            this.readFully(header, this.spillReadPosition);
+            journalPosition = header.getLong(4);
+            ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+            this.readFully(payload, this.spillReadPosition + 12);
+            this.spillReadPosition += 12 + payload.capacity();
+            payload.flip();
+            message = MessageCodec.decode(payload, this.endpoints);
+        } catch (IOException | IllegalArgumentException e) {
+            HyRC.log().warning("Unable to read a spilled message", e);
+        }
+        if (message == null) {
+            this.unreadable.accept(journalPosition);
+        } else {
+            message.setJournalPosition(journalPosition);
+        }
+        if (--this.spilled == 0) {
+            this.spilling = false;
+            this.reset();
+        }
+        if (message != null) {
+            this.force(message);
+        }
+        return message;
+    }
+
+    private void reset() {
+        this.spillReadPosition = 0;
+        this.spillWritePosition = 0;
+        if (this.spill != null) {
+            try {
+                this.spill.truncate(0);
+            } catch (IOException e) {
+                this.close();
+            }
+        }
+    }
+
+    /**
+     * Closes and deletes the spill file.
+     */
+    synchronized void close() {
+        if (this.spill != null) {
+            try {
+                this.spill.close();
+            } catch (IOException ignored) {
+                // Deleting anyway
+            }
+            this.spill = null;
+            this.spilled = 0;
+            this.spilling = false;
+            this.spillReadPosition = 0;
+            this.spillWritePosition = 0;
+            this.spillFile.delete();
+        }
+    }
+
+    private void readFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+        if (this.spill == null) {
+            throw new IOException("Spill file not open");
+        }
+        while (buffer.hasRemaining()) {
+            if (this.spill.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of spill file");
+            }
+        }
+    }
+
+    private @Nullable ByteBuffer encode(@NonNull Message message) {
+        while (true) {
+            this.scratch.clear();
+            try {
+                this.scratch.position(12);
+                MessageCodec.encode(message, this.scratch);
+                this.scratch.putInt(0, this.scratch.position() - 12);
+                this.scratch.putLong(4, message.getJournalPosition());
+                this.scratch.flip();
+                return this.scratch;
+            } catch (BufferOverflowException e) {
+                if (this.scratch.capacity() >= this.spillLimit) {
+                    return null;
+                }
+                this.scratch = ByteBuffer.allocate(this.scratch.capacity() * 2);
+            }
+        }
+    }
+}
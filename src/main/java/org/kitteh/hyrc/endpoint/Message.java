@@ -24,7 +24,10 @@
 package org.kitteh.hyrc.endpoint;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.metrics.Trace;
 
+import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -33,11 +36,30 @@ import java.util.Map;
  * Defines a message.
  * <p/>
  * Messages are immutable, created by their originating {@link Endpoint}.
+ * <p/>
+ * A message relayed onward by an Endpoint, rather than first entering
+ * HyRC there, carries the id of the HyRC instance and the name of the
+ * Endpoint it first entered through, and the number of hops taken since,
+ * so loops can be caught across instances.
  */
 public final class Message {
+    // Rough object sizes on a 64-bit JVM with compressed references
+    private static final int MESSAGE_BYTES = 96;
+    private static final int ENTRY_BYTES = 48;
+    private static final int STRING_BYTES = 40;
+    private static final int BOXED_BYTES = 16;
+    private static final int OTHER_BYTES = 64;
+    private static final String INSTANCE_ID = String.format("%016x", new SecureRandom().nextLong());
+
     private final Map<String, Object> data;
     private final String defaultMessage;
     private final Endpoint source;
+    private final String originInstance;
+    private final String origin;
+    private final int hops;
+    private final int estimatedBytes;
+    private @Nullable Trace trace;
+    private long journalPosition = -1;
 
     /**
      * Creates a new message.
@@ -47,9 +69,97 @@ public final class Message {
      * @param data all associated data
      */
     public Message(@NonNull Endpoint source, @NonNull String defaultMessage, @NonNull Map<String, Object> data) {
+        this(source, defaultMessage, data, INSTANCE_ID, null, 0);
+    }
+
+    /**
+     * Creates a new message relaying a previously received message.
+     *
+     * @param source endpoint relaying the message
+     * @param defaultMessage this default message
+     * @param data all associated data
+     * @param relayed the message being relayed
+     */
+    public Message(@NonNull Endpoint source, @NonNull String defaultMessage, @NonNull Map<String, Object> data, @NonNull Message relayed) {
+        this(source, defaultMessage, data, relayed.getOriginInstance(), relayed.getOrigin(), relayed.getHops() + 1);
+    }
+
+    /**
+     * Creates a new message with explicit origin and hop information, such
+     * as when receiving a message relayed from elsewhere.
+     *
+     * @param source endpoint sending the message
+     * @param defaultMessage this default message
+     * @param data all associated data
+     * @param originInstance id of the HyRC instance the message first
+     * entered
+     * @param origin name of the endpoint the message first entered through,
+     * or null if the source
+     * @param hops number of times the message has been relayed
+     */
+    public Message(@NonNull Endpoint source, @NonNull String defaultMessage, @NonNull Map<String, Object> data, @NonNull String originInstance, @Nullable String origin, int hops) {
         this.source = source;
+        this.originInstance = originInstance;
         this.defaultMessage = defaultMessage;
         this.data = Collections.unmodifiableMap(new HashMap<>(data));
+        this.origin = origin;
+        this.hops = hops;
+        this.estimatedBytes = estimate(defaultMessage, this.data);
+    }
+
+    private static int estimate(@NonNull String defaultMessage, @NonNull Map<String, Object> data) {
+        long bytes = MESSAGE_BYTES + STRING_BYTES + 2L * defaultMessage.length();
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            // Keys are nearly always shared constants, so only entries count
+            bytes += ENTRY_BYTES;
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                bytes += STRING_BYTES + 2L * ((String) value).length();
+            } else if (value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum) {
+                bytes += BOXED_BYTES;
+            } else if (value != null) {
+                bytes += OTHER_BYTES;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    /**
+     * Gets the approximate heap retained by this message, estimated from
+     * its strings and data at creation.
+     *
+     * @return estimated bytes
+     */
+    public int getEstimatedBytes() {
+        return this.estimatedBytes;
+    }
+
+    /**
+     * Gets the trace of this message's way through HyRC. The trace is the
+     * one public part of a message changing, stamped as the message is
+     * handled.
+     *
+     * @return trace, or null if not sampled for tracing
+     */
+    public @Nullable Trace getTrace() {
+        return this.trace;
+    }
+
+    void setTrace(@Nullable Trace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Gets the position of this message's record in the journal.
+     *
+     * @return position, or -1 if not journaled
+     */
+    long getJournalPosition() {
+        return this.journalPosition;
+    }
+
+    void setJournalPosition(long journalPosition) {
+        this.journalPosition = journalPosition;
     }
 
     /**
@@ -78,4 +188,42 @@ public final class Message {
     public @NonNull Endpoint getSource() {
         return this.source;
     }
+
+    /**
+     * Gets the name of the {@link Endpoint} through which this message
+     * first entered, which is the source unless relayed.
+     *
+     * @return the origin Endpoint name
+     */
+    public @NonNull String getOrigin() {
+        return (this.origin == null) ? this.source.getName() : this.origin;
+    }
+
+    /**
+     * Gets the id of the HyRC instance this message first entered, which
+     * is this instance unless relayed from another.
+     *
+     * @return the origin instance id
+     */
+    public @NonNull String getOriginInstance() {
+        return this.originInstance;
+    }
+
+    /**
+     * Gets the id of this HyRC instance, chosen at random on startup.
+     *
+     * @return this instance's id
+     */
+    public static @NonNull String getInstanceId() {
+        return INSTANCE_ID;
+    }
+
+    /**
+     * Gets the number of times this message has been relayed.
+     *
+     * @return hop count, 0 if not relayed
+     */
+    public int getHops() {
+        return this.hops;
+    }
 }
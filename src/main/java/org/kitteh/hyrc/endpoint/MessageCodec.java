@@ -0,0 +1,396 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.endpoint.defaults.IRCEndpoint;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Binary encoding of {@link Message}s.
+ * <p/>
+ * Lengths and integers are varints, strings are UTF-8 and data values are
+ * typed. Values of types without an encoding are stored as their
+ * {@link Object#toString()}. Encoding writes straight into the target
+ * buffer without allocating.
+ * <p/>
+ * Data keys and enum class names found in a fixed dictionary, such as
+ * {@link Endpoint#MESSAGE_TEXT} and the {@link IRCEndpoint} keys, are
+ * written as a single byte and decoded to the shared constant. Entries may
+ * only ever be appended to the dictionary, as its indices are stored.
+ */
+public final class MessageCodec {
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_TRUE = 4;
+    private static final byte TYPE_FALSE = 5;
+    private static final byte TYPE_CHAR = 6;
+    private static final byte TYPE_DOUBLE = 7;
+    private static final byte TYPE_FLOAT = 8;
+    private static final byte TYPE_ENUM = 9;
+
+    private static final String[] DICTIONARY = {
+            Endpoint.MESSAGE_FORMAT,
+            Endpoint.MESSAGE_TEXT,
+            Endpoint.SENDER_NAME,
+            IRCEndpoint.IRC_CHANNEL,
+            IRCEndpoint.IRC_MASK,
+            IRCEndpoint.IRC_PREFIX,
+            IRCEndpoint.IRC_PREFIXES,
+            IRCEndpoint.IRC_NICK,
+            IRCEndpoint.IRC_MESSAGE_TYPE,
+            IRCEndpoint.MessageType.class.getName()
+    };
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_INDEX.put(DICTIONARY[i], i + 1);
+        }
+    }
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Encodes a message into a buffer.
+     *
+     * @param message message to encode
+     * @param buffer buffer to write to, starting at its position
+     * @throws java.nio.BufferOverflowException if the buffer is too small,
+     * in which case the buffer's position is undefined
+     */
+    public static void encode(@NonNull Message message, @NonNull ByteBuffer buffer) {
+        writeString(buffer, message.getSource().getName());
+        writeString(buffer, message.getOriginInstance());
+        writeString(buffer, message.getOrigin());
+        writeVarInt(buffer, message.getHops());
+        writeString(buffer, message.getDefaultMessage());
+        Map<String, Object> data = message.getData();
+        writeVarInt(buffer, data.size());
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            writeName(buffer, entry.getKey());
+            writeValue(buffer, entry.getValue());
+        }
+    }
+
+    /**
+     * Decodes a message from a buffer.
+     *
+     * @param buffer buffer to read from, starting at its position
+     * @param endpoints looks up endpoints by name
+     * @return the message, or null if its source endpoint no longer exists
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    public static @Nullable Message decode(@NonNull ByteBuffer buffer, @NonNull Function<String, Endpoint> endpoints) {
+        try {
+            Endpoint source = endpoints.apply(readString(buffer));
+            String originInstance = readString(buffer);
+            String origin = readString(buffer);
+            int hops = readVarInt(buffer);
+            String defaultMessage = readString(buffer);
+            int size = readSize(buffer);
+            Map<String, Object> data = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                String key = readName(buffer);
+                data.put(key, readValue(buffer));
+            }
+            if (source == null) {
+                return null;
+            }
+            return new Message(source, defaultMessage, data, originInstance, origin.equals(source.getName()) ? null : origin, hops);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated message", e);
+        }
+    }
+
+    /**
+     * Encodes a targeted message into a buffer, including any changes made
+     * to it by filters.
+     *
+     * @param message message to encode
+     * @param buffer buffer to write to, starting at its position
+     * @throws java.nio.BufferOverflowException if the buffer is too small,
+     * in which case the buffer's position is undefined
+     */
+    public static void encode(@NonNull TargetedMessage message, @NonNull ByteBuffer buffer) {
+        encode(message.getOriginatingMessage(), buffer);
+        writeString(buffer, message.getCustomMessage());
+        Map<String, Object> changes = message.getCustomData().getChanges();
+        writeVarInt(buffer, changes.size());
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            writeName(buffer, entry.getKey());
+            writeValue(buffer, entry.getValue());
+        }
+    }
+
+    /**
+     * Decodes a targeted message from a buffer.
+     *
+     * @param buffer buffer to read from, starting at its position
+     * @param target the message's target
+     * @param endpoints looks up endpoints by name
+     * @return the message, or null if its source endpoint no longer exists
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    public static @Nullable TargetedMessage decode(@NonNull ByteBuffer buffer, @NonNull Endpoint target, @NonNull Function<String, Endpoint> endpoints) {
+        Message originatingMessage = decode(buffer, endpoints);
+        try {
+            String customMessage = readString(buffer);
+            int size = readSize(buffer);
+            Map<String, Object> changes = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                String key = readName(buffer);
+                changes.put(key, readValue(buffer));
+            }
+            if (originatingMessage == null) {
+                return null;
+            }
+            TargetedMessage message = new TargetedMessage(target, originatingMessage);
+            message.setCustomMessage(customMessage);
+            message.getCustomData().putAll(changes);
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated message", e);
+        }
+    }
+
+    private static void writeValue(@NonNull ByteBuffer buffer, @Nullable Object value) {
+        if (value == null) {
+            buffer.put(TYPE_NULL);
+        } else if (value instanceof String) {
+            buffer.put(TYPE_STRING);
+            writeString(buffer, (String) value);
+        } else if (value instanceof Integer) {
+            buffer.put(TYPE_INT);
+            writeVarLong(buffer, zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            buffer.put(TYPE_LONG);
+            writeVarLong(buffer, zigZag((Long) value));
+        } else if (value instanceof Boolean) {
+            buffer.put(((Boolean) value) ? TYPE_TRUE : TYPE_FALSE);
+        } else if (value instanceof Character) {
+            buffer.put(TYPE_CHAR);
+            writeVarInt(buffer, (Character) value);
+        } else if (value instanceof Double) {
+            buffer.put(TYPE_DOUBLE);
+            buffer.putDouble((Double) value);
+        } else if (value instanceof Float) {
+            buffer.put(TYPE_FLOAT);
+            buffer.putFloat((Float) value);
+        } else if (value instanceof Enum) {
+            buffer.put(TYPE_ENUM);
+            writeName(buffer, ((Enum<?>) value).getDeclaringClass().getName());
+            writeString(buffer, ((Enum<?>) value).name());
+        } else {
+            buffer.put(TYPE_STRING);
+            writeString(buffer, value.toString());
+        }
+    }
+
+    private static @Nullable Object readValue(@NonNull ByteBuffer buffer) {
+        byte type = buffer.get();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString(buffer);
+            case TYPE_INT:
+                return (int) unZigZag(readVarLong(buffer));
+            case TYPE_LONG:
+                return unZigZag(readVarLong(buffer));
+            case TYPE_TRUE:
+                return Boolean.TRUE;
+            case TYPE_FALSE:
+                return Boolean.FALSE;
+            case TYPE_CHAR:
+                return (char) readVarInt(buffer);
+            case TYPE_DOUBLE:
+                return buffer.getDouble();
+            case TYPE_FLOAT:
+                return buffer.getFloat();
+            case TYPE_ENUM:
+                return readEnum(readName(buffer), readString(buffer));
+            default:
+                throw new IllegalArgumentException("Unknown value type " + type);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static @NonNull Object readEnum(@NonNull String className, @NonNull String name) {
+        try {
+            Class<?> clazz = Class.forName(className, false, MessageCodec.class.getClassLoader());
+            if (clazz.isEnum()) {
+                return Enum.valueOf((Class<? extends Enum>) clazz, name);
+            }
+        } catch (ClassNotFoundException | IllegalArgumentException ignored) {
+            // Fall back to the name
+        }
+        return name;
+    }
+
+    /**
+     * Writes a dictionary index, or zero followed by the string if it is
+     * not in the dictionary.
+     */
+    private static void writeName(@NonNull ByteBuffer buffer, @NonNull String name) {
+        Integer index = DICTIONARY_INDEX.get(name);
+        if (index == null) {
+            buffer.put((byte) 0);
+            writeString(buffer, name);
+        } else {
+            writeVarInt(buffer, index);
+        }
+    }
+
+    private static @NonNull String readName(@NonNull ByteBuffer buffer) {
+        int index = readVarInt(buffer);
+        if (index == 0) {
+            return readString(buffer);
+        }
+        if (index > DICTIONARY.length) {
+            throw new IllegalArgumentException("Unknown dictionary entry " + index);
+        }
+        return DICTIONARY[index - 1];
+    }
+
+    static void writeString(@NonNull ByteBuffer buffer, @NonNull String string) {
+        final int length = string.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c >= 0x800) {
+                bytes += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        writeVarInt(buffer, bytes);
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && (i + 1) < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, counted as two bytes above
+                buffer.put((byte) '?');
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    static @NonNull String readString(@NonNull ByteBuffer buffer) {
+        int length = readVarInt(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("String length " + length + " outside remaining " + buffer.remaining());
+        }
+        String string;
+        if (buffer.hasArray()) {
+            string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return string;
+    }
+
+    private static int readSize(@NonNull ByteBuffer buffer) {
+        int size = readVarInt(buffer);
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative data size " + size);
+        }
+        return size;
+    }
+
+    static void writeVarInt(@NonNull ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int readVarInt(@NonNull ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static void writeVarLong(@NonNull ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long readVarLong(@NonNull ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varlong");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -26,10 +26,16 @@ package org.kitteh.hyrc.endpoint;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.kitteh.hyrc.HyRC;
 import org.kitteh.hyrc.endpoint.link.Link;
+import org.kitteh.hyrc.metrics.FlightEvents;
+import org.kitteh.hyrc.metrics.Histogram;
+import org.kitteh.hyrc.metrics.Rate;
+import org.kitteh.hyrc.metrics.Trace;
+import org.kitteh.hyrc.metrics.Tracer;
 import org.kitteh.hyrc.util.shutdownable.WackyWavingInterruptableArmFlailingThreadMan;
 import org.kitteh.irc.client.library.util.Pair;
 
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Distributes messages.
@@ -38,33 +44,168 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  */
 final class MessageDistributor extends Thread {
     private final EndpointManager endpointManager;
+    private final HeapBudget heapBudget;
     private final ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Histogram dispatchTime;
+    private final Tracer tracer;
+    private final FlightEvents flightEvents;
+    private final int overflowThreshold;
+    private final Rate dispatchRate = new Rate(60);
+    private volatile long dispatched;
 
-    MessageDistributor(@NonNull EndpointManager manager, @NonNull HyRC plugin) {
+    MessageDistributor(@NonNull EndpointManager manager, @NonNull HeapBudget heapBudget, @NonNull HyRC plugin) {
         this.endpointManager = manager;
+        this.heapBudget = heapBudget;
+        this.dispatchTime = plugin.getMetrics().histogram("hyrc_dispatch_nanoseconds");
+        this.tracer = plugin.getTracer();
+        this.flightEvents = plugin.getFlightEvents();
+        this.overflowThreshold = plugin.getQueueOverflowThreshold();
         plugin.trackShutdownable(new WackyWavingInterruptableArmFlailingThreadMan(this));
-        this.start();
     }
 
+    /**
+     * Queues a message in memory, its room in the heap budget already
+     * reserved. Called holding the queue lock.
+     *
+     * @param message message
+     */
     void addMessage(@NonNull Message message) {
+        this.countQueued();
         this.messages.add(message);
+        this.wake();
+    }
+
+    /**
+     * Queues a message in the heap budget's spill file. Called holding
+     * the queue lock.
+     *
+     * @param message message
+     */
+    void spillMessage(@NonNull Message message) {
+        if (!this.heapBudget.spill(message)) {
+            // Dropped, but already journaled
+            this.endpointManager.delivered(message);
+            return;
+        }
+        this.countQueued();
+        this.wake();
+    }
+
+    private void countQueued() {
+        int queued = this.queued.incrementAndGet();
+        if (queued == this.overflowThreshold + 1) {
+            this.flightEvents.queueOverflow(queued);
+        }
+    }
+
+    private void wake() {
         synchronized (this.messages) {
             this.messages.notify();
         }
     }
 
+    /**
+     * Gets the number of messages waiting to be distributed.
+     *
+     * @return queued message count
+     */
+    int getQueued() {
+        return this.queued.get();
+    }
+
+    /**
+     * Gets the number of messages distributed since startup.
+     *
+     * @return distributed message count
+     */
+    long getDispatched() {
+        return this.dispatched;
+    }
+
+    /**
+     * Gets the number of messages distributed per second over the last
+     * minute.
+     *
+     * @return messages per second
+     */
+    double getDispatchRate() {
+        return this.dispatchRate.get();
+    }
+
+    /**
+     * Accounts a spilled message which could not be read back, so has
+     * left the queue. Called holding the queue lock.
+     */
+    void unreadable() {
+        this.queued.decrementAndGet();
+    }
+
+    /**
+     * Discards all queued messages.
+     *
+     * @return number of discarded messages
+     */
+    int drain() {
+        int drained = 0;
+        Message message;
+        while ((message = this.messages.poll()) != null) {
+            this.queued.decrementAndGet();
+            this.heapBudget.release(message);
+            this.endpointManager.delivered(message);
+            drained++;
+        }
+        while (this.heapBudget.getSpilled() > 0) {
+            // Null if unreadable, already accounted, or taken by the dispatcher meanwhile
+            message = this.endpointManager.unspill();
+            if (message != null) {
+                this.queued.decrementAndGet();
+                this.heapBudget.release(message);
+                this.endpointManager.delivered(message);
+                drained++;
+            }
+        }
+        return drained;
+    }
+
     @Override
     public void run() {
         long timeTrack;
         while (!this.isInterrupted()) {
             timeTrack = System.currentTimeMillis();
             Message message = this.messages.poll();
+            if (message == null && this.heapBudget.getSpilled() > 0) {
+                message = this.endpointManager.unspill();
+            }
             if (message != null) {
+                this.queued.decrementAndGet();
+                long start = this.dispatchTime.isEnabled() ? System.nanoTime() : 0;
+                Object flightEvent = this.flightEvents.beginDispatch();
+                Trace trace = message.getTrace();
+                if (trace != null) {
+                    trace.stamp("dequeue");
+                }
+                Scrollback scrollback = message.getSource().getScrollback();
+                if (scrollback != null) {
+                    scrollback.addSent(message);
+                }
+                int destinations = 0;
                 for (Pair<Link, Endpoint> pair : this.endpointManager.getDestinations(message.getSource().getName())) {
                     pair.getRight().receiveMessage(message, pair.getLeft());
+                    destinations++;
+                }
+                this.endpointManager.delivered(message);
+                this.dispatched++;
+                this.dispatchRate.mark();
+                this.dispatchTime.recordSince(start);
+                this.flightEvents.endDispatch(flightEvent, message.getSource().getName(), destinations);
+                if (trace != null) {
+                    trace.stamp("done");
+                    this.tracer.complete(trace);
                 }
+                this.heapBudget.release(message);
             }
-            if (this.messages.isEmpty()) {
+            if (this.messages.isEmpty() && this.heapBudget.getSpilled() == 0) {
                 synchronized (this.messages) {
                     try {
                         this.messages.wait();
@@ -0,0 +1,327 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.hyrc.HyRC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped journal of queued messages.
+ * <p/>
+ * Every queued message is appended to the current segment file before
+ * being queued, and the dispatcher commits each message once delivered.
+ * Messages remember the position of their record, and the committed
+ * position moves past a record once it and every record before it are
+ * committed, so messages finishing out of order are never lost. On
+ * startup, records after the committed position are replayed.
+ * <p/>
+ * Records are a payload length, a CRC32 of the payload and the payload.
+ * The length is written last, so a record is either whole or absent.
+ * Segments are deleted once fully committed. Writes land in the page
+ * cache, surviving a JVM restart but not necessarily a power cut.
+ */
+final class MessageJournal {
+    private static final int HEADER = 8;
+    private static final byte KIND_MESSAGE = 1;
+    private static final byte KIND_PLACEHOLDER = 0;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentSize;
+    private final MappedByteBuffer committed;
+    private final CRC32 crc = new CRC32();
+    private final Object commitLock = new Object();
+    // Committed or unreadable records past the committed position
+    private final Set<Long> done = new HashSet<>();
+    private ByteBuffer scratch = ByteBuffer.allocate(8192);
+
+    private MappedByteBuffer writeSegment;
+    private volatile int writeSegmentId;
+    private int writePosition;
+
+    private MappedByteBuffer readSegment;
+    private int readSegmentId;
+    private int readPosition;
+
+    private volatile boolean broken;
+
+    /**
+     * Opens a journal, creating it if needed.
+     *
+     * @param directory directory holding the journal's files
+     * @param segmentSize size of each segment file
+     * @throws IOException if the journal cannot be opened
+     */
+    MessageJournal(@NonNull File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.committed = map(new File(directory, "committed.pos"), 8, false);
+
+        long cursor = this.committed.getLong(0);
+        int cursorSegment = (int) (cursor >>> 32);
+        int cursorPosition = (int) cursor;
+        TreeMap<Integer, File> segments = this.listSegments();
+        for (Integer id : new ArrayList<>(segments.headMap(cursorSegment).keySet())) {
+            segments.remove(id).delete();
+        }
+        if (segments.isEmpty()) {
+            this.readSegmentId = Math.max(1, cursorSegment);
+            this.readPosition = 0;
+            this.writeSegmentId = this.readSegmentId;
+            this.writeSegment = map(this.segmentFile(this.writeSegmentId), segmentSize, false);
+            this.writePosition = 0;
+        } else {
+            this.readSegmentId = segments.firstKey();
+            this.readPosition = (this.readSegmentId == cursorSegment) ? cursorPosition : 0;
+            this.writeSegmentId = segments.lastKey();
+            this.writeSegment = map(this.segmentFile(this.writeSegmentId), segmentSize, false);
+            this.writePosition = (this.writeSegmentId == this.readSegmentId) ? this.readPosition : 0;
+            int length;
+            while ((length = this.length(this.writeSegment, this.writePosition)) > 0) {
+                this.writePosition += HEADER + length;
+            }
+        }
+        this.readSegment = map(this.segmentFile(this.readSegmentId), segmentSize, true);
+        this.storeCommitted();
+    }
+
+    /**
+     * Replays all uncommitted messages. Must be called before any append.
+     *
+     * @param endpoints looks up endpoints by name
+     * @param consumer accepts each replayed message, in order
+     * @return number of messages replayed
+     */
+    int replay(@NonNull Function<String, Endpoint> endpoints, @NonNull Consumer<Message> consumer) {
+        int replayed = 0;
+        int segmentId = this.readSegmentId;
+        int position = this.readPosition;
+        MappedByteBuffer segment = this.readSegment;
+        while (true) {
+            int length = this.length(segment, position);
+            if (length <= 0) {
+                if (segmentId >= this.writeSegmentId) {
+                    break;
+                }
+                segmentId++;
+                position = 0;
+                try {
+                    segment = map(this.segmentFile(segmentId), this.segmentSize, true);
+                } catch (IOException e) {
+                    this.fail("Could not read journal segment " + segmentId, e);
+                    break;
+                }
+                continue;
+            }
+            long recordPosition = position(segmentId, position);
+            ByteBuffer payload = (ByteBuffer) segment.duplicate().position(position + HEADER).limit(position + HEADER + length);
+            Message message = null;
+            this.crc.reset();
+            this.crc.update(payload.duplicate());
+            if ((int) this.crc.getValue() == segment.getInt(position + 4) && payload.get() == KIND_MESSAGE) {
+                try {
+                    message = MessageCodec.decode(payload, endpoints);
+                } catch (IllegalArgumentException e) {
+                    HyRC.log().warning("Skipping unreadable journal record", e);
+                }
+            }
+            if (message == null) {
+                this.done.add(recordPosition);
+            } else {
+                message.setJournalPosition(recordPosition);
+                consumer.accept(message);
+                replayed++;
+            }
+            position += HEADER + length;
+        }
+        return replayed;
+    }
+
+    /**
+     * Appends a message, setting its journal position. Callers must queue
+     * the message before any other append, to keep the journal and queue in
+     * the same order.
+     *
+     * @param message message to append
+     */
+    synchronized void append(@NonNull Message message) {
+        if (this.broken) {
+            return;
+        }
+        ByteBuffer payload = this.encode(message);
+        int length = payload.remaining();
+        try {
+            if (this.writePosition + HEADER + length > this.segmentSize) {
+                this.writeSegment = map(this.segmentFile(this.writeSegmentId + 1), this.segmentSize, false);
+                this.writeSegmentId++;
+                this.writePosition = 0;
+            }
+        } catch (IOException e) {
+            this.fail("Could not create journal segment", e);
+            return;
+        }
+        int position = this.writePosition;
+        this.crc.reset();
+        this.crc.update(payload.duplicate());
+        ByteBuffer target = this.writeSegment.duplicate();
+        target.position(position + HEADER);
+        target.put(payload);
+        if (target.remaining() >= 4) {
+            target.putInt(0);
+        }
+        this.writeSegment.putInt(position + 4, (int) this.crc.getValue());
+        this.writeSegment.putInt(position, length);
+        this.writePosition = position + HEADER + length;
+        message.setJournalPosition(position(this.writeSegmentId, position));
+    }
+
+    /**
+     * Commits a message as delivered, or as dropped.
+     *
+     * @param committing journal position of a message appended to or
+     * replayed from this journal, ignored if negative
+     */
+    void commit(long committing) {
+        if (this.broken || committing < 0) {
+            return;
+        }
+        synchronized (this.commitLock) {
+            this.done.add(committing);
+            try {
+                while (true) {
+                    int length = this.length(this.readSegment, this.readPosition);
+                    if (length <= 0) {
+                        if (this.readSegmentId >= this.writeSegmentId) {
+                            break;
+                        }
+                        File finished = this.segmentFile(this.readSegmentId);
+                        this.readSegment = map(this.segmentFile(this.readSegmentId + 1), this.segmentSize, true);
+                        this.readSegmentId++;
+                        this.readPosition = 0;
+                        // May fail on platforms refusing to delete mapped files, cleaned up on next start
+                        finished.delete();
+                        continue;
+                    }
+                    if (!this.done.remove(position(this.readSegmentId, this.readPosition))) {
+                        break;
+                    }
+                    this.readPosition += HEADER + length;
+                }
+                this.storeCommitted();
+            } catch (IOException e) {
+                this.fail("Could not advance journal", e);
+            }
+        }
+    }
+
+    private @NonNull ByteBuffer encode(@NonNull Message message) {
+        final int max = this.segmentSize - HEADER;
+        while (true) {
+            this.scratch.clear();
+            try {
+                this.scratch.put(KIND_MESSAGE);
+                MessageCodec.encode(message, this.scratch);
+                this.scratch.flip();
+                return this.scratch;
+            } catch (BufferOverflowException e) {
+                if (this.scratch.capacity() >= max) {
+                    HyRC.log().warning("Message too large to journal, it will not survive a restart");
+                    this.scratch.clear();
+                    this.scratch.put(KIND_PLACEHOLDER);
+                    this.scratch.flip();
+                    return this.scratch;
+                }
+                this.scratch = ByteBuffer.allocate(Math.min(max, this.scratch.capacity() * 2));
+            }
+        }
+    }
+
+    private int length(@NonNull ByteBuffer segment, int position) {
+        if (position + HEADER > this.segmentSize) {
+            return 0;
+        }
+        int length = segment.getInt(position);
+        return (length > 0 && position + HEADER + length <= this.segmentSize) ? length : 0;
+    }
+
+    private void storeCommitted() {
+        this.committed.putLong(0, position(this.readSegmentId, this.readPosition));
+    }
+
+    private void fail(@NonNull String reason, @NonNull Throwable thrown) {
+        this.broken = true;
+        HyRC.log().severe(reason + ", journal disabled until restart", thrown);
+    }
+
+    private @NonNull TreeMap<Integer, File> listSegments() {
+        TreeMap<Integer, File> segments = new TreeMap<>();
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException ignored) {
+                        // Not ours
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    private @NonNull File segmentFile(int id) {
+        return new File(this.directory, String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static long position(int segment, int position) {
+        return ((long) segment << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    private static @NonNull MappedByteBuffer map(@NonNull File file, int size, boolean readOnly) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Function;
+
+/**
+ * Holds messages for an endpoint while it is unavailable.
+ * <p/>
+ * Messages are held in memory up to a limit, past which they are spilled
+ * to a file up to a size limit, past which they are counted and dropped.
+ * Once anything is held, every following message is held too, so order is
+ * kept until the buffer is empty again.
+ * <p/>
+ * When the endpoint becomes available again, held messages are replayed
+ * at a paced rate. If more than a set number were missed, the oldest are
+ * replaced by a single summary line.
+ */
+final class OfflineBuffer extends Thread {
+    private static final long AVAILABILITY_POLL_MILLIS = 1000;
+
+    private final Endpoint endpoint;
+    private final Function<String, Endpoint> endpoints;
+    private final File spillFile;
+    private final int memoryLimit;
+    private final long diskLimit;
+    private final long replayIntervalMillis;
+    private final int summarizeAbove;
+    private final String summary;
+
+    private final Deque<TargetedMessage> memory = new ArrayDeque<>();
+    private @Nullable FileChannel spill;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private long spillReadPosition;
+    private long spillWritePosition;
+    private int spilled;
+    private long dropped;
+    private boolean inFlight;
+
+    /**
+     * Creates a buffer.
+     *
+     * @param endpoint endpoint being buffered for
+     * @param config the 'offline-buffer' section of the endpoint
+     * @param spillFile file to spill to, replaced if it exists
+     * @param endpoints looks up endpoints by name, for reading spilled
+     * messages
+     */
+    OfflineBuffer(@NonNull Endpoint endpoint, @NonNull ConfigurationNode config, @NonNull File spillFile, @NonNull Function<String, Endpoint> endpoints) {
+        this.endpoint = endpoint;
+        this.endpoints = endpoints;
+        this.spillFile = spillFile;
+        this.memoryLimit = Math.max(0, config.getNode("memory-messages").getInt(1000));
+        this.diskLimit = Math.max(0, config.getNode("disk-bytes").getLong(16L * 1024 * 1024));
+        int rate = Math.max(1, config.getNode("replay-per-second").getInt(2));
+        this.replayIntervalMillis = 1000 / rate;
+        this.summarizeAbove = Math.max(0, config.getNode("summarize-above").getInt(20));
+        this.summary = config.getNode("summary").getString("%d messages missed");
+        this.setName("HyRC offline buffer - " + endpoint.getName());
+        this.setDaemon(true);
+    }
+
+    /**
+     * Offers a message, which is held if the endpoint is unavailable or
+     * earlier messages are still held.
+     *
+     * @param message message, already filtered
+     * @return true if held, false if it should be delivered right away
+     */
+    synchronized boolean offer(@NonNull TargetedMessage message) {
+        if (this.isEmpty() && !this.inFlight && this.endpoint.canDeliver()) {
+            return false;
+        }
+        this.hold(message);
+        return true;
+    }
+
+    /**
+     * Holds a message which could not be delivered, to be replayed after
+     * any already held.
+     *
+     * @param message message, already filtered
+     */
+    synchronized void hold(@NonNull TargetedMessage message) {
+        if (this.spilled == 0 && this.memory.size() < this.memoryLimit) {
+            this.memory.add(message);
+        } else if (!this.spill(message)) {
+            this.dropped++;
+        }
+        this.notify();
+    }
+
+    /**
+     * Gets the number of messages currently held.
+     *
+     * @return held message count
+     */
+    synchronized int size() {
+        return this.memory.size() + this.spilled;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!this.isInterrupted()) {
+                synchronized (this) {
+                    while (this.isEmpty()) {
+                        this.wait();
+                    }
+                }
+                if (!this.endpoint.canDeliver()) {
+                    Thread.sleep(AVAILABILITY_POLL_MILLIS);
+                    continue;
+                }
+                TargetedMessage summary = this.summarize();
+                if (summary != null) {
+                    this.deliver(summary);
+                    Thread.sleep(this.replayIntervalMillis);
+                }
+                TargetedMessage message;
+                synchronized (this) {
+                    message = this.poll();
+                    this.inFlight = message != null;
+                }
+                if (message != null) {
+                    boolean delivered;
+                    try {
+                        delivered = this.deliver(message);
+                    } finally {
+                        synchronized (this) {
+                            this.inFlight = false;
+                        }
+                    }
+                    if (!delivered) {
+                        synchronized (this) {
+                            this.memory.addFirst(message);
+                        }
+                        Thread.sleep(AVAILABILITY_POLL_MILLIS);
+                        continue;
+                    }
+                    Thread.sleep(this.replayIntervalMillis);
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // Shutting down
+        } finally {
+            synchronized (this) {
+                this.closeSpill();
+            }
+        }
+    }
+
+    private boolean deliver(@NonNull TargetedMessage message) {
+        try {
+            return this.endpoint.replay(message);
+        } catch (Throwable thrown) {
+            HyRC.log().warning("Unable to replay a message to " + this.endpoint.getName(), thrown);
+            return true;
+        }
+    }
+
+    private synchronized @Nullable TargetedMessage summarize() {
+        if (this.summarizeAbove == 0 && this.dropped == 0) {
+            return null;
+        }
+        long missed = this.dropped;
+        TargetedMessage first = null;
+        if (this.summarizeAbove > 0) {
+            for (int skip = this.size() - this.summarizeAbove; skip > 0; skip--) {
+                TargetedMessage skipped = this.poll();
+                if (first == null) {
+                    first = skipped;
+                }
+                missed++;
+            }
+        }
+        if (missed == 0) {
+            return null;
+        }
+        if (first == null) {
+            first = this.peek();
+        }
+        if (first == null) {
+            return null;
+        }
+        this.dropped = 0;
+        TargetedMessage summary = new TargetedMessage(this.endpoint, first.getOriginatingMessage());
+        summary.setCustomMessage(String.format(this.summary, missed));
+        return summary;
+    }
+
+    private boolean isEmpty() {
+        return this.memory.isEmpty() && this.spilled == 0;
+    }
+
+    private @Nullable TargetedMessage peek() {
+        if (this.memory.isEmpty()) {
+            TargetedMessage message = this.poll();
+            if (message != null) {
+                this.memory.addFirst(message);
+            }
+        }
+        return this.memory.peekFirst();
+    }
+
+    private @Nullable TargetedMessage poll() {
+        if (!this.memory.isEmpty()) {
+            return this.memory.pollFirst();
+        }
+        while (this.spilled > 0) {
+            TargetedMessage message = this.readSpilled();
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private boolean spill(@NonNull TargetedMessage message) {
+        ByteBuffer record = this.encode(message);
+        if (record == null || this.spillWritePosition + record.remaining() > this.diskLimit) {
+            return false;
+        }
+        try {
+            if (this.spill == null) {
+                File parent = this.spillFile.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create " + parent);
+                }
+                this.spill = FileChannel.open(this.spillFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            while (record.hasRemaining()) {
+                this.spillWritePosition += this.spill.write(record, this.spillWritePosition);
+            }
+            this.spilled++;
+            return true;
+        } catch (IOException e) {
+            HyRC.log().warning("Unable to spill a message for " + this.endpoint.getName(), e);
+            return false;
+        }
+    }
+
+    private @Nullable TargetedMessage readSpilled() {
+        TargetedMessage message = null;
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            this.readFully(length, this.spillReadPosition);
+            ByteBuffer payload = ByteBuffer.allocate(length.getInt(0));
+            this.readFully(payload, this.spillReadPosition + 4);
+            this.spillReadPosition += 4 + payload.capacity();
+            payload.flip();
+            message = MessageCodec.decode(payload, this.endpoint, this.endpoints);
+        } catch (IOException | IllegalArgumentException e) {
+            HyRC.log().warning("Unable to read a spilled message for " + this.endpoint.getName(), e);
+            this.spilled = 1;
+        }
+        if (--this.spilled == 0) {
+            this.spillReadPosition = 0;
+            this.spillWritePosition = 0;
+            try {
+                if (this.spill != null) {
+                    this.spill.truncate(0);
+                }
+            } catch (IOException e) {
+                this.closeSpill();
+            }
+        }
+        return message;
+    }
+
+    private void readFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+        if (this.spill == null) {
+            throw new IOException("Spill file not open");
+        }
+        while (buffer.hasRemaining()) {
+            if (this.spill.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Spill file truncated");
+            }
+        }
+    }
+
+    private @Nullable ByteBuffer encode(@NonNull TargetedMessage message) {
+        while (true) {
+            this.scratch.clear();
+            try {
+                this.scratch.position(4);
+                MessageCodec.encode(message, this.scratch);
+                this.scratch.putInt(0, this.scratch.position() - 4);
+                this.scratch.flip();
+                return this.scratch;
+            } catch (BufferOverflowException e) {
+                if (this.scratch.capacity() >= this.diskLimit) {
+                    return null;
+                }
+                this.scratch = ByteBuffer.allocate(this.scratch.capacity() * 2);
+            }
+        }
+    }
+
+    private void closeSpill() {
+        if (this.spill != null) {
+            try {
+                this.spill.close();
+            } catch (IOException ignored) {
+                // Deleting anyway
+            }
+            this.spill = null;
+            this.spilled = 0;
+            this.spillReadPosition = 0;
+            this.spillWritePosition = 0;
+            this.spillFile.delete();
+        }
+    }
+}
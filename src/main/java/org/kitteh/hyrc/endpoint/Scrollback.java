@@ -0,0 +1,313 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Recent messages sent from and received by an endpoint, kept off-heap.
+ * <p/>
+ * Messages are encoded into a fixed-size direct buffer used as a ring,
+ * with a fixed-size direct index of timestamp, offset and length per
+ * record. New records overwrite the oldest ones, so the heap cost does not
+ * grow with history. Queries return entries which decode on first use and
+ * which come up empty if overwritten in the meantime.
+ */
+public final class Scrollback {
+    /**
+     * A scrollback record.
+     */
+    public final class Entry {
+        private final long sequence;
+        private final long timestamp;
+        private final boolean received;
+        private Object decoded;
+
+        private Entry(long sequence, long timestamp, boolean received) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.received = received;
+        }
+
+        /**
+         * Gets when the message was recorded.
+         *
+         * @return timestamp in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        /**
+         * Gets if the message was received by the endpoint, rather than
+         * sent from it.
+         *
+         * @return true if received
+         */
+        public boolean isReceived() {
+            return this.received;
+        }
+
+        /**
+         * Gets the message, as sent by its source.
+         *
+         * @return the message, or null if overwritten or unreadable
+         */
+        public @Nullable Message getMessage() {
+            Object decoded = this.decode();
+            if (decoded instanceof TargetedMessage) {
+                return ((TargetedMessage) decoded).getOriginatingMessage();
+            }
+            return (Message) decoded;
+        }
+
+        /**
+         * Gets the text as it appeared at the endpoint, being the custom
+         * message for received messages and the default message for sent
+         * ones.
+         *
+         * @return the text, or null if overwritten or unreadable
+         */
+        public @Nullable String getText() {
+            Object decoded = this.decode();
+            if (decoded instanceof TargetedMessage) {
+                return ((TargetedMessage) decoded).getCustomMessage();
+            }
+            return (decoded == null) ? null : ((Message) decoded).getDefaultMessage();
+        }
+
+        private @Nullable Object decode() {
+            if (this.decoded == null) {
+                this.decoded = Scrollback.this.decode(this.sequence);
+            }
+            return this.decoded;
+        }
+    }
+
+    private static final int INDEX_ENTRY = 16;
+    private static final byte KIND_SENT = 0;
+    private static final byte KIND_RECEIVED = 1;
+
+    private final Endpoint endpoint;
+    private final Function<String, Endpoint> endpoints;
+    private final ByteBuffer data;
+    private final ByteBuffer index;
+    private final int indexCapacity;
+    private long head;
+    private long tail;
+    private int writePosition;
+    private long lastTimestamp;
+
+    /**
+     * Creates a scrollback.
+     *
+     * @param endpoint endpoint whose history is kept
+     * @param messages maximum number of messages kept
+     * @param bytes maximum size of encoded messages kept
+     * @param endpoints looks up endpoints by name, for decoding
+     */
+    Scrollback(@NonNull Endpoint endpoint, int messages, int bytes, @NonNull Function<String, Endpoint> endpoints) {
+        this.endpoint = endpoint;
+        this.endpoints = endpoints;
+        this.indexCapacity = messages;
+        this.index = ByteBuffer.allocateDirect(messages * INDEX_ENTRY);
+        this.data = ByteBuffer.allocateDirect(bytes);
+    }
+
+    /**
+     * Records a message sent from the endpoint.
+     *
+     * @param message message
+     */
+    void addSent(@NonNull Message message) {
+        this.add(message, KIND_SENT);
+    }
+
+    /**
+     * Records a message received by the endpoint, after filtering.
+     *
+     * @param message message
+     */
+    void addReceived(@NonNull TargetedMessage message) {
+        this.add(message, KIND_RECEIVED);
+    }
+
+    /**
+     * Gets the most recent messages.
+     *
+     * @param count maximum number of messages
+     * @return messages, oldest first
+     */
+    public synchronized @NonNull List<Entry> getLast(int count) {
+        long from = Math.max(this.tail, this.head - Math.max(0, count));
+        return this.entries(from, this.head);
+    }
+
+    /**
+     * Gets the messages recorded within a time range.
+     *
+     * @param from start of range, inclusive, in milliseconds since the epoch
+     * @param to end of range, exclusive, in milliseconds since the epoch
+     * @return messages, oldest first
+     */
+    public synchronized @NonNull List<Entry> getRange(long from, long to) {
+        return this.entries(this.search(from), this.search(to));
+    }
+
+    /**
+     * Gets the number of messages currently kept.
+     *
+     * @return message count
+     */
+    public synchronized int size() {
+        return (int) (this.head - this.tail);
+    }
+
+    private synchronized void add(@NonNull Object message, byte kind) {
+        final int previous = this.writePosition;
+        ByteBuffer target = this.data.duplicate();
+        target.position(previous);
+        boolean wrapped = false;
+        if (!this.encode(target, message, kind)) {
+            target.clear();
+            wrapped = true;
+            if (previous == 0 || !this.encode(target, message, kind)) {
+                // Larger than the whole ring, and anything may have been overwritten trying
+                this.tail = this.head;
+                this.writePosition = 0;
+                HyRC.log().warning("Message too large for scrollback of " + this.endpoint.getName());
+                return;
+            }
+        }
+        final int start = wrapped ? 0 : previous;
+        final int end = target.position();
+        if (wrapped) {
+            while (this.tail < this.head && this.offset(this.tail) >= previous) {
+                this.tail++;
+            }
+        }
+        while (this.tail < this.head && this.offset(this.tail) < end && this.offset(this.tail) + this.length(this.tail) > start) {
+            this.tail++;
+        }
+        if (this.head - this.tail == this.indexCapacity) {
+            this.tail++;
+        }
+        long timestamp = Math.max(this.lastTimestamp, System.currentTimeMillis());
+        this.lastTimestamp = timestamp;
+        int slot = this.slot(this.head);
+        this.index.putLong(slot, timestamp);
+        this.index.putInt(slot + 8, start);
+        this.index.putInt(slot + 12, end - start);
+        this.head++;
+        this.writePosition = end;
+    }
+
+    private boolean encode(@NonNull ByteBuffer target, @NonNull Object message, byte kind) {
+        try {
+            target.put(kind);
+            if (kind == KIND_RECEIVED) {
+                MessageCodec.encode((TargetedMessage) message, target);
+            } else {
+                MessageCodec.encode((Message) message, target);
+            }
+            return true;
+        } catch (BufferOverflowException e) {
+            return false;
+        }
+    }
+
+    private synchronized @Nullable Object decode(long sequence) {
+        if (sequence < this.tail) {
+            return null;
+        }
+        int offset = this.offset(sequence);
+        ByteBuffer record = this.data.duplicate();
+        record.limit(offset + this.length(sequence)).position(offset);
+        try {
+            if (record.get() == KIND_RECEIVED) {
+                return MessageCodec.decode(record, this.endpoint, this.endpoints);
+            }
+            return MessageCodec.decode(record, this.endpoints);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private @NonNull List<Entry> entries(long from, long to) {
+        if (from >= to) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>((int) (to - from));
+        for (long sequence = from; sequence < to; sequence++) {
+            int offset = this.offset(sequence);
+            entries.add(new Entry(sequence, this.timestamp(sequence), this.data.get(offset) == KIND_RECEIVED));
+        }
+        return entries;
+    }
+
+    /**
+     * Finds the first kept record at or after a time.
+     *
+     * @param timestamp time
+     * @return sequence number, or head if none
+     */
+    private long search(long timestamp) {
+        long low = this.tail;
+        long high = this.head;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (this.timestamp(middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % this.indexCapacity) * INDEX_ENTRY;
+    }
+
+    private long timestamp(long sequence) {
+        return this.index.getLong(this.slot(sequence));
+    }
+
+    private int offset(long sequence) {
+        return this.index.getInt(this.slot(sequence) + 8);
+    }
+
+    private int length(long sequence) {
+        return this.index.getInt(this.slot(sequence) + 12);
+    }
+}
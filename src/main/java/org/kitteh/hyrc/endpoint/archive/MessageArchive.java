@@ -0,0 +1,700 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.archive;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.MessageCodec;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only archive of messages in block-compressed segment files.
+ * <p/>
+ * Records are collected into a block until it reaches the block size or
+ * has waited for the flush interval, then the block is deflated and
+ * appended to the current segment file. A background thread writes blocks
+ * left waiting when messages stop arriving, and forces written blocks to
+ * disk. Each block gets an entry in the
+ * segment's index file, holding its time range and a 64-bit mask of the
+ * source endpoints in it. Range reads go through the index, which is kept
+ * in memory, and only inflate blocks which may hold matching records.
+ * <p/>
+ * Block entries are written after their block, so a crash can at worst
+ * lose the blocks which were not yet indexed. These are truncated away on
+ * the next start.
+ * <p/>
+ * Records are numbered in order, and optionally indexed for search by a
+ * {@link MessageIndex}. The search index lives in memory and is rebuilt
+ * from the archive in the background on start, once all endpoints are
+ * loaded.
+ */
+public final class MessageArchive {
+    /**
+     * An archived message.
+     */
+    public static final class Record {
+        private final long timestamp;
+        private final TargetedMessage message;
+
+        private Record(long timestamp, @NonNull TargetedMessage message) {
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+
+        /**
+         * Gets when the message was archived.
+         *
+         * @return timestamp in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        /**
+         * Gets the message, as received by the archive.
+         *
+         * @return message
+         */
+        public @NonNull TargetedMessage getMessage() {
+            return this.message;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(long record, long timestamp, @NonNull ByteBuffer payload);
+    }
+
+    private static final class Block {
+        private final int segment;
+        private final long offset;
+        private final int compressedLength;
+        private final int rawLength;
+        private final long firstTime;
+        private final long lastTime;
+        private final long endpoints;
+        private final long firstRecord;
+        private final int records;
+
+        private Block(int segment, long offset, int compressedLength, int rawLength, long firstTime, long lastTime, long endpoints, long firstRecord, int records) {
+            this.segment = segment;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.rawLength = rawLength;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.endpoints = endpoints;
+            this.firstRecord = firstRecord;
+            this.records = records;
+        }
+    }
+
+    private static final int INDEX_ENTRY = 56;
+    private static final int RECORD_HEADER = 12;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".arc";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File directory;
+    private final Endpoint target;
+    private final Function<String, Endpoint> endpoints;
+    private final int blockSize;
+    private final long segmentSize;
+    private final long flushNanos;
+    private final Deflater deflater;
+    private final List<Block> blocks = new ArrayList<>();
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY);
+    private final @Nullable MessageIndex searchIndex;
+    private final @Nullable Thread historyLoader;
+    private final @Nullable Thread flusher;
+
+    private ByteBuffer block;
+    private byte[] compressed;
+    private int blockRecords;
+    private long blockFirstTime;
+    private long blockLastTime;
+    private long blockEndpoints;
+    private long blockStarted;
+    private long lastTimestamp;
+    private long nextRecord;
+    private long blockFirstRecord;
+
+    private int segmentId;
+    private FileChannel segment;
+    private FileChannel index;
+    private long segmentPosition;
+    private boolean unforced;
+    private boolean closed;
+
+    /**
+     * Opens an archive, creating it if needed.
+     *
+     * @param directory directory holding the archive's files
+     * @param target the endpoint archived messages are targeted at
+     * @param endpoints looks up endpoints by name, for reading
+     * @param blockSize uncompressed size at which a block is written
+     * @param segmentSize size at which a new segment file is started
+     * @param level deflate compression level
+     * @param flushMillis longest a record waits in memory before its block
+     * is written, or zero to write every record at once
+     * @param searchable true to keep a search index
+     * @throws IOException if the archive cannot be opened
+     */
+    public MessageArchive(@NonNull File directory, @NonNull Endpoint target, @NonNull Function<String, Endpoint> endpoints, int blockSize, long segmentSize, int level, long flushMillis, boolean searchable) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create archive directory " + directory);
+        }
+        this.directory = directory;
+        this.target = target;
+        this.endpoints = endpoints;
+        this.blockSize = blockSize;
+        this.segmentSize = segmentSize;
+        this.flushNanos = flushMillis * 1_000_000L;
+        this.deflater = new Deflater(level);
+        this.block = ByteBuffer.allocate(blockSize);
+        this.compressed = new byte[blockSize];
+
+        TreeMap<Integer, File> segments = this.listSegments();
+        for (Integer id : segments.keySet()) {
+            this.loadIndex(id);
+        }
+        if (segments.isEmpty()) {
+            this.openSegment(1);
+        } else {
+            this.openSegment(segments.lastKey());
+            long indexed = 0;
+            long entries = 0;
+            for (Block block : this.blocks) {
+                if (block.segment == this.segmentId) {
+                    indexed = block.offset + block.compressedLength;
+                    entries++;
+                }
+            }
+            // Drop anything written after the last indexed block
+            this.segment.truncate(indexed);
+            this.index.truncate(entries * INDEX_ENTRY);
+            this.segmentPosition = indexed;
+            if (!this.blocks.isEmpty()) {
+                Block last = this.blocks.get(this.blocks.size() - 1);
+                this.lastTimestamp = last.lastTime;
+                this.nextRecord = last.firstRecord + last.records;
+            }
+        }
+        if (searchable) {
+            this.searchIndex = new MessageIndex(directory.getName(), !this.blocks.isEmpty());
+            if (this.blocks.isEmpty()) {
+                this.historyLoader = null;
+            } else {
+                List<Block> history = new ArrayList<>(this.blocks);
+                this.historyLoader = new Thread(() -> this.loadHistory(history), "HyRC index history - " + directory.getName());
+                this.historyLoader.setDaemon(true);
+                this.historyLoader.start();
+            }
+        } else {
+            this.searchIndex = null;
+            this.historyLoader = null;
+        }
+        if (this.flushNanos > 0) {
+            this.flusher = new Thread(this::flushLoop, "HyRC archive flush - " + directory.getName());
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    /**
+     * Gets the search index.
+     *
+     * @return the index, or null if not searchable
+     */
+    public @Nullable MessageIndex getSearchIndex() {
+        return this.searchIndex;
+    }
+
+    /**
+     * Finds archived messages containing a word or phrase.
+     *
+     * @param field field to search
+     * @param query one or more words, matched as a phrase
+     * @param endpoint source endpoint name to match, or null for all
+     * @param from start of range, inclusive, in milliseconds since the epoch
+     * @param to end of range, exclusive, in milliseconds since the epoch
+     * @param limit maximum number of records, keeping the most recent
+     * @return matching records, in order
+     * @throws IOException if reading fails
+     * @throws IllegalStateException if the archive is not searchable
+     */
+    public @NonNull List<Record> search(MessageIndex.@NonNull Field field, @NonNull String query, @Nullable String endpoint, long from, long to, int limit) throws IOException {
+        if (this.searchIndex == null) {
+            throw new IllegalStateException("Archive is not searchable");
+        }
+        List<MessageIndex.Hit> hits = this.searchIndex.search(field, query, endpoint, from, to, limit);
+        if (hits.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Set<Long> wanted = new HashSet<>();
+        List<Block> candidates = new ArrayList<>();
+        synchronized (this) {
+            if (this.blockRecords > 0) {
+                this.flush();
+            }
+            for (MessageIndex.Hit hit : hits) {
+                wanted.add(hit.getRecord());
+                Block block = this.blocks.get(this.blockOf(hit.getRecord()));
+                if (candidates.isEmpty() || candidates.get(candidates.size() - 1) != block) {
+                    candidates.add(block);
+                }
+            }
+        }
+        List<Record> records = new ArrayList<>(hits.size());
+        this.scan(candidates, (record, timestamp, payload) -> {
+            if (wanted.contains(record)) {
+                TargetedMessage message = MessageCodec.decode(payload, this.target, this.endpoints);
+                if (message != null) {
+                    records.add(new Record(timestamp, message));
+                }
+            }
+        });
+        return records;
+    }
+
+    /**
+     * Archives a message.
+     *
+     * @param message message
+     * @throws IOException if writing fails
+     */
+    public synchronized void append(@NonNull TargetedMessage message) throws IOException {
+        final long timestamp = Math.max(this.lastTimestamp, System.currentTimeMillis());
+        this.lastTimestamp = timestamp;
+        while (!this.encode(timestamp, message)) {
+            if (this.blockRecords > 0) {
+                this.flush();
+            } else {
+                this.block = ByteBuffer.allocate(this.block.capacity() * 2);
+            }
+        }
+        if (this.blockRecords == 0) {
+            this.blockFirstRecord = this.nextRecord;
+            this.blockFirstTime = timestamp;
+            this.blockStarted = System.nanoTime();
+        }
+        this.blockRecords++;
+        this.blockLastTime = timestamp;
+        String source = message.getOriginatingMessage().getSource().getName();
+        this.blockEndpoints |= endpointBit(source);
+        if (this.searchIndex != null) {
+            this.searchIndex.add(this.nextRecord, timestamp, source, text(message, Endpoint.MESSAGE_TEXT), text(message, Endpoint.SENDER_NAME));
+        }
+        this.nextRecord++;
+        if (this.block.position() >= this.blockSize || (System.nanoTime() - this.blockStarted) >= this.flushNanos) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Reads archived messages within a time range.
+     *
+     * @param endpoint source endpoint name to match, or null for all
+     * @param from start of range, inclusive, in milliseconds since the epoch
+     * @param to end of range, exclusive, in milliseconds since the epoch
+     * @param consumer accepts each matching record, in order
+     * @throws IOException if reading fails
+     */
+    public void read(@Nullable String endpoint, long from, long to, @NonNull Consumer<Record> consumer) throws IOException {
+        List<Block> candidates = new LinkedList<>();
+        synchronized (this) {
+            if (this.blockRecords > 0) {
+                this.flush();
+            }
+            final long mask = (endpoint == null) ? -1L : endpointBit(endpoint);
+            for (int i = this.firstBlock(from); i < this.blocks.size(); i++) {
+                Block block = this.blocks.get(i);
+                if (block.firstTime >= to) {
+                    break;
+                }
+                if ((block.endpoints & mask) != 0) {
+                    candidates.add(block);
+                }
+            }
+        }
+        this.scan(candidates, (record, timestamp, payload) -> {
+            if (timestamp >= from && timestamp < to) {
+                TargetedMessage message = MessageCodec.decode(payload, this.target, this.endpoints);
+                if (message != null && (endpoint == null || endpoint.equals(message.getOriginatingMessage().getSource().getName()))) {
+                    consumer.accept(new Record(timestamp, message));
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads archived messages within a time range.
+     *
+     * @param endpoint source endpoint name to match, or null for all
+     * @param from start of range, inclusive, in milliseconds since the epoch
+     * @param to end of range, exclusive, in milliseconds since the epoch
+     * @return matching records, in order
+     * @throws IOException if reading fails
+     */
+    public @NonNull List<Record> read(@Nullable String endpoint, long from, long to) throws IOException {
+        List<Record> records = new ArrayList<>();
+        this.read(endpoint, from, to, records::add);
+        return records;
+    }
+
+    /**
+     * Writes any pending block and closes the archive's files.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        if (this.historyLoader != null) {
+            this.historyLoader.interrupt();
+        }
+        if (this.flusher != null) {
+            this.flusher.interrupt();
+        }
+        if (this.searchIndex != null) {
+            this.searchIndex.close();
+        }
+        try {
+            if (this.blockRecords > 0) {
+                this.flush();
+            }
+            this.force();
+            this.segment.close();
+            this.index.close();
+        } catch (IOException e) {
+            HyRC.log().warning("Could not close archive " + this.directory, e);
+        }
+        this.deflater.end();
+    }
+
+    /**
+     * Writes the pending block if it has waited for the flush interval,
+     * and forces written blocks to disk.
+     *
+     * @return nanoseconds until the pending block is due, or the flush
+     * interval if there is none
+     * @throws IOException if writing fails
+     */
+    synchronized long flushIfDue() throws IOException {
+        if (this.closed) {
+            return this.flushNanos;
+        }
+        if (this.blockRecords > 0) {
+            long waited = System.nanoTime() - this.blockStarted;
+            if (waited < this.flushNanos) {
+                this.force();
+                return this.flushNanos - waited;
+            }
+            this.flush();
+        }
+        this.force();
+        return this.flushNanos;
+    }
+
+    private void flushLoop() {
+        long waitNanos = this.flushNanos;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(1_000_000L, waitNanos));
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                waitNanos = this.flushIfDue();
+            } catch (IOException e) {
+                HyRC.log().warning("Could not flush archive " + this.directory, e);
+                waitNanos = this.flushNanos;
+            }
+        }
+    }
+
+    private void force() throws IOException {
+        if (this.unforced) {
+            this.segment.force(false);
+            this.index.force(false);
+            this.unforced = false;
+        }
+    }
+
+    private boolean encode(long timestamp, @NonNull TargetedMessage message) {
+        final int start = this.block.position();
+        if (this.block.remaining() < RECORD_HEADER) {
+            return false;
+        }
+        try {
+            this.block.position(start + RECORD_HEADER);
+            MessageCodec.encode(message, this.block);
+            this.block.putInt(start, this.block.position() - start - RECORD_HEADER);
+            this.block.putLong(start + 4, timestamp);
+            return true;
+        } catch (BufferOverflowException e) {
+            this.block.position(start);
+            return false;
+        }
+    }
+
+    private void flush() throws IOException {
+        final int rawLength = this.block.position();
+        this.deflater.reset();
+        this.deflater.setInput(this.block.array(), 0, rawLength);
+        this.deflater.finish();
+        int compressedLength = 0;
+        while (!this.deflater.finished()) {
+            if (compressedLength == this.compressed.length) {
+                byte[] larger = new byte[this.compressed.length * 2];
+                System.arraycopy(this.compressed, 0, larger, 0, compressedLength);
+                this.compressed = larger;
+            }
+            compressedLength += this.deflater.deflate(this.compressed, compressedLength, this.compressed.length - compressedLength);
+        }
+        final long offset = this.segmentPosition;
+        ByteBuffer data = ByteBuffer.wrap(this.compressed, 0, compressedLength);
+        while (data.hasRemaining()) {
+            this.segmentPosition += this.segment.write(data, this.segmentPosition);
+        }
+        Block block = new Block(this.segmentId, offset, compressedLength, rawLength, this.blockFirstTime, this.blockLastTime, this.blockEndpoints, this.blockFirstRecord, this.blockRecords);
+        this.indexEntry.clear();
+        this.indexEntry.putLong(block.firstTime).putLong(block.lastTime).putLong(block.offset).putLong(block.endpoints);
+        this.indexEntry.putInt(block.compressedLength).putInt(block.rawLength).putLong(block.firstRecord).putInt(block.records).putInt(0);
+        this.indexEntry.flip();
+        while (this.indexEntry.hasRemaining()) {
+            this.index.write(this.indexEntry);
+        }
+        this.blocks.add(block);
+        this.unforced = true;
+
+        this.block.clear();
+        if (this.block.capacity() > this.blockSize) {
+            this.block = ByteBuffer.allocate(this.blockSize);
+        }
+        this.blockRecords = 0;
+        this.blockEndpoints = 0;
+        if (this.segmentPosition >= this.segmentSize) {
+            this.force();
+            this.segment.close();
+            this.index.close();
+            this.openSegment(this.segmentId + 1);
+        }
+    }
+
+    private void scan(@NonNull List<Block> blocks, @NonNull RecordVisitor visitor) throws IOException {
+        Inflater inflater = new Inflater();
+        FileChannel channel = null;
+        int channelSegment = -1;
+        try {
+            for (Block block : blocks) {
+                if (block.segment != channelSegment) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    channel = FileChannel.open(this.segmentFile(block.segment).toPath(), StandardOpenOption.READ);
+                    channelSegment = block.segment;
+                }
+                ByteBuffer raw = inflate(channel, block, inflater);
+                long record = block.firstRecord;
+                while (raw.remaining() >= RECORD_HEADER) {
+                    int length = raw.getInt();
+                    long timestamp = raw.getLong();
+                    int next = raw.position() + length;
+                    ByteBuffer payload = raw.duplicate();
+                    payload.limit(next);
+                    visitor.visit(record++, timestamp, payload);
+                    raw.position(next);
+                }
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new IOException("Corrupt archive block", e);
+        } finally {
+            inflater.end();
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private void loadHistory(@NonNull List<Block> history) {
+        MessageIndex.History loader = this.searchIndex.loadHistory();
+        try {
+            // Sources can only be looked up once every endpoint is loaded
+            while (this.endpoints.apply(this.target.getName()) == null) {
+                Thread.sleep(100);
+            }
+            for (int i = 0; i < history.size() && !Thread.currentThread().isInterrupted(); i++) {
+                this.scan(history.subList(i, i + 1), (record, timestamp, payload) -> {
+                    TargetedMessage message = MessageCodec.decode(payload, this.target, this.endpoints);
+                    if (message != null) {
+                        loader.add(record, timestamp, message.getOriginatingMessage().getSource().getName(), text(message, Endpoint.MESSAGE_TEXT), text(message, Endpoint.SENDER_NAME));
+                    }
+                });
+            }
+        } catch (InterruptedException ignored) {
+            return;
+        } catch (IOException e) {
+            HyRC.log().warning("Could not index archive history in " + this.directory, e);
+        }
+        loader.finish();
+    }
+
+    private int blockOf(long record) {
+        int low = 0;
+        int high = this.blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (this.blocks.get(middle).firstRecord <= record) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static @Nullable String text(@NonNull TargetedMessage message, @NonNull String key) {
+        Object value = message.getCustomData().get(key);
+        return (value == null) ? null : value.toString();
+    }
+
+    private int firstBlock(long from) {
+        int low = 0;
+        int high = this.blocks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.blocks.get(middle).lastTime < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static @NonNull ByteBuffer inflate(@NonNull FileChannel channel, @NonNull Block block, @NonNull Inflater inflater) throws IOException, DataFormatException {
+        ByteBuffer compressed = ByteBuffer.allocate(block.compressedLength);
+        while (compressed.hasRemaining()) {
+            if (channel.read(compressed, block.offset + compressed.position()) < 0) {
+                throw new IOException("Archive segment truncated");
+            }
+        }
+        byte[] raw = new byte[block.rawLength];
+        inflater.reset();
+        inflater.setInput(compressed.array());
+        int length = 0;
+        while (length < raw.length && !inflater.finished()) {
+            int inflated = inflater.inflate(raw, length, raw.length - length);
+            if (inflated == 0 && inflater.needsInput()) {
+                throw new DataFormatException("Block ends early");
+            }
+            length += inflated;
+        }
+        return ByteBuffer.wrap(raw, 0, length);
+    }
+
+    private static long endpointBit(@NonNull String endpoint) {
+        return 1L << (endpoint.hashCode() & 63);
+    }
+
+    private void openSegment(int id) throws IOException {
+        this.segmentId = id;
+        this.segment = FileChannel.open(this.segmentFile(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index = FileChannel.open(this.indexFile(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index.position(this.index.size());
+        this.segmentPosition = this.segment.size();
+    }
+
+    private void loadIndex(int id) throws IOException {
+        File file = this.indexFile(id);
+        if (!file.exists()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer entries = ByteBuffer.allocate((int) (channel.size() / INDEX_ENTRY * INDEX_ENTRY));
+            while (entries.hasRemaining() && channel.read(entries) >= 0) {
+                // Keep reading
+            }
+            entries.flip();
+            while (entries.remaining() >= INDEX_ENTRY) {
+                long firstTime = entries.getLong();
+                long lastTime = entries.getLong();
+                long offset = entries.getLong();
+                long endpoints = entries.getLong();
+                int compressedLength = entries.getInt();
+                int rawLength = entries.getInt();
+                long firstRecord = entries.getLong();
+                int records = entries.getInt();
+                entries.getInt();
+                this.blocks.add(new Block(id, offset, compressedLength, rawLength, firstTime, lastTime, endpoints, firstRecord, records));
+            }
+        }
+    }
+
+    private @NonNull TreeMap<Integer, File> listSegments() {
+        TreeMap<Integer, File> segments = new TreeMap<>();
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException ignored) {
+                        // Not ours
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    private @NonNull File segmentFile(int id) {
+        return new File(this.directory, String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private @NonNull File indexFile(int id) {
+        return new File(this.directory, String.format("%s%010d%s", SEGMENT_PREFIX, id, INDEX_SUFFIX));
+    }
+}
@@ -0,0 +1,617 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.archive;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Inverted index over the text and sender of archived messages.
+ * <p/>
+ * New messages go into a small in-memory live segment. Once it holds
+ * enough messages it is frozen and replaced, and a background thread turns
+ * frozen segments into immutable sorted segments, merging runs of similar
+ * sized neighbours. Ingest only ever touches the live segment. Segments
+ * stay in message order, so each covers a time range and can be skipped
+ * by queries outside it.
+ * <p/>
+ * Postings hold word positions, so phrases can be matched without
+ * reading the archive. Words are lowercased runs of letters and digits.
+ */
+public final class MessageIndex {
+    /**
+     * Indexed fields.
+     */
+    public enum Field {
+        /**
+         * {@link org.kitteh.hyrc.endpoint.Endpoint#MESSAGE_TEXT}.
+         */
+        TEXT('t'),
+        /**
+         * {@link org.kitteh.hyrc.endpoint.Endpoint#SENDER_NAME}.
+         */
+        SENDER('s');
+
+        private final char prefix;
+
+        Field(char prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * A matching message.
+     */
+    public static final class Hit {
+        private final long record;
+        private final long timestamp;
+        private final String endpoint;
+
+        private Hit(long record, long timestamp, @NonNull String endpoint) {
+            this.record = record;
+            this.timestamp = timestamp;
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Gets the archive record number of the message.
+         *
+         * @return record number
+         */
+        public long getRecord() {
+            return this.record;
+        }
+
+        /**
+         * Gets when the message was archived.
+         *
+         * @return timestamp in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        /**
+         * Gets the name of the message's source endpoint.
+         *
+         * @return endpoint name
+         */
+        public @NonNull String getEndpoint() {
+            return this.endpoint;
+        }
+    }
+
+    /**
+     * Indexes messages archived before the index was opened, which are
+     * added in front of everything indexed live.
+     */
+    final class History {
+        private final List<Docs> segments = new LinkedList<>();
+        private Live live = new Live();
+
+        void add(long record, long timestamp, @NonNull String endpoint, @Nullable String text, @Nullable String sender) {
+            this.live.add(record, timestamp, MessageIndex.this.endpointId(endpoint), text, sender);
+            if (this.live.size() >= SEAL_DOCS) {
+                this.segments.add(new Segment(this.live));
+                this.live = new Live();
+            }
+        }
+
+        void finish() {
+            if (this.live.size() > 0) {
+                this.segments.add(new Segment(this.live));
+            }
+            synchronized (MessageIndex.this.segmentsLock) {
+                List<Docs> updated = new ArrayList<>(this.segments);
+                updated.addAll(MessageIndex.this.segments);
+                MessageIndex.this.segments = Collections.unmodifiableList(updated);
+            }
+            MessageIndex.this.complete = true;
+            MessageIndex.this.wake();
+        }
+    }
+
+    /**
+     * A set of indexed messages, numbered in message order from zero.
+     */
+    private interface Docs {
+        int size();
+
+        long record(int doc);
+
+        long timestamp(int doc);
+
+        int endpoint(int doc);
+
+        /**
+         * Gets postings for a term, as repeated runs of document number,
+         * position count and positions.
+         *
+         * @param term field-prefixed term
+         * @return postings or null if the term does not occur
+         */
+        int @Nullable [] postings(@NonNull String term);
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        int @NonNull [] toArray() {
+            return Arrays.copyOf(this.values, this.size);
+        }
+    }
+
+    private static final class Live implements Docs {
+        private final Map<String, IntList> postings = new HashMap<>();
+        private long[] records = new long[64];
+        private long[] timestamps = new long[64];
+        private int[] endpoints = new int[64];
+        private int size;
+
+        void add(long record, long timestamp, int endpoint, @Nullable String text, @Nullable String sender) {
+            if (this.size == this.records.length) {
+                this.records = Arrays.copyOf(this.records, this.size * 2);
+                this.timestamps = Arrays.copyOf(this.timestamps, this.size * 2);
+                this.endpoints = Arrays.copyOf(this.endpoints, this.size * 2);
+            }
+            int doc = this.size++;
+            this.records[doc] = record;
+            this.timestamps[doc] = timestamp;
+            this.endpoints[doc] = endpoint;
+            Map<String, IntList> positions = new HashMap<>();
+            tokenize(Field.TEXT, text, positions);
+            tokenize(Field.SENDER, sender, positions);
+            for (Map.Entry<String, IntList> entry : positions.entrySet()) {
+                IntList list = this.postings.computeIfAbsent(entry.getKey(), k -> new IntList());
+                IntList termPositions = entry.getValue();
+                list.add(doc);
+                list.add(termPositions.size);
+                for (int i = 0; i < termPositions.size; i++) {
+                    list.add(termPositions.values[i]);
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public long record(int doc) {
+            return this.records[doc];
+        }
+
+        @Override
+        public long timestamp(int doc) {
+            return this.timestamps[doc];
+        }
+
+        @Override
+        public int endpoint(int doc) {
+            return this.endpoints[doc];
+        }
+
+        @Override
+        public int @Nullable [] postings(@NonNull String term) {
+            IntList list = this.postings.get(term);
+            return (list == null) ? null : list.toArray();
+        }
+    }
+
+    private static final class Segment implements Docs {
+        private final String[] terms;
+        private final int[][] postings;
+        private final long[] records;
+        private final long[] timestamps;
+        private final int[] endpoints;
+
+        private Segment(@NonNull Live live) {
+            this.terms = live.postings.keySet().toArray(new String[0]);
+            Arrays.sort(this.terms);
+            this.postings = new int[this.terms.length][];
+            for (int i = 0; i < this.terms.length; i++) {
+                this.postings[i] = live.postings.get(this.terms[i]).toArray();
+            }
+            this.records = Arrays.copyOf(live.records, live.size);
+            this.timestamps = Arrays.copyOf(live.timestamps, live.size);
+            this.endpoints = Arrays.copyOf(live.endpoints, live.size);
+        }
+
+        private Segment(@NonNull List<Segment> merging) {
+            Map<String, IntList> merged = new HashMap<>();
+            int size = 0;
+            for (Segment segment : merging) {
+                size += segment.size();
+            }
+            this.records = new long[size];
+            this.timestamps = new long[size];
+            this.endpoints = new int[size];
+            int base = 0;
+            for (Segment segment : merging) {
+                System.arraycopy(segment.records, 0, this.records, base, segment.size());
+                System.arraycopy(segment.timestamps, 0, this.timestamps, base, segment.size());
+                System.arraycopy(segment.endpoints, 0, this.endpoints, base, segment.size());
+                for (int t = 0; t < segment.terms.length; t++) {
+                    IntList list = merged.computeIfAbsent(segment.terms[t], k -> new IntList());
+                    int[] postings = segment.postings[t];
+                    for (int i = 0; i < postings.length; ) {
+                        int count = postings[i + 1];
+                        list.add(postings[i] + base);
+                        for (int j = 1; j < 2 + count; j++) {
+                            list.add(postings[i + j]);
+                        }
+                        i += 2 + count;
+                    }
+                }
+                base += segment.size();
+            }
+            this.terms = merged.keySet().toArray(new String[0]);
+            Arrays.sort(this.terms);
+            this.postings = new int[this.terms.length][];
+            for (int i = 0; i < this.terms.length; i++) {
+                this.postings[i] = merged.get(this.terms[i]).toArray();
+            }
+        }
+
+        @Override
+        public int size() {
+            return this.records.length;
+        }
+
+        @Override
+        public long record(int doc) {
+            return this.records[doc];
+        }
+
+        @Override
+        public long timestamp(int doc) {
+            return this.timestamps[doc];
+        }
+
+        @Override
+        public int endpoint(int doc) {
+            return this.endpoints[doc];
+        }
+
+        @Override
+        public int @Nullable [] postings(@NonNull String term) {
+            int index = Arrays.binarySearch(this.terms, term);
+            return (index < 0) ? null : this.postings[index];
+        }
+    }
+
+    private static final int SEAL_DOCS = 4096;
+    private static final int MERGE_FACTOR = 4;
+
+    private final Map<String, Integer> endpointIds = new ConcurrentHashMap<>();
+    private final List<String> endpointNames = new CopyOnWriteArrayList<>();
+    private final Object liveLock = new Object();
+    private final Object segmentsLock = new Object();
+    private final Thread maintainer;
+    private Live live = new Live();
+    private volatile List<Docs> segments = Collections.emptyList();
+    private volatile boolean complete;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param name name for the maintenance thread
+     * @param history true if history will be loaded through {@link
+     * #loadHistory()}
+     */
+    MessageIndex(@NonNull String name, boolean history) {
+        this.complete = !history;
+        this.maintainer = new Thread(this::maintain, "HyRC index - " + name);
+        this.maintainer.setDaemon(true);
+        this.maintainer.start();
+    }
+
+    /**
+     * Gets if all archived messages are indexed. Messages archived before
+     * the index was opened are indexed in the background.
+     *
+     * @return false while history is still being indexed
+     */
+    public boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * Finds messages containing a word or phrase.
+     *
+     * @param field field to search
+     * @param query one or more words, matched as a phrase
+     * @param endpoint source endpoint name to match, or null for all
+     * @param from start of range, inclusive, in milliseconds since the epoch
+     * @param to end of range, exclusive, in milliseconds since the epoch
+     * @param limit maximum number of hits, keeping the most recent
+     * @return hits, oldest first
+     */
+    public @NonNull List<Hit> search(@NonNull Field field, @NonNull String query, @Nullable String endpoint, long from, long to, int limit) {
+        Map<String, IntList> words = new HashMap<>();
+        List<String> terms = new ArrayList<>();
+        tokenize(field, query, words);
+        for (Map.Entry<String, IntList> entry : words.entrySet()) {
+            for (int i = 0; i < entry.getValue().size; i++) {
+                int position = entry.getValue().values[i];
+                while (terms.size() <= position) {
+                    terms.add(null);
+                }
+                terms.set(position, entry.getKey());
+            }
+        }
+        int endpointId = -1;
+        if (endpoint != null) {
+            Integer id = this.endpointIds.get(endpoint);
+            if (id == null) {
+                return Collections.emptyList();
+            }
+            endpointId = id;
+        }
+        if (terms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        LinkedList<Hit> hits = new LinkedList<>();
+        synchronized (this.liveLock) {
+            this.search(this.live, terms, endpointId, from, to, limit, hits);
+        }
+        List<Docs> segments = this.segments;
+        for (int i = segments.size() - 1; i >= 0 && hits.size() < limit; i--) {
+            this.search(segments.get(i), terms, endpointId, from, to, limit - hits.size(), hits);
+        }
+        return new ArrayList<>(hits);
+    }
+
+    /**
+     * Indexes a newly archived message.
+     *
+     * @param record archive record number
+     * @param timestamp archive timestamp
+     * @param endpoint source endpoint name
+     * @param text message text
+     * @param sender sender name
+     */
+    void add(long record, long timestamp, @NonNull String endpoint, @Nullable String text, @Nullable String sender) {
+        int endpointId = this.endpointId(endpoint);
+        Live frozen = null;
+        synchronized (this.liveLock) {
+            this.live.add(record, timestamp, endpointId, text, sender);
+            if (this.live.size() >= SEAL_DOCS) {
+                frozen = this.live;
+                this.live = new Live();
+                synchronized (this.segmentsLock) {
+                    List<Docs> updated = new ArrayList<>(this.segments);
+                    updated.add(frozen);
+                    this.segments = Collections.unmodifiableList(updated);
+                }
+            }
+        }
+        if (frozen != null) {
+            this.wake();
+        }
+    }
+
+    /**
+     * Starts indexing history.
+     *
+     * @return history loader
+     */
+    @NonNull History loadHistory() {
+        return new History();
+    }
+
+    /**
+     * Stops background maintenance.
+     */
+    void close() {
+        this.maintainer.interrupt();
+    }
+
+    int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    private int endpointId(@NonNull String endpoint) {
+        Integer id = this.endpointIds.get(endpoint);
+        if (id == null) {
+            synchronized (this.endpointNames) {
+                id = this.endpointIds.get(endpoint);
+                if (id == null) {
+                    id = this.endpointNames.size();
+                    this.endpointNames.add(endpoint);
+                    this.endpointIds.put(endpoint, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    private void search(@NonNull Docs docs, @NonNull List<String> terms, int endpoint, long from, long to, int limit, @NonNull LinkedList<Hit> hits) {
+        int size = docs.size();
+        if (size == 0 || docs.timestamp(0) >= to || docs.timestamp(size - 1) < from) {
+            return;
+        }
+        int[][] postings = new int[terms.size()][];
+        for (int i = 0; i < postings.length; i++) {
+            if (terms.get(i) == null || (postings[i] = docs.postings(terms.get(i))) == null) {
+                return;
+            }
+        }
+        int[] cursors = new int[postings.length];
+        List<Hit> found = new ArrayList<>();
+        candidates:
+        for (int c = 0; c < postings[0].length; c += 2 + postings[0][c + 1]) {
+            final int doc = postings[0][c];
+            for (int i = 1; i < postings.length; i++) {
+                while (cursors[i] < postings[i].length && postings[i][cursors[i]] < doc) {
+                    cursors[i] += 2 + postings[i][cursors[i] + 1];
+                }
+                if (cursors[i] >= postings[i].length) {
+                    break candidates;
+                }
+                if (postings[i][cursors[i]] != doc) {
+                    continue candidates;
+                }
+            }
+            long timestamp = docs.timestamp(doc);
+            if (timestamp < from || timestamp >= to || (endpoint >= 0 && docs.endpoint(doc) != endpoint)) {
+                continue;
+            }
+            if (postings.length > 1 && !isPhrase(postings, c, cursors)) {
+                continue;
+            }
+            found.add(new Hit(docs.record(doc), timestamp, this.endpointNames.get(docs.endpoint(doc))));
+        }
+        for (int i = found.size() - 1; i >= 0 && limit > 0; i--, limit--) {
+            hits.addFirst(found.get(i));
+        }
+    }
+
+    private static boolean isPhrase(int[] @NonNull [] postings, int first, int @NonNull [] cursors) {
+        int count = postings[0][first + 1];
+        starts:
+        for (int p = 0; p < count; p++) {
+            int start = postings[0][first + 2 + p];
+            for (int i = 1; i < postings.length; i++) {
+                int offset = cursors[i] + 2;
+                if (Arrays.binarySearch(postings[i], offset, offset + postings[i][cursors[i] + 1], start + i) < 0) {
+                    continue starts;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void wake() {
+        synchronized (this.maintainer) {
+            this.maintainer.notify();
+        }
+    }
+
+    private void maintain() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                while (this.maintainOnce()) {
+                    // Keep going while there is work
+                }
+                synchronized (this.maintainer) {
+                    this.maintainer.wait(60_000);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                HyRC.log().warning("Could not maintain archive index", e);
+            }
+        }
+    }
+
+    /**
+     * Seals one frozen live segment or merges one run of segments.
+     *
+     * @return true if anything was done
+     */
+    private boolean maintainOnce() {
+        List<Docs> current = this.segments;
+        for (int i = 0; i < current.size(); i++) {
+            if (current.get(i) instanceof Live) {
+                return this.replace(current, i, 1, new Segment((Live) current.get(i)));
+            }
+        }
+        for (int i = 0; i + MERGE_FACTOR <= current.size(); i++) {
+            int min = Integer.MAX_VALUE;
+            int max = 0;
+            for (int j = i; j < i + MERGE_FACTOR; j++) {
+                min = Math.min(min, current.get(j).size());
+                max = Math.max(max, current.get(j).size());
+            }
+            if (max <= min * MERGE_FACTOR) {
+                List<Segment> merging = new ArrayList<>(MERGE_FACTOR);
+                for (int j = i; j < i + MERGE_FACTOR; j++) {
+                    merging.add((Segment) current.get(j));
+                }
+                return this.replace(current, i, MERGE_FACTOR, new Segment(merging));
+            }
+        }
+        return false;
+    }
+
+    private boolean replace(@NonNull List<Docs> expected, int start, int count, @NonNull Segment replacement) {
+        synchronized (this.segmentsLock) {
+            List<Docs> current = this.segments;
+            // History may have been put in front meanwhile, so find the run again
+            int at = 0;
+            while (at < current.size() && current.get(at) != expected.get(start)) {
+                at++;
+            }
+            if (at + count > current.size()) {
+                return true;
+            }
+            List<Docs> updated = new ArrayList<>(current.subList(0, at));
+            updated.add(replacement);
+            updated.addAll(current.subList(at + count, current.size()));
+            this.segments = Collections.unmodifiableList(updated);
+            return true;
+        }
+    }
+
+    private static void tokenize(@NonNull Field field, @Nullable String text, @NonNull Map<String, IntList> positions) {
+        if (text == null) {
+            return;
+        }
+        int position = 0;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                String term = field.prefix + text.substring(start, i).toLowerCase(Locale.ROOT);
+                positions.computeIfAbsent(term, k -> new IntList()).add(position++);
+                start = -1;
+            }
+        }
+    }
+}
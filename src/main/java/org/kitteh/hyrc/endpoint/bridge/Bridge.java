@@ -0,0 +1,327 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.bridge;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.Message;
+import org.kitteh.hyrc.endpoint.MessageCodec;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Links this HyRC instance with others over TCP.
+ * <p/>
+ * A bridge either listens for any number of remote instances or connects
+ * to one, reconnecting when the connection drops. Messages sent are
+ * encoded once and queued for every remote instance until acknowledged,
+ * for at-least-once delivery across reconnects. A listening bridge keeps
+ * the queue of a disconnected instance for the session timeout.
+ * <p/>
+ * Received messages keep their origin and gain a hop, so loop protection
+ * works across instances.
+ * <p/>
+ * Both ends must share a secret, proven during the handshake before any
+ * messages flow. Idle connections exchange heartbeats, and a connection
+ * that hears nothing for three heartbeat intervals is closed.
+ */
+public final class Bridge {
+    private final Endpoint endpoint;
+    private final Consumer<Message> sink;
+    private final byte[] secret;
+    private final int batchSize;
+    private final int maxMessageBytes;
+    private final int maxUnacknowledged;
+    private final long reconnectMillis;
+    private final long sessionTimeoutMillis;
+    private final long heartbeatMillis;
+    private final long sessionId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final Map<Long, BridgePeer> peers = new ConcurrentHashMap<>();
+    private final Set<BridgeConnection> connections = new CopyOnWriteArraySet<>();
+    private @Nullable BridgePeer remote;
+    private @Nullable ServerSocket server;
+    private @Nullable Thread thread;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private volatile boolean closed;
+
+    /**
+     * Creates a bridge, which does nothing until told to listen or
+     * connect.
+     *
+     * @param endpoint endpoint received messages come from
+     * @param sink accepts received messages
+     * @param secret secret shared with the remote instances
+     * @param batchSize most messages per frame
+     * @param maxMessageBytes largest encoded message sent or accepted
+     * @param maxUnacknowledged most messages queued per remote instance,
+     * beyond which the oldest are dropped
+     * @param reconnectMillis delay between connection attempts
+     * @param sessionTimeoutMillis how long a listening bridge queues for a
+     * disconnected instance
+     * @param heartbeatMillis idle time before sending a heartbeat
+     */
+    public Bridge(@NonNull Endpoint endpoint, @NonNull Consumer<Message> sink, @NonNull String secret, int batchSize, int maxMessageBytes, int maxUnacknowledged, long reconnectMillis, long sessionTimeoutMillis, long heartbeatMillis) {
+        this.endpoint = endpoint;
+        this.sink = sink;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.batchSize = batchSize;
+        this.maxMessageBytes = maxMessageBytes;
+        this.maxUnacknowledged = maxUnacknowledged;
+        this.reconnectMillis = reconnectMillis;
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * Starts listening for remote instances.
+     *
+     * @param address address to bind
+     * @return the bound port
+     * @throws IOException if unable to bind
+     */
+    public int listen(@NonNull InetSocketAddress address) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.bind(address);
+        this.server = server;
+        this.thread = new Thread(this::accept, "HyRC bridge - " + this.endpoint.getName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+        return server.getLocalPort();
+    }
+
+    /**
+     * Starts connecting to a remote instance.
+     *
+     * @param address remote address
+     */
+    public void connect(@NonNull InetSocketAddress address) {
+        this.remote = new BridgePeer();
+        this.thread = new Thread(() -> this.connectLoop(address), "HyRC bridge - " + this.endpoint.getName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Sends a message to all remote instances.
+     *
+     * @param message message, as filtered for the bridge endpoint
+     */
+    public void send(@NonNull TargetedMessage message) {
+        Message originating = message.getOriginatingMessage();
+        Map<String, Object> data = new HashMap<>(originating.getData());
+        data.putAll(message.getCustomData().getChanges());
+        byte[] encoded = this.encode(new Message(originating.getSource(), message.getCustomMessage(), data, originating.getOriginInstance(), originating.getOrigin(), originating.getHops()));
+        if (encoded.length > this.maxMessageBytes) {
+            HyRC.log().warning("Bridge " + this.endpoint.getName() + " dropping a message of " + encoded.length + " bytes, over the limit of " + this.maxMessageBytes);
+            return;
+        }
+        if (this.remote != null) {
+            this.offer(this.remote, encoded);
+        }
+        long now = System.currentTimeMillis();
+        Iterator<BridgePeer> iterator = this.peers.values().iterator();
+        while (iterator.hasNext()) {
+            BridgePeer peer = iterator.next();
+            if (peer.isExpired(now, this.sessionTimeoutMillis)) {
+                iterator.remove();
+            } else {
+                this.offer(peer, encoded);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of messages waiting for acknowledgement, across all
+     * remote instances.
+     *
+     * @return unacknowledged message count
+     */
+    public int getUnacknowledged() {
+        int count = (this.remote == null) ? 0 : this.remote.getUnacknowledged();
+        for (BridgePeer peer : this.peers.values()) {
+            count += peer.getUnacknowledged();
+        }
+        return count;
+    }
+
+    /**
+     * Stops listening or connecting and closes all connections.
+     */
+    public void close() {
+        this.closed = true;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+        if (this.server != null) {
+            try {
+                this.server.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+        }
+        this.connections.forEach(BridgeConnection::close);
+    }
+
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    long getSessionId() {
+        return this.sessionId;
+    }
+
+    byte @NonNull [] getSecret() {
+        return this.secret;
+    }
+
+    int getBatchSize() {
+        return this.batchSize;
+    }
+
+    int getMaxMessageBytes() {
+        return this.maxMessageBytes;
+    }
+
+    long getHeartbeatMillis() {
+        return this.heartbeatMillis;
+    }
+
+    @NonNull String getName() {
+        return this.endpoint.getName();
+    }
+
+    @NonNull BridgePeer getPeer(long remoteSession) {
+        return this.peers.computeIfAbsent(remoteSession, id -> new BridgePeer());
+    }
+
+    /**
+     * Passes on a message received from a peer. A message which can't be
+     * read or passed on is logged and dropped, still to be acknowledged,
+     * so the peer doesn't send it again on every reconnect.
+     *
+     * @param encoded encoded message
+     */
+    void receive(@NonNull ByteBuffer encoded) {
+        Message message;
+        try {
+            message = MessageCodec.decode(encoded, name -> this.endpoint);
+        } catch (IllegalArgumentException e) {
+            HyRC.log().warning("Dropping unreadable message from bridge " + this.endpoint.getName(), e);
+            return;
+        }
+        if (message == null) {
+            return;
+        }
+        try {
+            this.sink.accept(new Message(this.endpoint, message.getDefaultMessage(), message.getData(), message));
+        } catch (RuntimeException e) {
+            HyRC.log().warning("Dropping message from bridge " + this.endpoint.getName() + " which could not be queued", e);
+        }
+    }
+
+    private void offer(@NonNull BridgePeer peer, byte @NonNull [] encoded) {
+        if (peer.offer(encoded, this.maxUnacknowledged) && peer.getDropped() % 1000 == 1) {
+            HyRC.log().warning("Bridge " + this.endpoint.getName() + " queue full, dropped " + peer.getDropped() + " messages so far");
+        }
+    }
+
+    private synchronized byte @NonNull [] encode(@NonNull Message message) {
+        while (true) {
+            this.scratch.clear();
+            try {
+                MessageCodec.encode(message, this.scratch);
+                return Arrays.copyOf(this.scratch.array(), this.scratch.position());
+            } catch (BufferOverflowException e) {
+                this.scratch = ByteBuffer.allocate(this.scratch.capacity() * 2);
+            }
+        }
+    }
+
+    private void accept() {
+        while (!this.closed) {
+            try {
+                Socket socket = this.server.accept();
+                BridgeConnection connection = new BridgeConnection(this, socket, null);
+                Thread reader = new Thread(() -> this.run(connection), "HyRC bridge - " + this.endpoint.getName() + " - " + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!this.closed) {
+                    HyRC.log().warning("Bridge " + this.endpoint.getName() + " failed to accept a connection", e);
+                }
+            }
+        }
+    }
+
+    private void connectLoop(@NonNull InetSocketAddress address) {
+        while (!this.closed) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, 10_000);
+                this.run(new BridgeConnection(this, socket, this.remote));
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Retrying anyway
+                }
+            }
+            try {
+                Thread.sleep(this.reconnectMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void run(@NonNull BridgeConnection connection) {
+        this.connections.add(connection);
+        try {
+            if (!this.closed) {
+                connection.run();
+            }
+        } finally {
+            connection.close();
+            this.connections.remove(connection);
+        }
+    }
+}
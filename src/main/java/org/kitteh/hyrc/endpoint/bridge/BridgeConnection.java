@@ -0,0 +1,310 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.bridge;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection to a remote HyRC instance.
+ * <p/>
+ * Frames are an int length followed by a type byte and body. Each side
+ * opens with HELLO carrying its session id and a random nonce, then
+ * proves it knows the shared secret with AUTH, an HMAC of the other
+ * side's nonce and its own session id. Nothing else is read until the
+ * proof checks out, and frames before then are limited to handshake size.
+ * <p/>
+ * DATA carries the sequence number of its first message and a run of
+ * length-prefixed encoded messages. ACK carries the highest sequence
+ * number delivered. PING is sent when the connection has been idle for a
+ * heartbeat interval, and the connection is closed if nothing arrives for
+ * three intervals. Batches are written without waiting for
+ * acknowledgement, so several can be in flight.
+ */
+final class BridgeConnection {
+    static final byte HELLO = 0;
+    static final byte DATA = 1;
+    static final byte ACK = 2;
+    static final byte AUTH = 3;
+    static final byte PING = 4;
+    private static final int NONCE_BYTES = 16;
+    private static final int HELLO_LENGTH = 1 + 8 + NONCE_BYTES;
+    private static final int AUTH_LENGTH = 1 + 32;
+    private static final String MAC = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Bridge bridge;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final int maxFrame;
+    private volatile @Nullable BridgePeer peer;
+    private final @Nullable BridgePeer fixedPeer;
+    private long ackToSend = -1;
+    private byte[] frame = new byte[8192];
+
+    /**
+     * Wraps a connected socket.
+     *
+     * @param bridge owning bridge
+     * @param socket socket
+     * @param fixedPeer the peer state to use, or null to pick by the
+     * remote session id
+     * @throws IOException if the socket cannot be used
+     */
+    BridgeConnection(@NonNull Bridge bridge, @NonNull Socket socket, @Nullable BridgePeer fixedPeer) throws IOException {
+        this.bridge = bridge;
+        this.socket = socket;
+        this.fixedPeer = fixedPeer;
+        this.maxFrame = (int) Math.min(Integer.MAX_VALUE, 1 + 8 + 4 + (long) bridge.getBatchSize() * (4 + bridge.getMaxMessageBytes()));
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, bridge.getHeartbeatMillis() * 3));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+    }
+
+    /**
+     * Runs the connection until it closes, reading on the calling thread
+     * and writing on a new one.
+     */
+    void run() {
+        Thread writer = null;
+        try {
+            long remoteSession = this.handshake();
+            BridgePeer peer = (this.fixedPeer != null) ? this.fixedPeer : this.bridge.getPeer(remoteSession);
+            peer.attach(this, remoteSession);
+            this.peer = peer;
+            writer = new Thread(this::write, Thread.currentThread().getName() + " writer");
+            writer.setDaemon(true);
+            writer.start();
+            this.read(peer);
+        } catch (IOException e) {
+            if (!this.socket.isClosed() && !this.bridge.isClosed()) {
+                HyRC.log().info("Bridge connection to " + this.socket.getRemoteSocketAddress() + " lost: " + e.getMessage());
+            }
+        } finally {
+            this.close();
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wakes the writer as there is something to send.
+     */
+    void wake() {
+        synchronized (this) {
+            this.notify();
+        }
+    }
+
+    void close() {
+        try {
+            this.socket.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+        BridgePeer peer = this.peer;
+        if (peer != null) {
+            peer.detach(this);
+        }
+    }
+
+    private long handshake() throws IOException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        this.out.writeInt(HELLO_LENGTH);
+        this.out.writeByte(HELLO);
+        this.out.writeLong(this.bridge.getSessionId());
+        this.out.write(nonce);
+        this.out.flush();
+
+        ByteBuffer hello = this.readFrame(HELLO_LENGTH);
+        if (hello.remaining() != HELLO_LENGTH || hello.get() != HELLO) {
+            throw new IOException("Expected HELLO");
+        }
+        long remoteSession = hello.getLong();
+        if (remoteSession == this.bridge.getSessionId()) {
+            throw new IOException("Connected to itself");
+        }
+        byte[] remoteNonce = new byte[NONCE_BYTES];
+        hello.get(remoteNonce);
+
+        this.out.writeInt(AUTH_LENGTH);
+        this.out.writeByte(AUTH);
+        this.out.write(this.proof(remoteNonce, this.bridge.getSessionId()));
+        this.out.flush();
+
+        ByteBuffer auth = this.readFrame(AUTH_LENGTH);
+        if (auth.remaining() != AUTH_LENGTH || auth.get() != AUTH) {
+            throw new IOException("Expected AUTH");
+        }
+        byte[] remoteProof = new byte[AUTH_LENGTH - 1];
+        auth.get(remoteProof);
+        if (!MessageDigest.isEqual(remoteProof, this.proof(nonce, remoteSession))) {
+            HyRC.log().warning("Bridge " + this.bridge.getName() + " rejected " + this.socket.getRemoteSocketAddress() + ", the secret does not match");
+            throw new IOException("Secret does not match");
+        }
+        return remoteSession;
+    }
+
+    private byte @NonNull [] proof(byte @NonNull [] nonce, long session) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(new SecretKeySpec(this.bridge.getSecret(), MAC));
+            mac.update(nonce);
+            mac.update(ByteBuffer.allocate(8).putLong(0, session).array());
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to compute " + MAC, e);
+        }
+    }
+
+    private void read(@NonNull BridgePeer peer) throws IOException {
+        while (true) {
+            ByteBuffer frame = this.readFrame(this.maxFrame);
+            byte type = frame.get();
+            if (type == PING) {
+                continue;
+            }
+            if (type == ACK) {
+                require(frame, 8, "ACK");
+                peer.acknowledge(frame.getLong());
+            } else if (type == DATA) {
+                require(frame, 8 + 4, "DATA");
+                long sequence = frame.getLong();
+                int count = frame.getInt();
+                if (count < 0 || count > this.bridge.getBatchSize()) {
+                    throw new IOException("Bad message count " + count);
+                }
+                for (int i = 0; i < count; i++, sequence++) {
+                    require(frame, 4, "DATA");
+                    int length = frame.getInt();
+                    if (length < 0 || length > this.bridge.getMaxMessageBytes() || length > frame.remaining()) {
+                        throw new IOException("Bad message length " + length);
+                    }
+                    ByteBuffer message = frame.duplicate();
+                    message.limit(message.position() + length);
+                    frame.position(frame.position() + length);
+                    if (peer.deliver(sequence)) {
+                        this.bridge.receive(message);
+                    }
+                }
+                synchronized (this) {
+                    this.ackToSend = peer.getLastDelivered();
+                    this.notify();
+                }
+            } else {
+                throw new IOException("Unknown frame type " + type);
+            }
+        }
+    }
+
+    private static void require(@NonNull ByteBuffer frame, int bytes, @NonNull String type) throws IOException {
+        if (frame.remaining() < bytes) {
+            throw new IOException("Truncated " + type + " frame");
+        }
+    }
+
+    private @NonNull ByteBuffer readFrame(int maxLength) throws IOException {
+        int length = this.in.readInt();
+        if (length <= 0 || length > maxLength) {
+            throw new IOException("Bad frame length " + length);
+        }
+        if (length > this.frame.length) {
+            this.frame = new byte[(int) Math.min(maxLength, Math.max(length, this.frame.length * 2L))];
+        }
+        this.in.readFully(this.frame, 0, length);
+        return ByteBuffer.wrap(this.frame, 0, length);
+    }
+
+    private void write() {
+        final BridgePeer peer = this.peer;
+        final long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(this.bridge.getHeartbeatMillis());
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long ack;
+                boolean ping = false;
+                synchronized (this) {
+                    long deadline = System.nanoTime() + heartbeatNanos;
+                    while (this.ackToSend < 0 && !peer.hasUnsent()) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            ping = true;
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                    ack = this.ackToSend;
+                    this.ackToSend = -1;
+                }
+                if (ping) {
+                    this.out.writeInt(1);
+                    this.out.writeByte(PING);
+                }
+                if (ack >= 0) {
+                    this.out.writeInt(9);
+                    this.out.writeByte(ACK);
+                    this.out.writeLong(ack);
+                }
+                BridgePeer.Batch batch;
+                while ((batch = peer.nextBatch(this.bridge.getBatchSize())) != null) {
+                    int length = 1 + 8 + 4;
+                    for (byte[] message : batch.getMessages()) {
+                        length += 4 + message.length;
+                    }
+                    this.out.writeInt(length);
+                    this.out.writeByte(DATA);
+                    this.out.writeLong(batch.getFirstSequence());
+                    this.out.writeInt(batch.getMessages().size());
+                    for (byte[] message : batch.getMessages()) {
+                        this.out.writeInt(message.length);
+                        this.out.write(message);
+                    }
+                }
+                this.out.flush();
+            }
+        } catch (InterruptedException ignored) {
+            // Closing
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.bridge;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * State kept for a remote HyRC instance, surviving reconnects.
+ * <p/>
+ * Outgoing messages are numbered and kept until acknowledged, and resent
+ * in full on each new connection. Incoming messages at or below the last
+ * delivered number are duplicates of resends and are only acknowledged.
+ */
+final class BridgePeer {
+    /**
+     * Messages to send in one frame.
+     */
+    static final class Batch {
+        private final long firstSequence;
+        private final List<byte[]> messages;
+
+        private Batch(long firstSequence, @NonNull List<byte[]> messages) {
+            this.firstSequence = firstSequence;
+            this.messages = messages;
+        }
+
+        long getFirstSequence() {
+            return this.firstSequence;
+        }
+
+        @NonNull List<byte[]> getMessages() {
+            return this.messages;
+        }
+    }
+
+    private final ArrayDeque<byte[]> unacknowledged = new ArrayDeque<>();
+    private long firstSequence = 1;
+    private int sent;
+    private long dropped;
+    private long remoteSession;
+    private long lastDelivered;
+    private @Nullable BridgeConnection connection;
+    private long disconnectedAt = System.currentTimeMillis();
+
+    /**
+     * Queues a message, dropping the oldest unacknowledged one if full.
+     *
+     * @param message encoded message
+     * @param limit most unacknowledged messages to keep
+     * @return true if a message was dropped
+     */
+    boolean offer(byte @NonNull [] message, int limit) {
+        BridgeConnection wake;
+        boolean drop;
+        synchronized (this) {
+            drop = this.unacknowledged.size() >= limit;
+            if (drop) {
+                this.unacknowledged.pollFirst();
+                this.firstSequence++;
+                this.sent = Math.max(0, this.sent - 1);
+                this.dropped++;
+            }
+            this.unacknowledged.add(message);
+            wake = this.connection;
+        }
+        if (wake != null) {
+            wake.wake();
+        }
+        return drop;
+    }
+
+    /**
+     * Forgets messages acknowledged by the remote instance.
+     *
+     * @param sequence highest acknowledged sequence number
+     */
+    synchronized void acknowledge(long sequence) {
+        while (!this.unacknowledged.isEmpty() && this.firstSequence <= sequence) {
+            this.unacknowledged.pollFirst();
+            this.firstSequence++;
+            this.sent = Math.max(0, this.sent - 1);
+        }
+    }
+
+    /**
+     * Takes the next messages not yet sent over the current connection.
+     *
+     * @param limit most messages to take
+     * @return batch, or null if everything has been sent
+     */
+    synchronized @Nullable Batch nextBatch(int limit) {
+        int count = Math.min(limit, this.unacknowledged.size() - this.sent);
+        if (count <= 0) {
+            return null;
+        }
+        List<byte[]> messages = new ArrayList<>(count);
+        Iterator<byte[]> iterator = this.unacknowledged.iterator();
+        for (int i = 0; i < this.sent; i++) {
+            iterator.next();
+        }
+        for (int i = 0; i < count; i++) {
+            messages.add(iterator.next());
+        }
+        Batch batch = new Batch(this.firstSequence + this.sent, messages);
+        this.sent += count;
+        return batch;
+    }
+
+    synchronized boolean hasUnsent() {
+        return this.sent < this.unacknowledged.size();
+    }
+
+    /**
+     * Records that an incoming message is being delivered.
+     *
+     * @param sequence the message's sequence number
+     * @return true if new, false if already delivered
+     */
+    synchronized boolean deliver(long sequence) {
+        if (sequence <= this.lastDelivered) {
+            return false;
+        }
+        this.lastDelivered = sequence;
+        return true;
+    }
+
+    synchronized long getLastDelivered() {
+        return this.lastDelivered;
+    }
+
+    synchronized void attach(@NonNull BridgeConnection connection, long remoteSession) {
+        if (remoteSession != this.remoteSession) {
+            // The other end restarted and numbers from one again
+            this.remoteSession = remoteSession;
+            this.lastDelivered = 0;
+        }
+        this.connection = connection;
+        this.sent = 0;
+    }
+
+    synchronized void detach(@NonNull BridgeConnection connection) {
+        if (this.connection == connection) {
+            this.connection = null;
+            this.disconnectedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized boolean isExpired(long now, long timeoutMillis) {
+        return this.connection == null && (now - this.disconnectedAt) > timeoutMillis;
+    }
+
+    synchronized long getDropped() {
+        return this.dropped;
+    }
+
+    synchronized int getUnacknowledged() {
+        return this.unacknowledged.size();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.defaults;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.EndpointManager;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+import org.kitteh.hyrc.endpoint.archive.MessageArchive;
+import org.kitteh.hyrc.exceptions.HyRCInvalidConfigException;
+import org.kitteh.hyrc.util.loadable.Loadable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * An {@link Endpoint} archiving every message it receives.
+ */
+@Loadable.Type(name = "archive")
+public class ArchiveEndpoint extends Endpoint {
+    private MessageArchive archive;
+    private final HyRC plugin;
+
+    public ArchiveEndpoint(HyRC plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Gets the archive written by this endpoint.
+     *
+     * @return archive
+     */
+    public @NonNull MessageArchive getArchive() {
+        return this.archive;
+    }
+
+    @Override
+    protected void receiveMessage(@NonNull TargetedMessage message) {
+        try {
+            this.archive.append(message);
+        } catch (IOException e) {
+            HyRC.log().warning("Could not archive message to " + this.getName(), e);
+        }
+    }
+
+    private @Nullable Endpoint getEndpoint(@NonNull String name) {
+        // Null until all endpoints are loaded
+        EndpointManager manager = this.plugin.getEndpointManager();
+        return (manager == null) ? null : manager.getEndpoint(name);
+    }
+
+    @Override
+    protected void loadExtra(@NonNull ConfigurationNode data) throws HyRCInvalidConfigException {
+        File directory = new File(this.plugin.getDataFolder(), data.getNode("directory").getString("archive/" + this.getName()));
+        int blockSize = Math.max(4096, data.getNode("block-size").getInt(64 * 1024));
+        long segmentSize = Math.max(blockSize, data.getNode("segment-size").getLong(64L * 1024 * 1024));
+        int level = data.getNode("compression-level").getInt(Deflater.BEST_SPEED);
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new HyRCInvalidConfigException("Archive compression-level must be 1 to 9");
+        }
+        long flushMillis = Math.max(0, data.getNode("flush-interval-millis").getLong(5000));
+        boolean searchable = data.getNode("searchable").getBoolean(false);
+        try {
+            this.archive = new MessageArchive(directory, this, this::getEndpoint, blockSize, segmentSize, level, flushMillis, searchable);
+        } catch (IOException e) {
+            throw new HyRCInvalidConfigException("Could not open archive at " + directory + ": " + e.getMessage());
+        }
+        this.plugin.trackShutdownable(this.archive::close);
+    }
+}
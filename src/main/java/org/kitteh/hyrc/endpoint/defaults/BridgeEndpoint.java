@@ -0,0 +1,111 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.defaults;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+import org.kitteh.hyrc.endpoint.bridge.Bridge;
+import org.kitteh.hyrc.exceptions.HyRCInvalidConfigException;
+import org.kitteh.hyrc.util.loadable.Loadable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * An {@link Endpoint} linking to other HyRC instances.
+ * <p/>
+ * Messages received are sent to the other instances, and messages from
+ * them are sent from this endpoint.
+ */
+@Loadable.Type(name = "bridge")
+public class BridgeEndpoint extends Endpoint {
+    private Bridge bridge;
+    private final HyRC plugin;
+
+    public BridgeEndpoint(HyRC plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Gets the bridge.
+     *
+     * @return bridge
+     */
+    public @NonNull Bridge getBridge() {
+        return this.bridge;
+    }
+
+    @Override
+    public boolean isRelaying() {
+        return true;
+    }
+
+    @Override
+    protected void receiveMessage(@NonNull TargetedMessage message) {
+        this.bridge.send(message);
+    }
+
+    @Override
+    protected void loadExtra(@NonNull ConfigurationNode data) throws HyRCInvalidConfigException {
+        final String mode = data.getNode("mode").getString("connect");
+        final int port = data.getNode("port").getInt(-1);
+        if (port < 0 || port > 65535) {
+            throw new HyRCInvalidConfigException("Bridge requires a valid 'port'");
+        }
+        final String secret = data.getNode("secret").getString();
+        if (secret == null || secret.isEmpty()) {
+            throw new HyRCInvalidConfigException("Bridge requires a 'secret' shared with the other instances");
+        }
+        int batchSize = Math.max(1, data.getNode("batch-size").getInt(256));
+        int maxMessageBytes = Math.max(1024, data.getNode("max-message-bytes").getInt(16384));
+        int maxUnacknowledged = Math.max(1, data.getNode("max-unacknowledged").getInt(10000));
+        long reconnectMillis = Math.max(100, data.getNode("reconnect-millis").getLong(5000));
+        long sessionTimeoutMillis = Math.max(0, data.getNode("session-timeout-millis").getLong(300000));
+        long heartbeatMillis = Math.max(100, data.getNode("heartbeat-millis").getLong(10000));
+        this.bridge = new Bridge(this, message -> this.plugin.getEndpointManager().sendMessage(message), secret, batchSize, maxMessageBytes, maxUnacknowledged, reconnectMillis, sessionTimeoutMillis, heartbeatMillis);
+        switch (mode.toLowerCase()) {
+            case "listen":
+                String bind = data.getNode("host").getString("127.0.0.1");
+                try {
+                    this.bridge.listen(new InetSocketAddress(bind, port));
+                } catch (IOException e) {
+                    throw new HyRCInvalidConfigException("Bridge could not listen on port " + port + ": " + e.getMessage());
+                }
+                break;
+            case "connect":
+                String host = data.getNode("host").getString();
+                if (host == null) {
+                    throw new HyRCInvalidConfigException("Bridge requires a 'host' to connect to");
+                }
+                this.bridge.connect(new InetSocketAddress(host, port));
+                break;
+            default:
+                throw new HyRCInvalidConfigException("Bridge 'mode' must be 'listen' or 'connect'");
+        }
+        this.plugin.trackShutdownable(this.bridge::close);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.defaults;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+import org.kitteh.hyrc.endpoint.http.IngestServer;
+import org.kitteh.hyrc.exceptions.HyRCInvalidConfigException;
+import org.kitteh.hyrc.util.loadable.Loadable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * An {@link Endpoint} accepting messages POSTed over HTTP, for webhooks.
+ * <p/>
+ * Messages sent to this endpoint are ignored.
+ */
+@Loadable.Type(name = "http")
+public class HttpEndpoint extends Endpoint {
+    private IngestServer server;
+    private final HyRC plugin;
+
+    public HttpEndpoint(HyRC plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    protected void receiveMessage(@NonNull TargetedMessage message) {
+        // Ingest only
+    }
+
+    @Override
+    protected void loadExtra(@NonNull ConfigurationNode data) throws HyRCInvalidConfigException {
+        final int port = data.getNode("port").getInt(-1);
+        if (port < 0 || port > 65535) {
+            throw new HyRCInvalidConfigException("HTTP endpoint requires a valid 'port'");
+        }
+        String host = data.getNode("host").getString("127.0.0.1");
+        int maxQueued = Math.max(1, data.getNode("max-queued").getInt(10000));
+        int maxBodyBytes = Math.max(1024, data.getNode("max-body-bytes").getInt(1024 * 1024));
+        int threads = Math.max(1, data.getNode("threads").getInt(2));
+        String token = data.getNode("token").getString();
+        try {
+            this.server = new IngestServer(this, messages -> this.plugin.getEndpointManager().sendMessages(messages), () -> this.plugin.getEndpointManager().getQueuedCount(), maxQueued, maxBodyBytes, token, new InetSocketAddress(host, port), threads);
+        } catch (IOException e) {
+            throw new HyRCInvalidConfigException("HTTP endpoint could not bind: " + e.getMessage());
+        }
+        this.server.start();
+        this.plugin.trackShutdownable(this.server::close);
+    }
+}
@@ -67,6 +67,11 @@ public class IRCEndpoint extends Endpoint {
         this.plugin = plugin;
     }
 
+    @Override
+    public boolean isAvailable() {
+        return this.bot.isInChannel(this.channel);
+    }
+
     @Override
     protected void receiveMessage(@NonNull TargetedMessage message) {
         this.bot.sendMessage(this.channel, message.getCustomMessage());
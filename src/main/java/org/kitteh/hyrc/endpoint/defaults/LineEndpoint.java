@@ -0,0 +1,80 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.defaults;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+import org.kitteh.hyrc.endpoint.line.LineServer;
+import org.kitteh.hyrc.exceptions.HyRCInvalidConfigException;
+import org.kitteh.hyrc.util.loadable.Loadable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * An {@link Endpoint} for local tools speaking newline-delimited text over
+ * a TCP port or Unix domain socket.
+ */
+@Loadable.Type(name = "line")
+public class LineEndpoint extends Endpoint {
+    private LineServer server;
+    private final HyRC plugin;
+
+    public LineEndpoint(HyRC plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    protected void receiveMessage(@NonNull TargetedMessage message) {
+        this.server.send(message.getCustomMessage());
+    }
+
+    @Override
+    protected void loadExtra(@NonNull ConfigurationNode data) throws HyRCInvalidConfigException {
+        int pauseAbove = Math.max(1, data.getNode("pause-above-queued").getInt(10000));
+        int maxLineLength = Math.max(64, data.getNode("max-line-length").getInt(8192));
+        int maxPendingBytes = Math.max(maxLineLength, data.getNode("max-pending-bytes").getInt(1024 * 1024));
+        final String path = data.getNode("path").getString();
+        final int port = data.getNode("port").getInt(-1);
+        try {
+            this.server = new LineServer(this, message -> this.plugin.getEndpointManager().sendMessage(message), () -> this.plugin.getEndpointManager().getQueuedCount(), pauseAbove, maxLineLength, maxPendingBytes);
+            if (path != null) {
+                this.server.bind(new File(path));
+            } else if (port >= 0 && port <= 65535) {
+                String host = data.getNode("host").getString("127.0.0.1");
+                this.server.bind(new InetSocketAddress(host, port));
+            } else {
+                throw new HyRCInvalidConfigException("Line endpoint requires a valid 'port' or a socket 'path'");
+            }
+        } catch (IOException e) {
+            throw new HyRCInvalidConfigException("Line endpoint could not bind: " + e.getMessage());
+        }
+        this.server.start();
+        this.plugin.trackShutdownable(this.server::close);
+    }
+}
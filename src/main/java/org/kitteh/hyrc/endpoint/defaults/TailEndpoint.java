@@ -0,0 +1,122 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.defaults;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.Message;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+import org.kitteh.hyrc.endpoint.tail.FileTailer;
+import org.kitteh.hyrc.exceptions.HyRCInvalidConfigException;
+import org.kitteh.hyrc.util.loadable.Loadable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * An {@link Endpoint} following a log file or named pipe, sending each
+ * appended line.
+ * <p/>
+ * Lines may be matched against a pattern with named groups "text" and,
+ * optionally, "sender". Lines not matching are skipped.
+ * <p/>
+ * Messages sent to this endpoint are ignored.
+ */
+@Loadable.Type(name = "tail")
+public class TailEndpoint extends Endpoint {
+    private FileTailer tailer;
+    private @Nullable Pattern pattern;
+    private boolean hasSender;
+    private final HyRC plugin;
+
+    public TailEndpoint(HyRC plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    protected void receiveMessage(@NonNull TargetedMessage message) {
+        // Read only
+    }
+
+    @Override
+    protected void loadExtra(@NonNull ConfigurationNode data) throws HyRCInvalidConfigException {
+        String path = data.getNode("path").getString();
+        if (path == null) {
+            throw new HyRCInvalidConfigException("Tail endpoint requires a 'path'");
+        }
+        String patternString = data.getNode("pattern").getString();
+        if (patternString != null) {
+            try {
+                this.pattern = Pattern.compile(patternString);
+            } catch (PatternSyntaxException e) {
+                throw new HyRCInvalidConfigException("Tail endpoint has an invalid 'pattern': " + e.getDescription());
+            }
+            if (!patternString.contains("(?<text>")) {
+                throw new HyRCInvalidConfigException("Tail endpoint 'pattern' requires a 'text' group");
+            }
+            this.hasSender = patternString.contains("(?<sender>");
+        }
+        int pollMillis = Math.max(10, data.getNode("poll-millis").getInt(250));
+        int maxLineLength = Math.max(64, data.getNode("max-line-length").getInt(8192));
+        int windowSize = Math.max(maxLineLength, data.getNode("window-bytes").getInt(4 * 1024 * 1024));
+        boolean startAtEnd = data.getNode("start-at-end").getBoolean(true);
+        File offsetFile = new File(new File(this.plugin.getDataFolder(), "tail"), this.getName() + ".pos");
+        try {
+            this.tailer = new FileTailer(this.getName(), new File(path), offsetFile, this::line, pollMillis, maxLineLength, windowSize, startAtEnd);
+        } catch (IOException e) {
+            throw new HyRCInvalidConfigException("Tail endpoint could not store its offset: " + e.getMessage());
+        }
+        this.tailer.start();
+        this.plugin.trackShutdownable(this.tailer::close);
+    }
+
+    private void line(@NonNull String line) {
+        String text = line;
+        String sender = null;
+        if (this.pattern != null) {
+            Matcher matcher = this.pattern.matcher(line);
+            if (!matcher.matches()) {
+                return;
+            }
+            text = matcher.group("text");
+            sender = this.hasSender ? matcher.group("sender") : null;
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put(Endpoint.MESSAGE_TEXT, text);
+        String defaultMessage = text;
+        if (sender != null) {
+            data.put(Endpoint.SENDER_NAME, sender);
+            defaultMessage = "<" + sender + "> " + text;
+        }
+        this.plugin.getEndpointManager().sendMessage(new Message(this, defaultMessage, data));
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Accepts messages as JSON over HTTP.
+ * <p/>
+ * A POST body is either a message object or an array of them. Each object
+ * needs a "text", and may have a "sender", a "message" used as the default
+ * message and a "data" object of extra values. Bodies are read as strict
+ * JSON. All messages in a request are queued together, and the response
+ * says how many were accepted. While too many messages are queued for
+ * delivery, or when none of a request's messages could be queued,
+ * requests are answered with 429 so producers back off.
+ * <p/>
+ * Requests are handled by a fixed number of threads with a bounded queue,
+ * past which the server's own thread handles them, slowing down accepting
+ * new requests.
+ */
+public final class IngestServer {
+    private final Endpoint endpoint;
+    private final ToIntFunction<List<Message>> sink;
+    private final IntSupplier queued;
+    private final int maxQueued;
+    private final int maxBodyBytes;
+    private final byte @Nullable [] authorization;
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates and binds a server, which does nothing until started.
+     *
+     * @param endpoint endpoint messages come from
+     * @param sink accepts the messages of each request, returning how many
+     * were queued
+     * @param queued gets the number of messages queued for delivery
+     * @param maxQueued queued message count at which requests are refused
+     * @param maxBodyBytes largest request body accepted
+     * @param token bearer token required of requests, or null for none
+     * @param address address to bind
+     * @param threads request handling threads
+     * @throws IOException if unable to bind
+     */
+    public IngestServer(@NonNull Endpoint endpoint, @NonNull ToIntFunction<List<Message>> sink, @NonNull IntSupplier queued, int maxQueued, int maxBodyBytes, @Nullable String token, @NonNull InetSocketAddress address, int threads) throws IOException {
+        this.endpoint = endpoint;
+        this.sink = sink;
+        this.queued = queued;
+        this.maxQueued = maxQueued;
+        this.maxBodyBytes = maxBodyBytes;
+        this.authorization = (token == null) ? null : ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        this.server = HttpServer.create(address, 0);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threads * 16), runnable -> {
+            Thread thread = new Thread(runnable, "HyRC HTTP - " + endpoint.getName());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+    }
+
+    /**
+     * Starts serving.
+     */
+    public void start() {
+        this.server.start();
+    }
+
+    /**
+     * Gets the bound port.
+     *
+     * @return port
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stops serving.
+     */
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private boolean isAuthorized(@Nullable String header) {
+        // Constant time, so the token can't be guessed a byte at a time
+        return header != null && MessageDigest.isEqual(header.getBytes(StandardCharsets.UTF_8), this.authorization);
+    }
+
+    private void handle(@NonNull HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                this.respond(exchange, 405, "Only POST is accepted");
+                return;
+            }
+            if (this.authorization != null && !this.isAuthorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                this.respond(exchange, 401, "Missing or wrong token");
+                return;
+            }
+            if (this.queued.getAsInt() >= this.maxQueued) {
+                this.tooMany(exchange, "Too many messages queued");
+                return;
+            }
+            byte[] body = this.readBody(exchange.getRequestBody());
+            if (body == null) {
+                this.respond(exchange, 413, "Body larger than " + this.maxBodyBytes + " bytes");
+                return;
+            }
+            List<Message> messages;
+            try {
+                messages = this.parse(body);
+            } catch (IllegalArgumentException e) {
+                this.respond(exchange, 400, "Invalid messages: " + e.getMessage());
+                return;
+            }
+            // The queue may have filled while the body was read
+            if (this.queued.getAsInt() >= this.maxQueued) {
+                this.tooMany(exchange, "Too many messages queued");
+                return;
+            }
+            int accepted = this.sink.applyAsInt(messages);
+            if (accepted == 0 && !messages.isEmpty()) {
+                this.tooMany(exchange, "No messages could be queued");
+                return;
+            }
+            this.respond(exchange, 202, "Accepted " + accepted + " of " + messages.size());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private byte @Nullable [] readBody(@NonNull InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            body.write(buffer, 0, read);
+            if (body.size() > this.maxBodyBytes) {
+                return null;
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private @NonNull List<Message> parse(byte @NonNull [] body) {
+        Object root = JsonReader.read(new String(body, StandardCharsets.UTF_8));
+        List<?> objects;
+        if (root instanceof List) {
+            objects = (List<?>) root;
+        } else if (root instanceof Map) {
+            objects = Collections.singletonList(root);
+        } else {
+            throw new IllegalArgumentException("expected an object or array");
+        }
+        List<Message> messages = new ArrayList<>(objects.size());
+        for (Object object : objects) {
+            if (!(object instanceof Map)) {
+                throw new IllegalArgumentException("expected an array of objects");
+            }
+            Map<?, ?> node = (Map<?, ?>) object;
+            String text = scalar(node.get("text"));
+            if (text == null) {
+                throw new IllegalArgumentException("message without 'text'");
+            }
+            String sender = scalar(node.get("sender"));
+            Map<String, Object> data = new HashMap<>();
+            Object extra = node.get("data");
+            if (extra instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) extra).entrySet()) {
+                    Object value = entry.getValue();
+                    if (value != null && !(value instanceof Map) && !(value instanceof List)) {
+                        data.put(entry.getKey().toString(), value);
+                    }
+                }
+            }
+            data.put(Endpoint.MESSAGE_TEXT, text);
+            if (sender != null) {
+                data.put(Endpoint.SENDER_NAME, sender);
+            }
+            String defaultMessage = scalar(node.get("message"));
+            if (defaultMessage == null) {
+                defaultMessage = (sender == null) ? text : "<" + sender + "> " + text;
+            }
+            messages.add(new Message(this.endpoint, defaultMessage, data));
+        }
+        return messages;
+    }
+
+    private static @Nullable String scalar(@Nullable Object value) {
+        if (value instanceof Map || value instanceof List) {
+            throw new IllegalArgumentException("expected a string, found " + ((value instanceof Map) ? "an object" : "an array"));
+        }
+        return (value == null) ? null : value.toString();
+    }
+
+    private void tooMany(@NonNull HttpExchange exchange, @NonNull String message) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        this.respond(exchange, 429, message);
+    }
+
+    private void respond(@NonNull HttpExchange exchange, int status, @NonNull String message) throws IOException {
+        byte[] bytes = (message + '\n').getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.http;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads strict JSON into maps, lists, strings, numbers, booleans and
+ * nulls.
+ * <p/>
+ * Only JSON as specified is accepted, without the anchors, aliases, tags
+ * and other extras of a YAML parser, and nesting is limited so a small
+ * request can't cost a deep stack. Integers are read as an Integer or Long
+ * where they fit, and other numbers as a Double.
+ */
+final class JsonReader {
+    private static final int MAX_DEPTH = 32;
+
+    private final String json;
+    private int position;
+
+    /**
+     * Reads a JSON document.
+     *
+     * @param json document
+     * @return the value read
+     * @throws IllegalArgumentException if not valid JSON
+     */
+    static @Nullable Object read(@NonNull String json) {
+        JsonReader reader = new JsonReader(json);
+        Object value = reader.readValue(0);
+        reader.skipWhitespace();
+        if (reader.position != json.length()) {
+            throw reader.error("trailing content");
+        }
+        return value;
+    }
+
+    private JsonReader(@NonNull String json) {
+        this.json = json;
+    }
+
+    private @Nullable Object readValue(int depth) {
+        this.skipWhitespace();
+        if (this.position >= this.json.length()) {
+            throw this.error("unexpected end");
+        }
+        char c = this.json.charAt(this.position);
+        switch (c) {
+            case '{':
+                return this.readObject(depth + 1);
+            case '[':
+                return this.readArray(depth + 1);
+            case '"':
+                return this.readString();
+            case 't':
+                this.expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                this.expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                this.expect("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return this.readNumber();
+                }
+                throw this.error("unexpected '" + c + "'");
+        }
+    }
+
+    private @NonNull Map<String, Object> readObject(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw this.error("nested too deeply");
+        }
+        this.position++;
+        Map<String, Object> map = new LinkedHashMap<>();
+        this.skipWhitespace();
+        if (this.peek() == '}') {
+            this.position++;
+            return map;
+        }
+        while (true) {
+            this.skipWhitespace();
+            if (this.peek() != '"') {
+                throw this.error("expected a key");
+            }
+            String key = this.readString();
+            this.skipWhitespace();
+            if (this.peek() != ':') {
+                throw this.error("expected ':'");
+            }
+            this.position++;
+            if (map.containsKey(key)) {
+                throw this.error("duplicate key '" + key + "'");
+            }
+            map.put(key, this.readValue(depth));
+            this.skipWhitespace();
+            char c = this.peek();
+            this.position++;
+            if (c == '}') {
+                return map;
+            }
+            if (c != ',') {
+                throw this.error("expected ',' or '}'");
+            }
+        }
+    }
+
+    private @NonNull List<Object> readArray(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw this.error("nested too deeply");
+        }
+        this.position++;
+        List<Object> list = new ArrayList<>();
+        this.skipWhitespace();
+        if (this.peek() == ']') {
+            this.position++;
+            return list;
+        }
+        while (true) {
+            list.add(this.readValue(depth));
+            this.skipWhitespace();
+            char c = this.peek();
+            this.position++;
+            if (c == ']') {
+                return list;
+            }
+            if (c != ',') {
+                throw this.error("expected ',' or ']'");
+            }
+        }
+    }
+
+    private @NonNull String readString() {
+        this.position++;
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            if (this.position >= this.json.length()) {
+                throw this.error("unterminated string");
+            }
+            char c = this.json.charAt(this.position++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c < 0x20) {
+                throw this.error("control character in string");
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (this.position >= this.json.length()) {
+                throw this.error("unterminated string");
+            }
+            char escaped = this.json.charAt(this.position++);
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append(escaped);
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (this.position + 4 > this.json.length()) {
+                        throw this.error("bad unicode escape");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(this.json.substring(this.position, this.position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw this.error("bad unicode escape");
+                    }
+                    this.position += 4;
+                    break;
+                default:
+                    throw this.error("bad escape '\\" + escaped + "'");
+            }
+        }
+    }
+
+    private @NonNull Number readNumber() {
+        int start = this.position;
+        if (this.peek() == '-') {
+            this.position++;
+        }
+        if (this.peek() == '0') {
+            this.position++;
+        } else if (!this.skipDigits()) {
+            throw this.error("bad number");
+        }
+        boolean integral = true;
+        if (this.peek() == '.') {
+            integral = false;
+            this.position++;
+            if (!this.skipDigits()) {
+                throw this.error("bad number");
+            }
+        }
+        if (this.peek() == 'e' || this.peek() == 'E') {
+            integral = false;
+            this.position++;
+            if (this.peek() == '+' || this.peek() == '-') {
+                this.position++;
+            }
+            if (!this.skipDigits()) {
+                throw this.error("bad number");
+            }
+        }
+        String number = this.json.substring(start, this.position);
+        if (integral) {
+            try {
+                long value = Long.parseLong(number);
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            } catch (NumberFormatException ignored) {
+                // Too large for a long
+            }
+        }
+        return Double.parseDouble(number);
+    }
+
+    private boolean skipDigits() {
+        int start = this.position;
+        while (this.position < this.json.length() && this.json.charAt(this.position) >= '0' && this.json.charAt(this.position) <= '9') {
+            this.position++;
+        }
+        return this.position > start;
+    }
+
+    private void expect(@NonNull String literal) {
+        if (!this.json.startsWith(literal, this.position)) {
+            throw this.error("unexpected token");
+        }
+        this.position += literal.length();
+    }
+
+    private char peek() {
+        return (this.position < this.json.length()) ? this.json.charAt(this.position) : 0;
+    }
+
+    private void skipWhitespace() {
+        while (this.position < this.json.length()) {
+            char c = this.json.charAt(this.position);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            this.position++;
+        }
+    }
+
+    private @NonNull IllegalArgumentException error(@NonNull String problem) {
+        return new IllegalArgumentException(problem + " at " + this.position);
+    }
+}
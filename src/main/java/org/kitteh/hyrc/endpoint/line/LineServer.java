@@ -0,0 +1,390 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.line;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Serves a newline-delimited protocol over TCP or Unix domain sockets.
+ * <p/>
+ * Each line read becomes a message. A line holding a tab is read as the
+ * sender name, a tab and the text. Lines sent are written to every
+ * client. One selector thread handles all clients through direct
+ * buffers.
+ * <p/>
+ * While too many messages are queued for delivery, clients are not read
+ * from, so their writes block once the socket buffers fill. Clients not
+ * reading fast enough lose lines past a per-client pending limit.
+ */
+public final class LineServer {
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer in;
+        private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+        private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingBytes = new AtomicInteger();
+        private boolean discarding;
+
+        private Connection(@NonNull SocketChannel channel, @NonNull SelectionKey key, int maxLineLength) {
+            this.channel = channel;
+            this.key = key;
+            this.in = ByteBuffer.allocateDirect(maxLineLength);
+        }
+    }
+
+    private final Endpoint endpoint;
+    private final Consumer<Message> sink;
+    private final IntSupplier queued;
+    private final int pauseAbove;
+    private final int maxLineLength;
+    private final int maxPendingBytes;
+    private final Selector selector;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final byte[] line;
+    private final Thread thread;
+    private @Nullable ServerSocketChannel server;
+    private @Nullable File socketFile;
+    private boolean paused;
+    private volatile boolean closed;
+
+    /**
+     * Creates a server, which does nothing until bound and started.
+     *
+     * @param endpoint endpoint read messages come from
+     * @param sink accepts read messages
+     * @param queued gets the number of messages queued for delivery
+     * @param pauseAbove queued message count above which reading pauses
+     * @param maxLineLength longest line read, longer ones are discarded
+     * @param maxPendingBytes most bytes waiting to be written to a client
+     * @throws IOException if a selector cannot be opened
+     */
+    public LineServer(@NonNull Endpoint endpoint, @NonNull Consumer<Message> sink, @NonNull IntSupplier queued, int pauseAbove, int maxLineLength, int maxPendingBytes) throws IOException {
+        this.endpoint = endpoint;
+        this.sink = sink;
+        this.queued = queued;
+        this.pauseAbove = pauseAbove;
+        this.maxLineLength = maxLineLength;
+        this.maxPendingBytes = maxPendingBytes;
+        this.line = new byte[maxLineLength];
+        this.selector = Selector.open();
+        this.thread = new Thread(this::select, "HyRC line server - " + endpoint.getName());
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Binds to a TCP address.
+     *
+     * @param address address
+     * @return the bound port
+     * @throws IOException if unable to bind
+     */
+    public int bind(@NonNull InetSocketAddress address) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(address);
+        this.register(server);
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Binds to a Unix domain socket, replacing any existing socket file.
+     * Requires Java 16 or newer.
+     *
+     * @param path socket file path
+     * @throws IOException if unable to bind or unsupported
+     */
+    public void bind(@NonNull File path) throws IOException {
+        ServerSocketChannel server;
+        SocketAddress address;
+        try {
+            // Looked up reflectively as HyRC targets Java 8
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path.getPath());
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            if (e instanceof InvocationTargetException && e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unix domain sockets require Java 16 or newer");
+        }
+        path.delete();
+        server.bind(address);
+        this.socketFile = path;
+        this.register(server);
+    }
+
+    /**
+     * Starts serving.
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Sends a line to all clients.
+     *
+     * @param text line, without line break
+     */
+    public void send(@NonNull String text) {
+        if (this.connections.isEmpty()) {
+            return;
+        }
+        byte[] bytes = (text.replace('\n', ' ').replace('\r', ' ') + '\n').getBytes(StandardCharsets.UTF_8);
+        for (Connection connection : this.connections) {
+            if (connection.pendingBytes.get() + bytes.length > this.maxPendingBytes) {
+                continue;
+            }
+            connection.pendingBytes.addAndGet(bytes.length);
+            connection.pending.add(bytes);
+        }
+        if (this.wakeupPending.compareAndSet(false, true)) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Gets the number of connected clients.
+     *
+     * @return client count
+     */
+    public int getClientCount() {
+        return this.connections.size();
+    }
+
+    /**
+     * Stops serving and disconnects all clients.
+     */
+    public void close() {
+        this.closed = true;
+        try {
+            this.selector.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+        for (Connection connection : this.connections) {
+            this.close(connection);
+        }
+        if (this.server != null) {
+            try {
+                this.server.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+        }
+        if (this.socketFile != null) {
+            this.socketFile.delete();
+        }
+    }
+
+    private void register(@NonNull ServerSocketChannel server) throws IOException {
+        server.configureBlocking(false);
+        server.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.server = server;
+    }
+
+    private void select() {
+        try {
+            while (!this.closed) {
+                this.selector.select(this.paused ? 100 : 1000);
+                this.wakeupPending.set(false);
+                this.checkPause();
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            this.accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable() && !this.paused) {
+                                this.read(connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                this.write(connection);
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() != null) {
+                            this.close((Connection) key.attachment());
+                        }
+                    }
+                }
+                for (Connection connection : this.connections) {
+                    if (!connection.pending.isEmpty()) {
+                        try {
+                            this.write(connection);
+                        } catch (IOException e) {
+                            this.close(connection);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!this.closed) {
+                HyRC.log().warning("Line server " + this.endpoint.getName() + " stopped", e);
+            }
+        }
+    }
+
+    private void checkPause() {
+        boolean pause = this.queued.getAsInt() > this.pauseAbove;
+        if (pause != this.paused) {
+            this.paused = pause;
+            for (Connection connection : this.connections) {
+                this.updateInterest(connection);
+            }
+        }
+    }
+
+    private void updateInterest(@NonNull Connection connection) {
+        if (connection.key.isValid()) {
+            boolean writing = connection.out.position() > 0;
+            connection.key.interestOps((this.paused ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(this.selector, this.paused ? 0 : SelectionKey.OP_READ);
+        Connection connection = new Connection(channel, key, this.maxLineLength);
+        key.attach(connection);
+        this.connections.add(connection);
+    }
+
+    private void read(@NonNull Connection connection) throws IOException {
+        int read = connection.channel.read(connection.in);
+        if (read < 0) {
+            this.close(connection);
+            return;
+        }
+        ByteBuffer in = connection.in;
+        in.flip();
+        int start = 0;
+        for (int i = 0; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                if (connection.discarding) {
+                    connection.discarding = false;
+                } else {
+                    int end = (i > start && in.get(i - 1) == '\r') ? i - 1 : i;
+                    in.position(start);
+                    in.get(this.line, 0, end - start);
+                    this.line(new String(this.line, 0, end - start, StandardCharsets.UTF_8));
+                }
+                start = i + 1;
+            }
+        }
+        in.position(start);
+        in.compact();
+        if (!in.hasRemaining()) {
+            // No line break within the limit
+            connection.discarding = true;
+            in.clear();
+        }
+    }
+
+    private void line(@NonNull String line) {
+        if (line.isEmpty()) {
+            return;
+        }
+        Map<String, Object> data = new HashMap<>();
+        int tab = line.indexOf('\t');
+        String text = (tab < 0) ? line : line.substring(tab + 1);
+        data.put(Endpoint.MESSAGE_TEXT, text);
+        String defaultMessage = text;
+        if (tab > 0) {
+            String sender = line.substring(0, tab);
+            data.put(Endpoint.SENDER_NAME, sender);
+            defaultMessage = "<" + sender + "> " + text;
+        }
+        this.sink.accept(new Message(this.endpoint, defaultMessage, data));
+    }
+
+    private void write(@NonNull Connection connection) throws IOException {
+        ByteBuffer out = connection.out;
+        byte[] next;
+        while ((next = connection.pending.peek()) != null && next.length <= out.remaining()) {
+            connection.pending.poll();
+            connection.pendingBytes.addAndGet(-next.length);
+            out.put(next);
+        }
+        if (next != null && next.length > out.capacity()) {
+            // Too long to ever fit
+            connection.pending.poll();
+            connection.pendingBytes.addAndGet(-next.length);
+        }
+        out.flip();
+        connection.channel.write(out);
+        out.compact();
+        this.updateInterest(connection);
+    }
+
+    private void close(@NonNull Connection connection) {
+        this.connections.remove(connection);
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+    }
+}
@@ -29,6 +29,12 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.kitteh.hyrc.HyRC;
 import org.kitteh.hyrc.endpoint.TargetedMessage;
 import org.kitteh.hyrc.endpoint.filter.Filter;
+import org.kitteh.hyrc.metrics.Counter;
+import org.kitteh.hyrc.metrics.FlightEvents;
+import org.kitteh.hyrc.metrics.Histogram;
+import org.kitteh.hyrc.metrics.Metrics;
+import org.kitteh.hyrc.metrics.Trace;
+import org.kitteh.hyrc.util.loadable.Loadable;
 
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -53,13 +59,53 @@ public class Link {
         }
     }
 
+    private static final class FilterEntry {
+        private final Filter filter;
+        private final String type;
+        private final String stage;
+        private final Histogram time;
+        private final Counter rejections;
+        private final Counter quarantines;
+        private final Counter bypassed;
+        private volatile long quarantinedUntil;
+        private long windowStart;
+        private int errors;
+        private int slowCalls;
+
+        private FilterEntry(@NonNull Filter filter, @NonNull String type, @NonNull String stage, @NonNull Metrics metrics, @NonNull String[] labels) {
+            this.filter = filter;
+            this.type = type;
+            this.stage = stage;
+            this.time = metrics.histogram("hyrc_filter_nanoseconds", labels);
+            this.rejections = metrics.counter("hyrc_filter_rejections_total", labels);
+            this.quarantines = metrics.counter("hyrc_filter_quarantines_total", labels);
+            this.bypassed = metrics.counter("hyrc_filter_bypassed_total", labels);
+        }
+    }
+
     private final String source;
     private final String target;
-    private final List<Filter> filters = new CopyOnWriteArrayList<>();
+    private final List<FilterEntry> filters = new CopyOnWriteArrayList<>();
+    private final Metrics metrics;
+    private final Counter messages;
+    private final FlightEvents flightEvents;
+    private final String description;
+    private final QuarantinePolicy quarantinePolicy;
+    private volatile boolean paused;
 
     public Link(@NonNull HyRC plugin, @NonNull String source, @NonNull String target, @Nullable List<? extends ConfigurationNode> filters) {
+        this(plugin, source, target, filters, QuarantinePolicy.DISABLED);
+    }
+
+    public Link(@NonNull HyRC plugin, @NonNull String source, @NonNull String target, @Nullable List<? extends ConfigurationNode> filters, @NonNull QuarantinePolicy quarantinePolicy) {
+        this.quarantinePolicy = quarantinePolicy;
         this.source = source;
         this.target = target;
+        // Links built without a plugin, as in tests, go unmeasured
+        this.metrics = (plugin == null) ? Metrics.DISABLED : plugin.getMetrics();
+        this.flightEvents = (plugin == null) ? FlightEvents.NOOP : plugin.getFlightEvents();
+        this.description = source + " -> " + target;
+        this.messages = this.metrics.counter("hyrc_link_messages_total", "source", source, "target", target);
         if (filters != null) {
             plugin.getFilterManager().loadList(filters, new LinkFilterLoader());
         }
@@ -83,24 +129,143 @@ public class Link {
         return this.target;
     }
 
+    /**
+     * Gets if this Link is paused, rejecting all messages.
+     *
+     * @return true if paused
+     */
+    public boolean isPaused() {
+        return this.paused;
+    }
+
+    /**
+     * Pauses or resumes this Link. Messages sent over a paused Link are
+     * rejected without running filters.
+     *
+     * @param paused true to pause
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * Gets the number of filters on this Link.
+     *
+     * @return filter count
+     */
+    public int getFilterCount() {
+        return this.filters.size();
+    }
+
     private void addFilter(@NonNull Filter filter) {
-        this.filters.add(filter);
+        Loadable.Type type = filter.getClass().getAnnotation(Loadable.Type.class);
+        String typeName = (type == null) ? filter.getClass().getSimpleName() : type.name();
+        String position = String.valueOf(this.filters.size());
+        String[] labels = {"source", this.source, "target", this.target, "filter", typeName, "position", position};
+        this.filters.add(new FilterEntry(filter, typeName, "filter #" + position + ' ' + typeName, this.metrics, labels));
     }
 
     /**
      * Executes filters.
+     * <p/>
+     * Filters over their {@link QuarantinePolicy} budgets are bypassed
+     * until their cooldown passes.
      *
      * @param message the message sent by the source
      */
     public void filterMessage(@NonNull TargetedMessage message) {
-        for (Filter filter : this.filters) {
-            try {
-                filter.processMessage(message);
-                if (message.isRejected()) {
+        if (this.paused) {
+            message.reject();
+            return;
+        }
+        this.messages.increment();
+        Trace trace = message.getOriginatingMessage().getTrace();
+        final boolean budgeted = this.quarantinePolicy.isEnabled();
+        for (FilterEntry entry : this.filters) {
+            if (entry.quarantinedUntil != 0 && this.isQuarantined(entry)) {
+                entry.bypassed.increment();
+                if (this.quarantinePolicy.isReject()) {
+                    message.reject();
                     return;
                 }
+                continue;
+            }
+            Object flightEvent = this.flightEvents.beginFilter();
+            final boolean timed = budgeted || entry.time.isEnabled();
+            long start = timed ? System.nanoTime() : 0;
+            Throwable failure = null;
+            try {
+                entry.filter.processMessage(message);
             } catch (Throwable thrown) {
-                HyRC.log().warning("Unable to process a received message", thrown);
+                failure = thrown;
+            }
+            long elapsed = timed ? System.nanoTime() - start : 0;
+            entry.time.record(elapsed);
+            this.flightEvents.endFilter(flightEvent, this.description, entry.type, message.isRejected());
+            if (trace != null) {
+                trace.stamp(entry.stage);
+            }
+            if (budgeted) {
+                if (failure != null || elapsed > this.quarantinePolicy.getSlowCallNanos()) {
+                    this.charge(entry, failure);
+                }
+            } else if (failure != null) {
+                HyRC.log().warning("Unable to process a received message", failure);
+            }
+            if (message.isRejected()) {
+                entry.rejections.increment();
+                return;
+            }
+        }
+    }
+
+    private boolean isQuarantined(@NonNull FilterEntry entry) {
+        if (System.currentTimeMillis() < entry.quarantinedUntil) {
+            return true;
+        }
+        synchronized (entry) {
+            if (entry.quarantinedUntil != 0) {
+                entry.quarantinedUntil = 0;
+                entry.windowStart = 0;
+                HyRC.log().info(String.format("Resuming %s on link %s after quarantine", entry.stage, this.description));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts an error or slow call against a filter's budgets, logging
+     * only the first error of each window and quarantining the filter
+     * when over budget.
+     *
+     * @param entry filter
+     * @param failure thrown error, or null if slow
+     */
+    private void charge(@NonNull FilterEntry entry, @Nullable Throwable failure) {
+        QuarantinePolicy policy = this.quarantinePolicy;
+        long now = System.currentTimeMillis();
+        synchronized (entry) {
+            if (entry.quarantinedUntil != 0) {
+                return;
+            }
+            if (now - entry.windowStart >= policy.getWindowMillis()) {
+                entry.windowStart = now;
+                entry.errors = 0;
+                entry.slowCalls = 0;
+            }
+            if (failure == null) {
+                entry.slowCalls++;
+            } else if (entry.errors++ == 0) {
+                HyRC.log().warning(() -> String.format("Unable to process a received message in %s on link %s, further errors are counted rather than logged for %ds", entry.stage, this.description, policy.getWindowMillis() / 1000), failure);
+            }
+            if (entry.errors > policy.getMaxErrors() || entry.slowCalls > policy.getMaxSlowCalls()) {
+                entry.quarantinedUntil = now + policy.getCooldownMillis();
+                entry.quarantines.increment();
+                int errors = entry.errors;
+                int slowCalls = entry.slowCalls;
+                long windowSeconds = (now - entry.windowStart) / 1000;
+                HyRC.log().warning(() -> String.format("Quarantined %s on link %s for %ds after %d errors and %d slow calls within %ds, %s messages meanwhile",
+                        entry.stage, this.description, policy.getCooldownMillis() / 1000, errors, slowCalls, windowSeconds, policy.isReject() ? "rejecting" : "passing"));
             }
         }
     }
@@ -26,11 +26,20 @@ package org.kitteh.hyrc.endpoint.link;
 import ninja.leaping.configurate.ConfigurationNode;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.Endpoint;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 /**
  * Maintains {@link Link}s and classes corresponding to Link types.
@@ -43,8 +52,10 @@ public final class LinkManager {
      *
      * @param plugin the HyRC instance
      * @param links a list of link data to load
+     * @param filterQuarantine filter quarantine settings
      */
-    public LinkManager(@NonNull HyRC plugin, @NonNull List<? extends ConfigurationNode> links) {
+    public LinkManager(@NonNull HyRC plugin, @NonNull List<? extends ConfigurationNode> links, @NonNull ConfigurationNode filterQuarantine) {
+        QuarantinePolicy quarantinePolicy = QuarantinePolicy.load(filterQuarantine);
         int nonMap = 0;
         int noSource = 0;
         int noTarget = 0;
@@ -64,7 +75,7 @@ public final class LinkManager {
                 continue;
             }
             List<? extends ConfigurationNode> filters = node.getNode("filters").getChildrenList();
-            this.addLink(new Link(plugin, source, target, filters));
+            this.addLink(new Link(plugin, source, target, filters, quarantinePolicy));
         }
         if (nonMap > 0) {
             HyRC.log().warning(String.format("Links list contained %d entries which were not maps", nonMap));
@@ -78,6 +89,10 @@ public final class LinkManager {
         if (this.links.isEmpty()) {
             HyRC.log().severe("Loaded no links! Nothing will be passed between any Endpoints!");
         }
+        this.reportCycles(name -> {
+            Endpoint endpoint = plugin.getEndpointManager().getEndpoint(name);
+            return endpoint != null && endpoint.isRelaying();
+        });
     }
 
     public @NonNull List<Link> getLinks(@NonNull String source) {
@@ -89,6 +104,105 @@ public final class LinkManager {
         return linkList;
     }
 
+    /**
+     * Gets all Links.
+     *
+     * @return links, grouped by source
+     */
+    public @NonNull List<Link> getLinks() {
+        LinkedList<Link> linkList = new LinkedList<>();
+        this.links.values().forEach(linkList::addAll);
+        return linkList;
+    }
+
+    /**
+     * Warns of each group of Endpoints linked in a cycle through a
+     * relaying Endpoint. Cycles are fine for plain Endpoints, but messages
+     * relayed onward along a cycle rely on loop protection to stop them.
+     *
+     * @param relaying tests if the named Endpoint is relaying
+     */
+    private void reportCycles(@NonNull Predicate<String> relaying) {
+        Map<String, List<String>> graph = new HashMap<>();
+        this.links.forEach((source, links) -> {
+            List<String> targets = new ArrayList<>(links.size());
+            links.forEach(link -> targets.add(link.getTarget()));
+            graph.put(source, targets);
+        });
+        for (List<String> cycle : findCycles(graph, relaying)) {
+            HyRC.log().warning("Links form a cycle through relaying endpoints: " + String.join(", ", cycle));
+        }
+    }
+
+    /**
+     * Finds the strongly connected groups of a link graph which contain a
+     * relaying Endpoint, using Tarjan's algorithm so every cycle is found
+     * however the graph is walked.
+     *
+     * @param graph link targets by source
+     * @param relaying tests if the named Endpoint is relaying
+     * @return each group of Endpoints linked in a cycle
+     */
+    static @NonNull List<List<String>> findCycles(@NonNull Map<String, ? extends Collection<String>> graph, @NonNull Predicate<String> relaying) {
+        Tarjan tarjan = new Tarjan(graph);
+        for (String node : graph.keySet()) {
+            if (!tarjan.index.containsKey(node)) {
+                tarjan.visit(node);
+            }
+        }
+        List<List<String>> cycles = new ArrayList<>();
+        for (List<String> component : tarjan.components) {
+            Collection<String> targets = graph.get(component.get(0));
+            boolean cyclic = component.size() > 1 || (targets != null && targets.contains(component.get(0)));
+            if (cyclic && component.stream().anyMatch(relaying)) {
+                cycles.add(component);
+            }
+        }
+        return cycles;
+    }
+
+    private static final class Tarjan {
+        private final Map<String, ? extends Collection<String>> graph;
+        private final Map<String, Integer> index = new HashMap<>();
+        private final Map<String, Integer> lowLink = new HashMap<>();
+        private final Deque<String> stack = new ArrayDeque<>();
+        private final Set<String> onStack = new HashSet<>();
+        private final List<List<String>> components = new ArrayList<>();
+
+        private Tarjan(@NonNull Map<String, ? extends Collection<String>> graph) {
+            this.graph = graph;
+        }
+
+        private void visit(@NonNull String node) {
+            int nodeIndex = this.index.size();
+            this.index.put(node, nodeIndex);
+            this.lowLink.put(node, nodeIndex);
+            this.stack.push(node);
+            this.onStack.add(node);
+            Collection<String> targets = this.graph.get(node);
+            if (targets != null) {
+                for (String target : targets) {
+                    if (!this.index.containsKey(target)) {
+                        this.visit(target);
+                        this.lowLink.put(node, Math.min(this.lowLink.get(node), this.lowLink.get(target)));
+                    } else if (this.onStack.contains(target)) {
+                        this.lowLink.put(node, Math.min(this.lowLink.get(node), this.index.get(target)));
+                    }
+                }
+            }
+            if (this.lowLink.get(node) == nodeIndex) {
+                List<String> component = new ArrayList<>();
+                String member;
+                do {
+                    member = this.stack.pop();
+                    this.onStack.remove(member);
+                    component.add(member);
+                } while (!member.equals(node));
+                this.components.add(component);
+            }
+        }
+    }
+
     private void addLink(@NonNull Link link) {
         List<Link> links = this.links.computeIfAbsent(link.getSource(), k -> new LinkedList<>());
         links.add(link);
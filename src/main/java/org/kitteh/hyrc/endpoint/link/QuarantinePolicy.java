@@ -0,0 +1,117 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.link;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.hyrc.HyRC;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and error budgets for filters, past which a filter is quarantined.
+ * <p/>
+ * Each filter's errors and slow calls are counted over a window. A filter
+ * exceeding either budget within a window is bypassed until a cooldown
+ * passes, with messages passing it untouched or being rejected.
+ * <p/>
+ * Quarantine is off unless enabled, and rejects messages unless told to
+ * pass them, so a filter enforcing policy can't be bypassed by making it
+ * fail.
+ */
+public final class QuarantinePolicy {
+    /**
+     * A policy never quarantining.
+     */
+    public static final QuarantinePolicy DISABLED = new QuarantinePolicy(false, 0, 0, 0, 0, 0, false);
+
+    private final boolean enabled;
+    private final long windowMillis;
+    private final int maxErrors;
+    private final long slowCallNanos;
+    private final int maxSlowCalls;
+    private final long cooldownMillis;
+    private final boolean reject;
+
+    QuarantinePolicy(boolean enabled, long windowMillis, int maxErrors, long slowCallNanos, int maxSlowCalls, long cooldownMillis, boolean reject) {
+        this.enabled = enabled;
+        this.windowMillis = windowMillis;
+        this.maxErrors = maxErrors;
+        this.slowCallNanos = slowCallNanos;
+        this.maxSlowCalls = maxSlowCalls;
+        this.cooldownMillis = cooldownMillis;
+        this.reject = reject;
+    }
+
+    /**
+     * Loads a policy from config.
+     *
+     * @param config the 'filter-quarantine' section
+     * @return policy
+     */
+    public static @NonNull QuarantinePolicy load(@NonNull ConfigurationNode config) {
+        if (!config.getNode("enabled").getBoolean(false)) {
+            return DISABLED;
+        }
+        String whileQuarantined = config.getNode("while-quarantined").getString("reject");
+        if (!whileQuarantined.equals("pass") && !whileQuarantined.equals("reject")) {
+            HyRC.log().warning("Unknown filter-quarantine while-quarantined '" + whileQuarantined + "', using reject");
+        }
+        return new QuarantinePolicy(true,
+                Math.max(1, config.getNode("window-millis").getLong(60000)),
+                Math.max(1, config.getNode("max-errors").getInt(10)),
+                TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getNode("slow-call-millis").getLong(100))),
+                Math.max(1, config.getNode("max-slow-calls").getInt(10)),
+                Math.max(1, config.getNode("cooldown-millis").getLong(300000)),
+                !whileQuarantined.equals("pass"));
+    }
+
+    boolean isEnabled() {
+        return this.enabled;
+    }
+
+    long getWindowMillis() {
+        return this.windowMillis;
+    }
+
+    int getMaxErrors() {
+        return this.maxErrors;
+    }
+
+    long getSlowCallNanos() {
+        return this.slowCallNanos;
+    }
+
+    int getMaxSlowCalls() {
+        return this.maxSlowCalls;
+    }
+
+    long getCooldownMillis() {
+        return this.cooldownMillis;
+    }
+
+    boolean isReject() {
+        return this.reject;
+    }
+}
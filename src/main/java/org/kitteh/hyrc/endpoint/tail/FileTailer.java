@@ -0,0 +1,351 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.endpoint.tail;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.Consumer;
+
+/**
+ * Follows a file, handing over each line appended to it.
+ * <p/>
+ * Regular files are polled for growth and new data is read through a
+ * memory mapping of the unread region. The offset after the last whole
+ * line read is stored in a small mapped offset file along with the
+ * file's identity, so reading resumes there after a restart unless the
+ * file was replaced meanwhile. The identity is the file key in full, such
+ * as the device and inode, and the creation time where the file system
+ * reports one distinct from the modification time. A file shrinking
+ * below the offset is read again from the start. When the path is
+ * replaced, as by log rotation, the rest of the old file is read before
+ * switching to the new one.
+ * <p/>
+ * Anything else, such as a named pipe, is read as a stream and reopened
+ * once all writers close it. Stream offsets are not stored.
+ */
+public final class FileTailer {
+    /**
+     * What a file is recognized by, surviving renames.
+     */
+    static final class Identity {
+        private final String key;
+        private final long created;
+
+        Identity(@NonNull String key, long created) {
+            this.key = key;
+            this.created = created;
+        }
+
+        /**
+         * Gets if this is the same file as another. A creation time of
+         * zero is not known, and matches any.
+         *
+         * @param other other identity
+         * @return true if the same file
+         */
+        boolean matches(@NonNull Identity other) {
+            return this.key.equals(other.key) && (this.created == 0 || other.created == 0 || this.created == other.created);
+        }
+    }
+
+    // Offset file layout: magic, offset, creation time, key length, key
+    private static final int STORE_MAGIC = 0x48795431;
+    private static final int STORE_OFFSET = 8;
+    private static final int STORE_CREATED = 16;
+    private static final int STORE_KEY = 24;
+    private static final int STORE_SIZE = 512;
+    private static final int MAX_KEY_BYTES = STORE_SIZE - STORE_KEY - 2;
+
+    private final File file;
+    private final MappedByteBuffer stored;
+    private final Consumer<String> sink;
+    private final int pollMillis;
+    private final int maxLineLength;
+    private final int windowSize;
+    private final boolean startAtEnd;
+    private final Thread thread;
+    private final byte[] line;
+    private int lineLength;
+    private boolean discarding;
+    private volatile boolean closed;
+
+    private @Nullable FileChannel channel;
+    private @Nullable Identity identity;
+    private boolean identityStored;
+    private long offset;
+
+    /**
+     * Creates a follower, which does nothing until started.
+     *
+     * @param name name for the reading thread
+     * @param file file to follow
+     * @param offsetFile file storing the read offset
+     * @param sink accepts each line read
+     * @param pollMillis time between checks for new data
+     * @param maxLineLength longest line read, longer ones are discarded
+     * @param windowSize most bytes mapped at once
+     * @param startAtEnd whether a file without a stored offset is read
+     * from its end rather than its start
+     * @throws IOException if the offset file cannot be opened
+     */
+    public FileTailer(@NonNull String name, @NonNull File file, @NonNull File offsetFile, @NonNull Consumer<String> sink, int pollMillis, int maxLineLength, int windowSize, boolean startAtEnd) throws IOException {
+        File parent = offsetFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(offsetFile, "rw"); FileChannel channel = raf.getChannel()) {
+            this.stored = channel.map(FileChannel.MapMode.READ_WRITE, 0, STORE_SIZE);
+        }
+        this.sink = sink;
+        this.pollMillis = pollMillis;
+        this.maxLineLength = maxLineLength;
+        this.windowSize = windowSize;
+        this.startAtEnd = startAtEnd;
+        this.line = new byte[maxLineLength];
+        this.thread = new Thread(this::run, "HyRC tail - " + name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts following.
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Gets the offset after the last line read from the current file.
+     *
+     * @return offset
+     */
+    public long getOffset() {
+        return this.stored.getLong(STORE_OFFSET);
+    }
+
+    /**
+     * Stops following.
+     */
+    public void close() {
+        this.closed = true;
+        this.thread.interrupt();
+    }
+
+    private void run() {
+        try {
+            while (!this.closed) {
+                boolean read;
+                if (!this.file.exists()) {
+                    read = this.channel != null && this.readRegular();
+                } else if (this.file.isFile()) {
+                    read = this.followRegular();
+                } else {
+                    this.followStream();
+                    read = true;
+                }
+                if (!read) {
+                    Thread.sleep(this.pollMillis);
+                }
+            }
+        } catch (InterruptedException | ClosedByInterruptException e) {
+            // Closing
+        } catch (IOException e) {
+            if (!this.closed) {
+                HyRC.log().severe("Stopped following " + this.file, e);
+            }
+        } finally {
+            this.closeChannel();
+        }
+    }
+
+    private boolean followRegular() throws IOException {
+        Identity currentIdentity = identity(this.file);
+        if (this.channel == null) {
+            this.open(currentIdentity);
+        } else if (!currentIdentity.matches(this.identity)) {
+            // Replaced: finish the old file first
+            if (this.readRegular()) {
+                return true;
+            }
+            this.closeChannel();
+            this.open(currentIdentity);
+        }
+        return this.readRegular();
+    }
+
+    private void open(@NonNull Identity currentIdentity) throws IOException {
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+        this.identity = currentIdentity;
+        this.identityStored = false;
+        Identity storedIdentity = this.storedIdentity();
+        if (storedIdentity != null && storedIdentity.matches(currentIdentity)) {
+            this.offset = this.stored.getLong(STORE_OFFSET);
+        } else {
+            this.offset = this.startAtEnd && storedIdentity == null ? this.channel.size() : 0;
+        }
+        this.resetLine();
+        this.store();
+    }
+
+    private @Nullable Identity storedIdentity() {
+        if (this.stored.getInt(0) != STORE_MAGIC) {
+            return null;
+        }
+        int keyLength = this.stored.getShort(STORE_KEY) & 0xFFFF;
+        if (keyLength > MAX_KEY_BYTES) {
+            return null;
+        }
+        byte[] key = new byte[keyLength];
+        ByteBuffer read = this.stored.duplicate();
+        read.position(STORE_KEY + 2);
+        read.get(key);
+        return new Identity(new String(key, StandardCharsets.UTF_8), this.stored.getLong(STORE_CREATED));
+    }
+
+    private boolean readRegular() throws IOException {
+        FileChannel channel = this.channel;
+        long size = channel.size();
+        if (size < this.offset) {
+            // Truncated
+            this.offset = 0;
+            this.resetLine();
+            this.store();
+        }
+        // Read position runs ahead of the offset by any partial line held
+        long position = this.offset + this.lineLength;
+        if (size <= position) {
+            return false;
+        }
+        int length = (int) Math.min(this.windowSize, size - position);
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        this.scan(window, position);
+        return true;
+    }
+
+    private void followStream() throws IOException {
+        this.closeChannel();
+        this.resetLine();
+        // Opening a pipe waits for a writer
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            while (!this.closed && channel.read(buffer) >= 0) {
+                buffer.flip();
+                this.scan(buffer, -1);
+                buffer.clear();
+            }
+        }
+        this.resetLine();
+    }
+
+    private void scan(@NonNull ByteBuffer buffer, long position) {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                if (!this.discarding) {
+                    int end = this.lineLength;
+                    if (end > 0 && this.line[end - 1] == '\r') {
+                        end--;
+                    }
+                    if (end > 0) {
+                        this.sink.accept(new String(this.line, 0, end, StandardCharsets.UTF_8));
+                    }
+                }
+                this.resetLine();
+                if (position >= 0) {
+                    this.offset = position + (buffer.position() - start);
+                }
+            } else if (this.lineLength < this.maxLineLength) {
+                this.line[this.lineLength++] = b;
+            } else {
+                this.discarding = true;
+            }
+        }
+        if (position >= 0) {
+            if (this.discarding) {
+                // Nothing of the held line will be used, skip past it
+                this.offset = position + (buffer.position() - start);
+                this.lineLength = 0;
+            }
+            this.store();
+        }
+    }
+
+    private void resetLine() {
+        this.lineLength = 0;
+        this.discarding = false;
+    }
+
+    private void store() {
+        if (!this.identityStored) {
+            Identity identity = this.identity;
+            byte[] key = identity.key.getBytes(StandardCharsets.UTF_8);
+            int keyLength = Math.min(key.length, MAX_KEY_BYTES);
+            ByteBuffer write = this.stored.duplicate();
+            write.position(STORE_KEY);
+            write.putShort((short) keyLength);
+            write.put(key, 0, keyLength);
+            this.stored.putLong(STORE_CREATED, identity.created);
+            this.stored.putInt(0, STORE_MAGIC);
+            this.identityStored = true;
+        }
+        this.stored.putLong(STORE_OFFSET, this.offset);
+    }
+
+    private void closeChannel() {
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+            this.channel = null;
+        }
+    }
+
+    static @NonNull Identity identity(@NonNull File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object key = attributes.fileKey();
+        long created = attributes.creationTime().toMillis();
+        // Some file systems report the modification time as creation time,
+        // which changes with every write so can't identify a file
+        if (key != null && created >= attributes.lastModifiedTime().toMillis()) {
+            created = 0;
+        }
+        return new Identity((key == null) ? "" : key.toString(), created);
+    }
+}
@@ -30,6 +30,9 @@ import org.kitteh.hyrc.HyRC;
 import org.kitteh.irc.client.library.Client;
 import org.kitteh.irc.client.library.feature.auth.NickServ;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -42,15 +45,23 @@ import java.util.concurrent.ConcurrentHashMap;
 public final class BotManager {
     private final Map<String, IRCBot> bots = new ConcurrentHashMap<>();
     private final HyRC plugin;
+    private final MessageDeduplicator deduplicator;
+    private final Map<String, Integer> ownNicks = new ConcurrentHashMap<>();
 
     /**
      * Initialized by {@link HyRC} main.
      *
      * @param plugin the HyRC instance
      * @param bots list of bot data to load
+     * @param deduplication deduplication settings
      */
-    public BotManager(@NonNull HyRC plugin, @NonNull List<? extends ConfigurationNode> bots) {
+    public BotManager(@NonNull HyRC plugin, @NonNull List<? extends ConfigurationNode> bots, @NonNull ConfigurationNode deduplication) {
         this.plugin = plugin;
+        if (deduplication.getNode("enabled").getBoolean()) {
+            this.deduplicator = new MessageDeduplicator(deduplication.getNode("slots").getInt(4096), deduplication.getNode("window-millis").getLong(2000));
+        } else {
+            this.deduplicator = null;
+        }
         this.plugin.trackShutdownable(() -> BotManager.this.bots.values().forEach(IRCBot::shutdown));
         this.loadBots(bots);
     }
@@ -65,6 +76,73 @@ public final class BotManager {
         return this.bots.get(name);
     }
 
+    /**
+     * Gets all bots.
+     *
+     * @return unmodifiable view of bots
+     */
+    public @NonNull Collection<IRCBot> getBots() {
+        return Collections.unmodifiableCollection(this.bots.values());
+    }
+
+    /**
+     * Gets how many inbound lines have been dropped for having already
+     * been read by another bot.
+     *
+     * @return suppressed duplicate count, 0 if deduplication is disabled
+     */
+    public long getSuppressedDuplicates() {
+        return (this.deduplicator == null) ? 0 : this.deduplicator.getSuppressedCount();
+    }
+
+    /**
+     * Gets if a nick is currently in use by one of our bots on a network.
+     * Nicks are compared exactly, as servers report a nick the way it was
+     * set.
+     *
+     * @param network network name
+     * @param nick nick to check
+     * @return true if the nick is one of ours on the network
+     */
+    public boolean isOwnNick(@NonNull String network, @NonNull String nick) {
+        return this.ownNicks.containsKey(ownNick(network, nick));
+    }
+
+    /**
+     * Tracks a change of one of our bots' nicks.
+     *
+     * @param oldNick previous key from {@link #ownNick(String, String)},
+     * or null if new
+     * @param newNick current key from {@link #ownNick(String, String)}
+     */
+    void updateOwnNick(@Nullable String oldNick, @NonNull String newNick) {
+        this.ownNicks.merge(newNick, 1, Integer::sum);
+        if (oldNick != null) {
+            this.ownNicks.computeIfPresent(oldNick, (nick, count) -> (count == 1) ? null : (count - 1));
+        }
+    }
+
+    /**
+     * Gets the key a nick on a network is tracked by. Neither network
+     * names nor nicks may contain spaces.
+     *
+     * @param network network name
+     * @param nick nick
+     * @return key
+     */
+    static @NonNull String ownNick(@NonNull String network, @NonNull String nick) {
+        return network + ' ' + nick;
+    }
+
+    /**
+     * Gets the deduplicator shared by all bots.
+     *
+     * @return deduplicator or null if disabled
+     */
+    @Nullable MessageDeduplicator getDeduplicator() {
+        return this.deduplicator;
+    }
+
     private void loadBots(@NonNull List<? extends ConfigurationNode> list) {
         Set<String> usedBotNames = new HashSet<>();
         int nonMap = 0;
@@ -94,8 +172,42 @@ public final class BotManager {
     }
 
     private void addBot(@NonNull String name, @NonNull ConfigurationNode data) {
+        int poolSize = data.getNode("pool-size").getInt(1);
+        if (poolSize < 1) {
+            HyRC.log().warning(String.format("Bot %s has an invalid pool-size of %d, using 1", name, poolSize));
+            poolSize = 1;
+        }
+        List<Client> clients = new ArrayList<>(poolSize);
+        List<ClientTraffic> traffic = new ArrayList<>(poolSize);
+        List<RawCapture> captures = new ArrayList<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            String clientName = (i == 0) ? name : name + i;
+            ClientTraffic clientTraffic = new ClientTraffic(clientName, this.plugin.getFlightEvents());
+            RawCapture capture = new RawCapture(clientName, data.getNode("debug-output"));
+            clients.add(this.createClient(name, data, i, clientTraffic, capture));
+            traffic.add(clientTraffic);
+            captures.add(capture);
+        }
+        // Listeners are registered by the bot, so it comes before connecting
+        this.bots.put(name, new IRCBot(this.plugin, this, name, data.getNode("host").getString("localhost"), clients, traffic, captures));
+        clients.forEach(Client::connect);
+    }
+
+    /**
+     * Creates a client for a bot. Pool members after the first have their
+     * index appended to their name and nick.
+     *
+     * @param name bot name
+     * @param data bot configuration
+     * @param index index in the bot's pool
+     * @param traffic tracks the client's output
+     * @param capture keeps the client's recent raw lines
+     * @return an unconnected client
+     */
+    private @NonNull Client createClient(@NonNull String name, @NonNull ConfigurationNode data, int index, @NonNull ClientTraffic traffic, @NonNull RawCapture capture) {
+        final String suffix = (index == 0) ? "" : String.valueOf(index);
         Client.Builder botBuilder = Client.builder();
-        botBuilder.name(name);
+        botBuilder.name(name + suffix);
         botBuilder.server().host(data.getNode("host").getString("localhost"));
         botBuilder.server().port(data.getNode("port").getInt(6667));
         botBuilder.server().secure(data.getNode("ssl").getBoolean());
@@ -112,23 +224,43 @@ public final class BotManager {
             botBuilder.bind().host(bindHost.getString());
         }
         botBuilder.bind().port(bind.getNode("port").getInt(0));
-        botBuilder.nick(data.getNode("nick").getString("HyRC"));
+        botBuilder.nick(data.getNode("nick").getString("HyRC") + suffix);
 
         ConfigurationNode auth = data.getNode("auth");
         String authUser = auth.getNode("user").getString();
         String authPass = auth.getNode("pass").getString();
 
         ConfigurationNode debug = data.getNode("debug-output");
-        if (debug.getNode("exceptions").getBoolean()) {
-            botBuilder.listeners().exception(exception -> HyRC.log().warning("Exception on bot " + name, exception));
+        boolean logExceptions = debug.getNode("exceptions").getBoolean();
+        if (logExceptions || capture.isDumpOnException()) {
+            botBuilder.listeners().exception(exception -> {
+                if (logExceptions) {
+                    HyRC.log().warning(() -> "Exception on bot " + name + suffix, exception);
+                }
+                capture.exception(exception);
+            });
         } else {
             botBuilder.listeners().exception(null);
         }
         if (debug.getNode("input").getBoolean()) {
-            botBuilder.listeners().input(input -> HyRC.log().info("[IN] " + input));
+            botBuilder.listeners().input(input -> {
+                capture.input(input);
+                HyRC.log().info(() -> "[IN] " + input);
+            });
+        } else {
+            botBuilder.listeners().input(capture::input);
         }
         if (debug.getNode("output").getBoolean()) {
-            botBuilder.listeners().output(output -> HyRC.log().info("[OUT] " + output));
+            botBuilder.listeners().output(output -> {
+                traffic.output(output);
+                capture.output(output);
+                HyRC.log().info(() -> "[OUT] " + output);
+            });
+        } else {
+            botBuilder.listeners().output(output -> {
+                traffic.output(output);
+                capture.output(output);
+            });
         }
 
         Client client = botBuilder.build();
@@ -137,8 +269,6 @@ public final class BotManager {
             client.getAuthManager().addProtocol(NickServ.builder(client).account(authUser).password(authPass).build());
         }
 
-        client.connect();
-
-        this.bots.put(name, new IRCBot(this.plugin, name, client));
+        return client;
     }
 }
@@ -0,0 +1,191 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.irc;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.endpoint.defaults.IRCEndpoint;
+import org.kitteh.irc.client.library.Client;
+import org.kitteh.irc.client.library.feature.CaseMapping;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Supplier;
+
+/**
+ * Resolves channel names to the channels a bot is handling.
+ * <p/>
+ * Names are folded under the network's CASEMAPPING once, when a channel
+ * is added. Spellings seen on the wire are remembered as aliases, so a
+ * name arriving the way it arrived before is resolved without folding at
+ * all. If the network's CASEMAPPING changes, the table is refolded.
+ */
+final class ChannelTable {
+    /**
+     * A channel handled by a bot.
+     */
+    static final class BotChannel {
+        private final String name;
+        private final Set<IRCEndpoint> endpoints = new CopyOnWriteArraySet<>();
+        private final PrefixCache prefixCache;
+        private volatile boolean joined;
+
+        private BotChannel(@NonNull String name, @NonNull PrefixCache prefixCache) {
+            this.name = name;
+            this.prefixCache = prefixCache;
+        }
+
+        /**
+         * Gets the channel name as configured.
+         *
+         * @return channel name
+         */
+        @NonNull String getName() {
+            return this.name;
+        }
+
+        /**
+         * Gets the endpoints assigned to this channel.
+         *
+         * @return endpoints
+         */
+        @NonNull Set<IRCEndpoint> getEndpoints() {
+            return this.endpoints;
+        }
+
+        /**
+         * Gets the prefix cache for this channel's users.
+         *
+         * @return prefix cache
+         */
+        @NonNull PrefixCache getPrefixCache() {
+            return this.prefixCache;
+        }
+
+        /**
+         * Gets if the client is currently in this channel.
+         *
+         * @return true if joined
+         */
+        boolean isJoined() {
+            return this.joined;
+        }
+
+        void setJoined(boolean joined) {
+            this.joined = joined;
+        }
+    }
+
+    /**
+     * Upper bound on remembered spellings, to keep hostile input from
+     * growing the alias table forever.
+     */
+    private static final int MAX_ALIASES = 1024;
+
+    private final Client client;
+    private final Supplier<CaseMapping> caseMapping;
+    private volatile Map<String, BotChannel> folded = new ConcurrentHashMap<>();
+    private final Map<String, BotChannel> aliases = new ConcurrentHashMap<>();
+    private volatile CaseMapping foldedWith;
+
+    /**
+     * Creates a table following the client's CASEMAPPING.
+     *
+     * @param client client
+     */
+    ChannelTable(@NonNull Client client) {
+        this(client, () -> client.getServerInfo().getCaseMapping());
+    }
+
+    ChannelTable(@NonNull Client client, @NonNull Supplier<CaseMapping> caseMapping) {
+        this.client = client;
+        this.caseMapping = caseMapping;
+        this.foldedWith = caseMapping.get();
+    }
+
+    /**
+     * Gets a channel, adding it if not yet present.
+     *
+     * @param name channel name
+     * @return the channel
+     */
+    synchronized @NonNull BotChannel add(@NonNull String name) {
+        this.refold();
+        String key = this.foldedWith.toLowerCase(name);
+        BotChannel channel = this.folded.get(key);
+        if (channel == null) {
+            channel = new BotChannel(name, new PrefixCache(this.client));
+            this.folded.put(key, channel);
+            this.aliases.put(name, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Looks up a channel by name as seen on the wire.
+     *
+     * @param name channel name
+     * @return the channel, or null if not handled
+     */
+    @Nullable BotChannel get(@NonNull String name) {
+        if (this.foldedWith != this.caseMapping.get()) {
+            this.refold();
+        }
+        BotChannel channel = this.aliases.get(name);
+        if (channel != null) {
+            return channel;
+        }
+        channel = this.folded.get(this.foldedWith.toLowerCase(name));
+        if (channel != null && this.aliases.size() < MAX_ALIASES) {
+            this.aliases.put(name, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Gets all handled channels.
+     *
+     * @return channels
+     */
+    @NonNull Collection<BotChannel> getChannels() {
+        return this.folded.values();
+    }
+
+    private synchronized void refold() {
+        CaseMapping current = this.caseMapping.get();
+        if (current == this.foldedWith) {
+            return;
+        }
+        Map<String, BotChannel> refolded = new ConcurrentHashMap<>();
+        for (BotChannel channel : this.folded.values()) {
+            refolded.put(current.toLowerCase(channel.getName()), channel);
+        }
+        this.folded = refolded;
+        this.foldedWith = current;
+        this.aliases.clear();
+    }
+}
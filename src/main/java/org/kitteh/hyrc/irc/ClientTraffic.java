@@ -0,0 +1,112 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.irc;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.hyrc.metrics.FlightEvents;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks one client's connection state and messages waiting to be sent.
+ * <p/>
+ * The client queues messages and paces their sending, so messages handed
+ * over are counted against PRIVMSG lines seen written. Lines the client
+ * sends itself, such as CTCP replies, may make the backlog read low.
+ * <p/>
+ * While IRC send events are recorded, each queued message's queueing
+ * time is kept until its line is written, to measure the pacing delay.
+ */
+final class ClientTraffic {
+    private static final class Pending {
+        private final long sequence;
+        private final String target;
+        private final int bytes;
+        private final long queuedNanos = System.nanoTime();
+
+        private Pending(long sequence, @NonNull String target, int bytes) {
+            this.sequence = sequence;
+            this.target = target;
+            this.bytes = bytes;
+        }
+    }
+
+    private final String bot;
+    private final FlightEvents flightEvents;
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean connected;
+
+    ClientTraffic(@NonNull String bot, @NonNull FlightEvents flightEvents) {
+        this.bot = bot;
+        this.flightEvents = flightEvents;
+    }
+
+    void queued(@NonNull String target, @NonNull String message) {
+        long sequence = this.queued.incrementAndGet();
+        if (this.flightEvents.isIrcSendEnabled()) {
+            this.pending.add(new Pending(sequence, target, message.getBytes(StandardCharsets.UTF_8).length));
+        }
+    }
+
+    void output(@NonNull String line) {
+        if (line.startsWith("PRIVMSG ")) {
+            long sequence = this.written.incrementAndGet();
+            Pending next;
+            while ((next = this.pending.peek()) != null && next.sequence <= sequence) {
+                this.pending.poll();
+                if (next.sequence == sequence) {
+                    this.flightEvents.ircSend(this.bot, next.target, next.bytes, System.nanoTime() - next.queuedNanos);
+                }
+            }
+        }
+    }
+
+    void connected() {
+        this.connections.incrementAndGet();
+        this.connected = true;
+    }
+
+    void disconnected() {
+        this.connected = false;
+    }
+
+    boolean isConnected() {
+        return this.connected;
+    }
+
+    int getReconnects() {
+        return Math.max(0, this.connections.get() - 1);
+    }
+
+    int getBacklog() {
+        return (int) Math.max(0, this.queued.get() - this.written.get());
+    }
+}
@@ -31,34 +31,110 @@ import org.kitteh.hyrc.endpoint.defaults.IRCEndpoint;
 import org.kitteh.irc.client.library.Client;
 import org.kitteh.irc.client.library.element.Channel;
 import org.kitteh.irc.client.library.element.User;
-import org.kitteh.irc.client.library.element.mode.ChannelUserMode;
 import org.kitteh.irc.client.library.event.channel.ChannelCtcpEvent;
+import org.kitteh.irc.client.library.event.channel.ChannelJoinEvent;
+import org.kitteh.irc.client.library.event.channel.ChannelKickEvent;
 import org.kitteh.irc.client.library.event.channel.ChannelMessageEvent;
-import org.kitteh.irc.client.library.util.CIKeyMap;
+import org.kitteh.irc.client.library.event.channel.ChannelModeEvent;
+import org.kitteh.irc.client.library.event.channel.ChannelNamesUpdatedEvent;
+import org.kitteh.irc.client.library.event.channel.ChannelPartEvent;
+import org.kitteh.irc.client.library.event.client.ClientConnectionEndedEvent;
+import org.kitteh.irc.client.library.event.client.ClientConnectionEstablishedEvent;
+import org.kitteh.irc.client.library.event.user.UserNickChangeEvent;
+import org.kitteh.irc.client.library.event.user.UserQuitEvent;
+import org.kitteh.irc.client.library.feature.CaseMapping;
 import org.kitteh.irc.lib.net.engio.mbassy.listener.Handler;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Wraps an IRC client and handles events.
+ * Wraps IRC clients and handles events.
+ * <p/>
+ * A bot is usually a single client, but may be a pool of clients sharing
+ * the load of busy channels. Output to a channel is spread across pool
+ * members in that channel, while input is only processed by the first
+ * member in the channel.
  */
 public final class IRCBot {
-    private final Client client;
+    /**
+     * A single connection of this bot.
+     */
+    private final class Member {
+        private final Client client;
+        private final ClientTraffic traffic;
+        private final RawCapture capture;
+        private final ChannelTable channels;
+        private final int index;
+        private String ownNick;
+
+        private Member(@NonNull Client client, @NonNull ClientTraffic traffic, @NonNull RawCapture capture, int index) {
+            this.client = client;
+            this.traffic = traffic;
+            this.capture = capture;
+            this.channels = new ChannelTable(client);
+            this.index = index;
+        }
+
+        /**
+         * Gets the network this member is on, which until the server
+         * names it is the host connected to.
+         *
+         * @return network name
+         */
+        private @NonNull String getNetwork() {
+            return this.client.getServerInfo().getNetworkName().orElse(IRCBot.this.host);
+        }
+
+        /**
+         * Keeps the bot manager's record of our nicks current. Called
+         * whenever the nick or network may have changed.
+         */
+        private void updateNick() {
+            String current = BotManager.ownNick(this.getNetwork(), this.client.getNick());
+            if (!current.equals(this.ownNick)) {
+                IRCBot.this.manager.updateOwnNick(this.ownNick, current);
+                this.ownNick = current;
+            }
+        }
+
+        private boolean isJoined(@NonNull String channel) {
+            ChannelTable.BotChannel botChannel = this.channels.get(channel);
+            return botChannel != null && botChannel.isJoined();
+        }
+
+        private boolean isSelf(@NonNull String nick) {
+            return IRCBot.equalsIgnoreCase(this.client, nick, this.client.getNick());
+        }
+    }
+
+    private final List<Member> members;
     private final String name;
-    private final Map<String, Set<IRCEndpoint>> channels;
+    private final String host;
     private final HyRC plugin;
+    private final BotManager manager;
+    private final AtomicInteger nextSender = new AtomicInteger();
 
-    IRCBot(@NonNull HyRC plugin, @NonNull String name, @NonNull Client client) {
+    IRCBot(@NonNull HyRC plugin, @NonNull BotManager manager, @NonNull String name, @NonNull String host, @NonNull List<Client> clients, @NonNull List<ClientTraffic> traffic, @NonNull List<RawCapture> captures) {
         this.plugin = plugin;
-        this.client = client;
-        this.channels = new CIKeyMap<>(client);
+        this.manager = manager;
         this.name = name;
-        this.client.getEventManager().registerEventListener(new Listener());
+        this.host = host;
+        List<Member> members = new ArrayList<>(clients.size());
+        for (Client client : clients) {
+            Member member = new Member(client, traffic.get(members.size()), captures.get(members.size()), members.size());
+            member.updateNick();
+            members.add(member);
+            client.getEventManager().registerEventListener(new Listener(member));
+        }
+        this.members = Collections.unmodifiableList(members);
+        plugin.getMetrics().gauge("hyrc_irc_connected", this::getConnectedCount, "bot", name);
+        plugin.getMetrics().gauge("hyrc_irc_outbound_backlog", this::getOutboundBacklog, "bot", name);
+        plugin.getMetrics().gauge("hyrc_irc_reconnects", this::getReconnectCount, "bot", name);
     }
 
     /**
@@ -70,6 +146,96 @@ public final class IRCBot {
         return this.name;
     }
 
+    /**
+     * Gets the number of connections backing this bot.
+     *
+     * @return pool size, 1 if not pooled
+     */
+    public int getPoolSize() {
+        return this.members.size();
+    }
+
+    /**
+     * Gets the number of connections currently established.
+     *
+     * @return connected pool members
+     */
+    public int getConnectedCount() {
+        int connected = 0;
+        for (Member member : this.members) {
+            if (member.traffic.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Gets the number of messages handed to this bot's connections but
+     * not yet written to the server.
+     *
+     * @return outbound backlog
+     */
+    public int getOutboundBacklog() {
+        int backlog = 0;
+        for (Member member : this.members) {
+            backlog += member.traffic.getBacklog();
+        }
+        return backlog;
+    }
+
+    /**
+     * Gets the number of times this bot's connections have reconnected.
+     *
+     * @return reconnect count
+     */
+    public int getReconnectCount() {
+        int reconnects = 0;
+        for (Member member : this.members) {
+            reconnects += member.traffic.getReconnects();
+        }
+        return reconnects;
+    }
+
+    /**
+     * Gets if raw lines are being captured.
+     *
+     * @return true if any connection is capturing
+     */
+    public boolean isCaptureEnabled() {
+        for (Member member : this.members) {
+            if (member.capture.isEnabled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts or stops capturing raw lines. Capturing can't be started if
+     * 'capture-lines' is zero.
+     *
+     * @param enabled true to capture
+     */
+    public void setCaptureEnabled(boolean enabled) {
+        for (Member member : this.members) {
+            member.capture.setEnabled(enabled);
+        }
+    }
+
+    /**
+     * Writes the captured raw lines of each connection to the log.
+     *
+     * @return the lines written, oldest first per connection
+     */
+    public @NonNull List<String> dumpCapture() {
+        List<String> lines = new ArrayList<>();
+        for (Member member : this.members) {
+            lines.addAll(member.capture.dump("on request"));
+        }
+        return lines;
+    }
+
     /**
      * Adds a channel to the bot, which will join when possible.
      *
@@ -77,9 +243,10 @@ public final class IRCBot {
      * @param channel channel to join
      */
     public void addChannel(@NonNull IRCEndpoint endpoint, @NonNull String channel) {
-        this.client.addChannel(channel);
-        Set<IRCEndpoint> points = this.channels.computeIfAbsent(channel, k -> new CopyOnWriteArraySet<>());
-        points.add(endpoint);
+        for (Member member : this.members) {
+            member.client.addChannel(channel);
+            member.channels.add(channel).getEndpoints().add(endpoint);
+        }
     }
 
     /**
@@ -89,62 +256,230 @@ public final class IRCBot {
      * @param message message to send
      */
     public void sendMessage(@NonNull Channel target, @NonNull String message) {
-        this.client.sendMessage(target.getName(), message);
+        this.sendMessage(target.getName(), message);
+    }
+
+    /**
+     * Gets if any member of this bot is currently in a channel.
+     *
+     * @param channel channel name
+     * @return true if the channel can be messaged
+     */
+    public boolean isInChannel(@NonNull String channel) {
+        for (Member member : this.members) {
+            if (member.isJoined(channel)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * Sends a message to the named target.
+     * <p/>
+     * If this bot is a pool, messages to a channel are sent round-robin by
+     * the members currently in that channel.
      *
      * @param target target
      * @param message message to send
      */
     public void sendMessage(@NonNull String target, @NonNull String message) {
-        this.client.sendMessage(target, message);
+        Member sender = this.getSender(target);
+        sender.traffic.queued(target, message);
+        sender.client.sendMessage(target, message);
     }
 
     void shutdown() {
-        this.client.shutdown("HyRC!");
+        for (Member member : this.members) {
+            member.client.shutdown("HyRC!");
+        }
     }
 
-    private void sendMessage(@NonNull User sender, @NonNull Channel channel, @NonNull String message, IRCEndpoint.@NonNull MessageType messageType) {
-        final String channelName = channel.getName();
-        if (!this.channels.containsKey(channelName)) {
+    private @NonNull Member getSender(@NonNull String target) {
+        if (this.members.size() == 1) {
+            return this.members.get(0);
+        }
+        int joined = 0;
+        for (Member member : this.members) {
+            if (member.isJoined(target)) {
+                joined++;
+            }
+        }
+        if (joined > 0) {
+            // Counting only joined members, so each gets an equal share
+            int pick = (this.nextSender.getAndIncrement() & Integer.MAX_VALUE) % joined;
+            for (Member member : this.members) {
+                if (member.isJoined(target) && pick-- == 0) {
+                    return member;
+                }
+            }
+        }
+        // Nobody in the channel, or somebody left meanwhile
+        return this.members.get(0);
+    }
+
+    /**
+     * Gets if a member is the one handling input for a channel, being the
+     * first pool member in the channel.
+     *
+     * @param member member which received input
+     * @param channel channel name
+     * @return true if the input should be processed
+     */
+    private boolean isHandler(@NonNull Member member, @NonNull String channel) {
+        for (int i = 0; i < member.index; i++) {
+            if (this.members.get(i).isJoined(channel)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void sendMessage(@NonNull Member member, @NonNull User sender, @NonNull Channel channel, @NonNull String message, IRCEndpoint.@NonNull MessageType messageType) {
+        final ChannelTable.BotChannel botChannel = member.channels.get(channel.getName());
+        if (botChannel == null) {
+            return;
+        }
+        if (this.manager.isOwnNick(member.getNetwork(), sender.getNick())) {
+            // Echo of something we, or a fellow bot, said
+            return;
+        }
+        if (this.members.size() > 1 && !this.isHandler(member, channel.getName())) {
+            return;
+        }
+        MessageDeduplicator deduplicator = this.manager.getDeduplicator();
+        if (deduplicator != null && deduplicator.isDuplicate(this, member.getNetwork(), channel.getName(), sender.getName(), message)) {
             return;
         }
         Map<String, Object> data = new HashMap<>();
         data.put(IRCEndpoint.IRC_CHANNEL, channel.getName());
         data.put(IRCEndpoint.IRC_MASK, sender.getName());
         data.put(IRCEndpoint.IRC_MESSAGE_TYPE, messageType);
-        StringBuilder modes = new StringBuilder();
-        Optional<SortedSet<ChannelUserMode>> userModes = channel.getUserModes(sender);
-        if (userModes.isPresent()) {
-            for (ChannelUserMode mode : userModes.get()) {
-                modes.append(mode.getNickPrefix());
-            }
-        }
-        data.put(IRCEndpoint.IRC_PREFIX, (modes.length() == 0) ? "" : modes.charAt(0));
-        data.put(IRCEndpoint.IRC_PREFIXES, modes.toString());
+        PrefixCache.Prefixes prefixes = botChannel.getPrefixCache().get(channel, sender);
+        data.put(IRCEndpoint.IRC_PREFIX, prefixes.getPrefix());
+        data.put(IRCEndpoint.IRC_PREFIXES, prefixes.getPrefixes());
         data.put(IRCEndpoint.IRC_NICK, sender.getNick());
         data.put(Endpoint.MESSAGE_FORMAT, messageType.getFormat());
         data.put(Endpoint.MESSAGE_TEXT, message);
         data.put(Endpoint.SENDER_NAME, sender.getNick());
         String formatted = String.format(messageType.getFormat(), sender.getNick(), message);
-        for (IRCEndpoint endpoint : this.channels.get(channelName)) {
+        for (IRCEndpoint endpoint : botChannel.getEndpoints()) {
             this.plugin.getEndpointManager().sendMessage(new Message(endpoint, formatted, data));
         }
     }
 
+    private static boolean equalsIgnoreCase(@NonNull Client client, @NonNull String one, @NonNull String two) {
+        CaseMapping caseMapping = client.getServerInfo().getCaseMapping();
+        return caseMapping.toLowerCase(one).equals(caseMapping.toLowerCase(two));
+    }
+
     private class Listener {
+        private final Member member;
+
+        private Listener(@NonNull Member member) {
+            this.member = member;
+        }
+
         @Handler
         public void message(@NonNull ChannelMessageEvent event) {
             User user = event.getActor();
-            IRCBot.this.sendMessage(user, event.getChannel(), event.getMessage(), IRCEndpoint.MessageType.MESSAGE);
+            IRCBot.this.sendMessage(this.member, user, event.getChannel(), event.getMessage(), IRCEndpoint.MessageType.MESSAGE);
         }
 
         @Handler
         public void action(@NonNull ChannelCtcpEvent event) {
             if (event.getMessage().startsWith("ACTION ")) {
-                IRCBot.this.sendMessage(event.getActor(), event.getChannel(), event.getMessage().substring("ACTION ".length()), IRCEndpoint.MessageType.ME);
+                IRCBot.this.sendMessage(this.member, event.getActor(), event.getChannel(), event.getMessage().substring("ACTION ".length()), IRCEndpoint.MessageType.ME);
+            }
+        }
+
+        @Handler
+        public void join(@NonNull ChannelJoinEvent event) {
+            ChannelTable.BotChannel botChannel = this.member.channels.get(event.getChannel().getName());
+            if (botChannel == null) {
+                return;
+            }
+            if (this.member.isSelf(event.getActor().getNick())) {
+                // The server has named its network by the time we join
+                this.member.updateNick();
+                botChannel.setJoined(true);
+                botChannel.getPrefixCache().clear();
+            } else {
+                botChannel.getPrefixCache().forget(event.getActor().getNick());
+            }
+        }
+
+        @Handler
+        public void part(@NonNull ChannelPartEvent event) {
+            this.leave(event.getChannel().getName(), event.getActor().getNick());
+        }
+
+        @Handler
+        public void kick(@NonNull ChannelKickEvent event) {
+            this.leave(event.getChannel().getName(), event.getTarget().getNick());
+        }
+
+        @Handler
+        public void quit(@NonNull UserQuitEvent event) {
+            this.forget(event.getActor().getNick());
+        }
+
+        @Handler
+        public void nick(@NonNull UserNickChangeEvent event) {
+            this.member.updateNick();
+            this.forget(event.getOldUser().getNick());
+            this.forget(event.getNewUser().getNick());
+        }
+
+        @Handler
+        public void mode(@NonNull ChannelModeEvent event) {
+            // Rare enough that dropping the channel beats parsing the change
+            ChannelTable.BotChannel botChannel = this.member.channels.get(event.getChannel().getName());
+            if (botChannel != null) {
+                botChannel.getPrefixCache().clear();
+            }
+        }
+
+        @Handler
+        public void names(@NonNull ChannelNamesUpdatedEvent event) {
+            ChannelTable.BotChannel botChannel = this.member.channels.get(event.getChannel().getName());
+            if (botChannel != null) {
+                botChannel.getPrefixCache().clear();
+            }
+        }
+
+        @Handler
+        public void connect(@NonNull ClientConnectionEstablishedEvent event) {
+            this.member.traffic.connected();
+            this.member.updateNick();
+        }
+
+        @Handler
+        public void disconnect(@NonNull ClientConnectionEndedEvent event) {
+            this.member.traffic.disconnected();
+            if (event.canAttemptReconnect()) {
+                this.member.capture.disconnected(event.getCause().orElse(null));
+            }
+            for (ChannelTable.BotChannel botChannel : this.member.channels.getChannels()) {
+                botChannel.setJoined(false);
+                botChannel.getPrefixCache().clear();
+            }
+        }
+
+        private void leave(@NonNull String channel, @NonNull String nick) {
+            ChannelTable.BotChannel botChannel = this.member.channels.get(channel);
+            if (botChannel == null) {
+                return;
+            }
+            if (this.member.isSelf(nick)) {
+                botChannel.setJoined(false);
+            }
+            botChannel.getPrefixCache().forget(nick);
+        }
+
+        private void forget(@NonNull String nick) {
+            for (ChannelTable.BotChannel botChannel : this.member.channels.getChannels()) {
+                botChannel.getPrefixCache().forget(nick);
             }
         }
     }
@@ -0,0 +1,149 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.irc;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Spots the same line being read by more than one bot.
+ * <p/>
+ * Lines are hashed by network, channel, sender and text into a fixed size
+ * table. The first bot to see a line claims it, and any other bot seeing
+ * the same line within the window is told it's a duplicate. A bot seeing
+ * the same line twice itself is not, as that's somebody repeating
+ * themselves.
+ * <p/>
+ * Colliding lines can evict each other early, which only ever lets a
+ * duplicate through. Every character of every field goes into a 64-bit
+ * FNV-1a hash, with each field's length between them, so two different
+ * lines are only mistaken for each other on a genuine 64-bit collision.
+ */
+public final class MessageDeduplicator {
+    private static final int WAYS = 4;
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final long[] hashes;
+    private final long[] times;
+    private final Object[] owners;
+    private final int mask;
+    private final long windowNanos;
+    private final LongAdder suppressed = new LongAdder();
+
+    /**
+     * Creates a deduplicator.
+     *
+     * @param slots table size, rounded up to a power of two
+     * @param windowMillis how long a line is remembered
+     */
+    public MessageDeduplicator(int slots, long windowMillis) {
+        int size = Integer.highestOneBit(Math.max(WAYS, slots - 1) << 1);
+        this.hashes = new long[size];
+        this.times = new long[size];
+        this.owners = new Object[size];
+        this.mask = size - 1;
+        this.windowNanos = windowMillis * 1_000_000L;
+    }
+
+    /**
+     * Gets how many lines have been reported as duplicates.
+     *
+     * @return suppressed duplicate count
+     */
+    public long getSuppressedCount() {
+        return this.suppressed.sum();
+    }
+
+    /**
+     * Records a line, reporting if another owner already recorded it
+     * within the window.
+     *
+     * @param owner the bot reading the line
+     * @param network network name, or the host if the server has not named it
+     * @param channel channel name
+     * @param sender sender's mask
+     * @param text line text
+     * @return true if the line is a duplicate and should be dropped
+     */
+    public boolean isDuplicate(@NonNull Object owner, @NonNull String network, @NonNull String channel, @NonNull String sender, @NonNull String text) {
+        final long hash = hash(network, channel, sender, text);
+        final long now = System.nanoTime();
+        final int base = (int) hash & this.mask & ~(WAYS - 1);
+        synchronized (this) {
+            int victim = -1;
+            int oldest = base;
+            for (int i = base; i < base + WAYS; i++) {
+                boolean live = this.hashes[i] != 0 && (now - this.times[i]) < this.windowNanos;
+                if (live && this.hashes[i] == hash) {
+                    if (this.owners[i] != owner) {
+                        this.suppressed.increment();
+                        return true;
+                    }
+                    this.times[i] = now;
+                    return false;
+                }
+                if (!live && victim < 0) {
+                    victim = i;
+                } else if (this.times[i] - this.times[oldest] < 0) {
+                    oldest = i;
+                }
+            }
+            if (victim < 0) {
+                victim = oldest;
+            }
+            this.hashes[victim] = hash;
+            this.times[victim] = now;
+            this.owners[victim] = owner;
+            return false;
+        }
+    }
+
+    private static long hash(@NonNull String network, @NonNull String channel, @NonNull String sender, @NonNull String text) {
+        long hash = FNV_OFFSET;
+        hash = hash(hash, network);
+        hash = hash(hash, channel);
+        hash = hash(hash, sender);
+        hash = hash(hash, text);
+        // Finalize (MurmurHash3 fmix64) so the low bits used for the index mix well
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return (hash == 0) ? 1 : hash;
+    }
+
+    private static long hash(long hash, @NonNull String string) {
+        int length = string.length();
+        hash = (hash ^ length) * FNV_PRIME;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.irc;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.irc.client.library.Client;
+import org.kitteh.irc.client.library.element.Channel;
+import org.kitteh.irc.client.library.element.User;
+import org.kitteh.irc.client.library.element.mode.ChannelUserMode;
+import org.kitteh.irc.client.library.util.CIKeyMap;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+
+/**
+ * Caches the nick prefixes of a channel's users.
+ * <p/>
+ * Entries are computed on first use and forgotten as join, part, kick,
+ * quit, nick and mode events arrive, so a lookup for a chatty user is a
+ * single map hit. Only accessed from the client's event thread.
+ */
+final class PrefixCache {
+    /**
+     * Prefix information for a single user in a single channel.
+     */
+    static final class Prefixes {
+        private static final Prefixes NONE = new Prefixes("", "");
+
+        private final Object prefix;
+        private final String prefixes;
+
+        private Prefixes(@NonNull Object prefix, @NonNull String prefixes) {
+            this.prefix = prefix;
+            this.prefixes = prefixes;
+        }
+
+        /**
+         * Gets the highest prefix, as stored in {@link
+         * org.kitteh.hyrc.endpoint.defaults.IRCEndpoint#IRC_PREFIX}.
+         *
+         * @return the highest prefix character, or an empty string
+         */
+        @NonNull Object getPrefix() {
+            return this.prefix;
+        }
+
+        /**
+         * Gets all prefixes, highest first.
+         *
+         * @return all prefixes
+         */
+        @NonNull String getPrefixes() {
+            return this.prefixes;
+        }
+    }
+
+    private final Map<String, Prefixes> nicks;
+
+    PrefixCache(@NonNull Client client) {
+        this.nicks = new CIKeyMap<>(client);
+    }
+
+    /**
+     * Gets the prefixes of a user, computing them if not yet cached.
+     *
+     * @param channel channel the user is in
+     * @param user user
+     * @return prefixes
+     */
+    @NonNull Prefixes get(@NonNull Channel channel, @NonNull User user) {
+        Prefixes prefixes = this.nicks.get(user.getNick());
+        if (prefixes == null) {
+            prefixes = compute(channel, user);
+            this.nicks.put(user.getNick(), prefixes);
+        }
+        return prefixes;
+    }
+
+    /**
+     * Forgets a user.
+     *
+     * @param nick nick
+     */
+    void forget(@NonNull String nick) {
+        this.nicks.remove(nick);
+    }
+
+    /**
+     * Forgets everybody.
+     */
+    void clear() {
+        this.nicks.clear();
+    }
+
+    private static @NonNull Prefixes compute(@NonNull Channel channel, @NonNull User user) {
+        Optional<SortedSet<ChannelUserMode>> userModes = channel.getUserModes(user);
+        if (!userModes.isPresent() || userModes.get().isEmpty()) {
+            return Prefixes.NONE;
+        }
+        StringBuilder modes = new StringBuilder();
+        for (ChannelUserMode mode : userModes.get()) {
+            modes.append(mode.getNickPrefix());
+        }
+        return new Prefixes(modes.charAt(0), modes.toString());
+    }
+}
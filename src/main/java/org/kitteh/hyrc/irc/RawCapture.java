@@ -0,0 +1,197 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.irc;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps one client's most recent raw lines in memory.
+ * <p/>
+ * Capturing stores a reference per line and formats nothing, so it can
+ * stay on where logging every line could not. The lines are written to
+ * the log on demand, or on an exception or unexpected disconnect, with
+ * automatic dumps limited to one per minute. Lines carrying credentials are kept
+ * with the credentials removed.
+ */
+final class RawCapture {
+    private static final class Line {
+        private final long time = System.currentTimeMillis();
+        private final boolean input;
+        private final String raw;
+
+        private Line(boolean input, @NonNull String raw) {
+            this.input = input;
+            this.raw = raw;
+        }
+    }
+
+    private static final long AUTO_DUMP_INTERVAL_MILLIS = 60000;
+
+    private final String client;
+    private final @Nullable AtomicReferenceArray<Line> lines;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong lastAutoDump = new AtomicLong();
+    private final boolean dumpOnException;
+    private final boolean dumpOnDisconnect;
+    private volatile boolean enabled;
+
+    /**
+     * Creates a capture.
+     *
+     * @param client client name
+     * @param config the 'debug-output' section of the bot
+     */
+    RawCapture(@NonNull String client, @NonNull ConfigurationNode config) {
+        this(client, Math.max(0, config.getNode("capture-lines").getInt(256)), config.getNode("capture").getBoolean(true),
+                config.getNode("dump-on-exception").getBoolean(true), config.getNode("dump-on-disconnect").getBoolean(true));
+    }
+
+    RawCapture(@NonNull String client, int size, boolean enabled, boolean dumpOnException, boolean dumpOnDisconnect) {
+        this.client = client;
+        this.lines = (size == 0) ? null : new AtomicReferenceArray<>(size);
+        this.enabled = enabled && size > 0;
+        this.dumpOnException = dumpOnException;
+        this.dumpOnDisconnect = dumpOnDisconnect;
+    }
+
+    boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Starts or stops capturing. Lines already captured are kept.
+     *
+     * @param enabled true to capture
+     * @return true if capturing, false if no lines are kept at all
+     */
+    boolean setEnabled(boolean enabled) {
+        this.enabled = enabled && this.lines != null;
+        return this.enabled;
+    }
+
+    boolean isDumpOnException() {
+        return this.dumpOnException && this.lines != null;
+    }
+
+    void input(@NonNull String line) {
+        if (this.enabled) {
+            this.add(true, line);
+        }
+    }
+
+    void output(@NonNull String line) {
+        if (this.enabled) {
+            this.add(false, redact(line));
+        }
+    }
+
+    private void add(boolean input, @NonNull String raw) {
+        AtomicReferenceArray<Line> lines = this.lines;
+        if (lines != null) {
+            lines.set((int) (this.next.getAndIncrement() % lines.length()), new Line(input, raw));
+        }
+    }
+
+    private static @NonNull String redact(@NonNull String line) {
+        if (line.startsWith("PASS ")) {
+            return "PASS <redacted>";
+        }
+        if (line.startsWith("AUTHENTICATE ") && !line.startsWith("AUTHENTICATE PLAIN") && !line.equals("AUTHENTICATE +")) {
+            return "AUTHENTICATE <redacted>";
+        }
+        if (line.regionMatches(true, 0, "PRIVMSG NickServ :", 0, 18)) {
+            return "PRIVMSG NickServ :<redacted>";
+        }
+        return line;
+    }
+
+    /**
+     * Gets the captured lines, oldest first.
+     *
+     * @return formatted lines
+     */
+    @NonNull List<String> snapshot() {
+        AtomicReferenceArray<Line> lines = this.lines;
+        if (lines == null) {
+            return new ArrayList<>(0);
+        }
+        long end = this.next.get();
+        long start = Math.max(0, end - lines.length());
+        List<String> snapshot = new ArrayList<>((int) (end - start));
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        for (long i = start; i < end; i++) {
+            Line line = lines.get((int) (i % lines.length()));
+            if (line != null) {
+                snapshot.add(format.format(new Date(line.time)) + (line.input ? " [IN] " : " [OUT] ") + line.raw);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes the captured lines to the log.
+     *
+     * @param reason why, for the log
+     * @return the lines written
+     */
+    @NonNull List<String> dump(@NonNull String reason) {
+        List<String> snapshot = this.snapshot();
+        HyRC.log().info(() -> "Last " + snapshot.size() + " raw lines of " + this.client + ", " + reason + ":\n" + String.join("\n", snapshot));
+        return snapshot;
+    }
+
+    void exception(@NonNull Throwable exception) {
+        if (this.dumpOnException) {
+            this.autoDump("before " + exception);
+        }
+    }
+
+    void disconnected(@Nullable Throwable cause) {
+        if (this.dumpOnDisconnect) {
+            this.autoDump((cause == null) ? "before disconnecting" : "before disconnecting with " + cause);
+        }
+    }
+
+    private void autoDump(@NonNull String reason) {
+        if (this.lines == null || this.next.get() == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long last = this.lastAutoDump.get();
+        if (last != 0 && now - last < AUTO_DUMP_INTERVAL_MILLIS || !this.lastAutoDump.compareAndSet(last, now)) {
+            return;
+        }
+        this.dump(reason);
+    }
+}
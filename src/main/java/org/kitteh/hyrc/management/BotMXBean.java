@@ -0,0 +1,80 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.management;
+
+import java.util.List;
+
+/**
+ * An IRC bot.
+ */
+public interface BotMXBean {
+    /**
+     * Gets the number of connections backing the bot.
+     *
+     * @return pool size
+     */
+    int getPoolSize();
+
+    /**
+     * Gets the number of connections currently established.
+     *
+     * @return connected count
+     */
+    int getConnectedCount();
+
+    /**
+     * Gets the number of messages waiting to be written to the server.
+     *
+     * @return outbound backlog
+     */
+    int getOutboundBacklog();
+
+    /**
+     * Gets the number of reconnects since startup.
+     *
+     * @return reconnect count
+     */
+    int getReconnectCount();
+
+    /**
+     * Gets if raw IRC lines are being captured.
+     *
+     * @return true if capturing
+     */
+    boolean isCaptureEnabled();
+
+    /**
+     * Starts or stops capturing raw IRC lines.
+     *
+     * @param enabled true to capture
+     */
+    void setCaptureEnabled(boolean enabled);
+
+    /**
+     * Writes the captured raw IRC lines to the log.
+     *
+     * @return the lines written
+     */
+    List<String> dumpCapture();
+}
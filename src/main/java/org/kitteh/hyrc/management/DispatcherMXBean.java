@@ -0,0 +1,88 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.management;
+
+import java.util.List;
+
+/**
+ * The message dispatcher.
+ */
+public interface DispatcherMXBean {
+    /**
+     * Gets the number of messages queued for delivery.
+     *
+     * @return queue depth
+     */
+    int getQueueDepth();
+
+    /**
+     * Gets the number of messages delivered since startup.
+     *
+     * @return delivered count
+     */
+    long getDispatchedCount();
+
+    /**
+     * Gets the delivery rate over the last minute, the same for every
+     * reader however often it is read.
+     *
+     * @return messages per second
+     */
+    double getDispatchRate();
+
+    /**
+     * Gets the heap budget for queued messages.
+     *
+     * @return bytes, or zero if not limited
+     */
+    long getHeapBudgetBytes();
+
+    /**
+     * Gets the estimated heap retained by queued messages.
+     *
+     * @return bytes
+     */
+    long getHeapUsedBytes();
+
+    /**
+     * Gets the most heap retained by queued messages since startup.
+     *
+     * @return bytes
+     */
+    long getHeapHighWaterBytes();
+
+    /**
+     * Discards all queued messages.
+     *
+     * @return number of discarded messages
+     */
+    int drainQueue();
+
+    /**
+     * Describes the most recent sampled message traces, if tracing.
+     *
+     * @return one line per trace, oldest first
+     */
+    List<String> dumpTraces();
+}
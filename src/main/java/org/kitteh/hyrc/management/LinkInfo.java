@@ -0,0 +1,71 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.management;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * A row of the link table.
+ */
+public final class LinkInfo {
+    private final String source;
+    private final String target;
+    private final long messages;
+    private final int filters;
+    private final boolean paused;
+
+    LinkInfo(@NonNull String source, @NonNull String target, long messages, int filters, boolean paused) {
+        this.source = source;
+        this.target = target;
+        this.messages = messages;
+        this.filters = filters;
+        this.paused = paused;
+    }
+
+    public @NonNull String getSource() {
+        return this.source;
+    }
+
+    public @NonNull String getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Gets the number of messages sent over the link, if metrics are
+     * enabled.
+     *
+     * @return message count
+     */
+    public long getMessages() {
+        return this.messages;
+    }
+
+    public int getFilters() {
+        return this.filters;
+    }
+
+    public boolean isPaused() {
+        return this.paused;
+    }
+}
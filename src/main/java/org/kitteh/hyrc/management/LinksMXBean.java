@@ -0,0 +1,65 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.management;
+
+import java.util.List;
+
+/**
+ * The links between endpoints, and their filters.
+ */
+public interface LinksMXBean {
+    /**
+     * Gets the link table.
+     *
+     * @return all links
+     */
+    List<LinkInfo> getLinks();
+
+    /**
+     * Pauses all links from a source to a target, rejecting messages.
+     *
+     * @param source source endpoint name
+     * @param target target endpoint name
+     * @return number of links paused
+     */
+    int pauseLink(String source, String target);
+
+    /**
+     * Resumes all links from a source to a target.
+     *
+     * @param source source endpoint name
+     * @param target target endpoint name
+     * @return number of links resumed
+     */
+    int resumeLink(String source, String target);
+
+    /**
+     * Describes the filters taking the most time per message, if metrics
+     * are enabled.
+     *
+     * @param count maximum number of filters
+     * @return one line per filter, slowest first
+     */
+    List<String> dumpSlowestFilters(int count);
+}
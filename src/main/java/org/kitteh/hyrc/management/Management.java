@@ -0,0 +1,236 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.management;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.endpoint.EndpointManager;
+import org.kitteh.hyrc.endpoint.link.Link;
+import org.kitteh.hyrc.irc.IRCBot;
+import org.kitteh.hyrc.metrics.Histogram;
+import org.kitteh.hyrc.metrics.Metrics;
+import org.kitteh.hyrc.metrics.Trace;
+import org.kitteh.hyrc.util.shutdownable.Shutdownable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Registers HyRC's beans with the platform MBean server, under the
+ * "org.kitteh.hyrc" domain, and unregisters them on shutdown.
+ */
+public final class Management implements Shutdownable {
+    private static final String DOMAIN = "org.kitteh.hyrc";
+
+    private final class Dispatcher implements DispatcherMXBean {
+        @Override
+        public int getQueueDepth() {
+            return Management.this.plugin.getEndpointManager().getQueuedCount();
+        }
+
+        @Override
+        public long getDispatchedCount() {
+            return Management.this.plugin.getEndpointManager().getDispatchedCount();
+        }
+
+        @Override
+        public double getDispatchRate() {
+            return Management.this.plugin.getEndpointManager().getDispatchRate();
+        }
+
+        @Override
+        public long getHeapBudgetBytes() {
+            return Management.this.plugin.getEndpointManager().getHeapBudgetBytes();
+        }
+
+        @Override
+        public long getHeapUsedBytes() {
+            return Management.this.plugin.getEndpointManager().getHeapUsedBytes();
+        }
+
+        @Override
+        public long getHeapHighWaterBytes() {
+            return Management.this.plugin.getEndpointManager().getHeapHighWaterBytes();
+        }
+
+        @Override
+        public int drainQueue() {
+            return Management.this.plugin.getEndpointManager().drainQueue();
+        }
+
+        @Override
+        public List<String> dumpTraces() {
+            return Management.this.plugin.getTracer().getTraces().stream().map(Trace::toString).collect(Collectors.toList());
+        }
+    }
+
+    private static final class Bot implements BotMXBean {
+        private final IRCBot bot;
+
+        private Bot(@NonNull IRCBot bot) {
+            this.bot = bot;
+        }
+
+        @Override
+        public int getPoolSize() {
+            return this.bot.getPoolSize();
+        }
+
+        @Override
+        public int getConnectedCount() {
+            return this.bot.getConnectedCount();
+        }
+
+        @Override
+        public int getOutboundBacklog() {
+            return this.bot.getOutboundBacklog();
+        }
+
+        @Override
+        public int getReconnectCount() {
+            return this.bot.getReconnectCount();
+        }
+
+        @Override
+        public boolean isCaptureEnabled() {
+            return this.bot.isCaptureEnabled();
+        }
+
+        @Override
+        public void setCaptureEnabled(boolean enabled) {
+            this.bot.setCaptureEnabled(enabled);
+        }
+
+        @Override
+        public List<String> dumpCapture() {
+            return this.bot.dumpCapture();
+        }
+    }
+
+    private final class Links implements LinksMXBean {
+        @Override
+        public List<LinkInfo> getLinks() {
+            Metrics metrics = Management.this.plugin.getMetrics();
+            List<LinkInfo> links = new ArrayList<>();
+            for (Link link : Management.this.plugin.getLinkManager().getLinks()) {
+                long messages = metrics.counter("hyrc_link_messages_total", "source", link.getSource(), "target", link.getTarget()).get();
+                links.add(new LinkInfo(link.getSource(), link.getTarget(), messages, link.getFilterCount(), link.isPaused()));
+            }
+            return links;
+        }
+
+        @Override
+        public int pauseLink(String source, String target) {
+            return this.setPaused(source, target, true);
+        }
+
+        @Override
+        public int resumeLink(String source, String target) {
+            return this.setPaused(source, target, false);
+        }
+
+        private int setPaused(@NonNull String source, @NonNull String target, boolean paused) {
+            int changed = 0;
+            for (Link link : Management.this.plugin.getLinkManager().getLinks(source)) {
+                if (link.getTarget().equals(target)) {
+                    link.setPaused(paused);
+                    changed++;
+                }
+            }
+            if (changed > 0) {
+                HyRC.log().info(String.format("%s link %s -> %s", paused ? "Paused" : "Resumed", source, target));
+            }
+            return changed;
+        }
+
+        @Override
+        public List<String> dumpSlowestFilters(int count) {
+            return Management.this.plugin.getMetrics().getHistograms().entrySet().stream()
+                    .filter(entry -> entry.getKey().getName().equals("hyrc_filter_nanoseconds") && entry.getValue().getCount() > 0)
+                    .sorted(Comparator.comparingDouble((Map.Entry<Metrics.Name, Histogram> entry) -> mean(entry.getValue())).reversed())
+                    .limit(Math.max(0, count))
+                    .map(entry -> describe(entry.getKey(), entry.getValue()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private final HyRC plugin;
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    /**
+     * Registers all beans.
+     *
+     * @param plugin the HyRC instance
+     */
+    public Management(@NonNull HyRC plugin) {
+        this.plugin = plugin;
+        this.register("type=Dispatcher", new Dispatcher(), DispatcherMXBean.class);
+        this.register("type=Links", new Links(), LinksMXBean.class);
+        for (IRCBot bot : plugin.getBotManager().getBots()) {
+            this.register("type=Bot,name=" + ObjectName.quote(bot.getName()), new Bot(bot), BotMXBean.class);
+        }
+    }
+
+    private <T> void register(@NonNull String properties, @NonNull T bean, @NonNull Class<T> type) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ':' + properties);
+            this.server.registerMBean(new StandardMBean(bean, type, true), name);
+            this.registered.add(name);
+        } catch (JMException e) {
+            HyRC.log().warning("Could not register MBean " + properties, e);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (ObjectName name : this.registered) {
+            try {
+                this.server.unregisterMBean(name);
+            } catch (JMException ignored) {
+                // Already gone
+            }
+        }
+        this.registered.clear();
+    }
+
+    private static double mean(@NonNull Histogram histogram) {
+        return histogram.getSum() / (double) Math.max(1, histogram.getCount());
+    }
+
+    private static @NonNull String describe(Metrics.@NonNull Name name, @NonNull Histogram histogram) {
+        Map<String, String> labels = name.getLabels();
+        return String.format("%s -> %s #%s %s: mean %.1fus, p99 %.1fus, %d messages",
+                labels.get("source"), labels.get("target"), labels.get("position"), labels.get("filter"),
+                mean(histogram) / 1000, histogram.getValueAtQuantile(0.99) / 1000d, histogram.getCount());
+    }
+}
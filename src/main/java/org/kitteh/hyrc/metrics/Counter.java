@@ -0,0 +1,73 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.metrics;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count only going up, cheap to update from many threads at once.
+ */
+public final class Counter {
+    /**
+     * A counter ignoring updates, handed out while metrics are disabled.
+     */
+    public static final Counter NOOP = new Counter(false);
+
+    private final @Nullable LongAdder adder;
+
+    Counter(boolean enabled) {
+        this.adder = enabled ? new LongAdder() : null;
+    }
+
+    /**
+     * Adds one.
+     */
+    public void increment() {
+        if (this.adder != null) {
+            this.adder.increment();
+        }
+    }
+
+    /**
+     * Adds an amount.
+     *
+     * @param amount amount to add
+     */
+    public void add(long amount) {
+        if (this.adder != null) {
+            this.adder.add(amount);
+        }
+    }
+
+    /**
+     * Gets the count.
+     *
+     * @return count
+     */
+    public long get() {
+        return (this.adder == null) ? 0 : this.adder.sum();
+    }
+}
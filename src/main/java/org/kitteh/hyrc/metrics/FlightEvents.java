@@ -0,0 +1,145 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.HyRC;
+
+/**
+ * Emits Java Flight Recorder events for the message pipeline, or nothing
+ * on JVMs without Flight Recorder.
+ * <p/>
+ * The recording implementation lives in src/main/java11 and is only built
+ * by the java11 profile, active when building on Java 11 or later. Builds
+ * made on Java 8, or run on Java 8, never record.
+ * <p/>
+ * Timed events are begun by a call returning an opaque handle, null when
+ * the event is not being recorded, which is passed back on completion.
+ * Dispatch and filter events are only recorded past the threshold set in
+ * the recording's settings, defaulting to 20 and 5 ms. IRC sends are only
+ * recorded when paced by at least the configured delay, and queue
+ * overflows when the queue grows past the configured depth.
+ */
+public abstract class FlightEvents {
+    /**
+     * Events going nowhere.
+     */
+    public static final FlightEvents NOOP = new FlightEvents() {
+    };
+
+    /**
+     * Gets events for this JVM.
+     *
+     * @param ircSendThresholdNanos least pacing delay of recorded IRC sends
+     * @return Flight Recorder events if available, otherwise {@link #NOOP}
+     */
+    public static @NonNull FlightEvents create(long ircSendThresholdNanos) {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+        } catch (ClassNotFoundException e) {
+            return NOOP;
+        }
+        Class<?> jfrEvents;
+        try {
+            jfrEvents = Class.forName("org.kitteh.hyrc.metrics.JfrFlightEvents");
+        } catch (ClassNotFoundException | UnsupportedClassVersionError e) {
+            HyRC.log().info("Flight Recorder events need a build made on, and running on, Java 11 or later");
+            return NOOP;
+        }
+        try {
+            return (FlightEvents) jfrEvents.getDeclaredConstructor(long.class).newInstance(ircSendThresholdNanos);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            HyRC.log().warning("Could not set up Flight Recorder events", e);
+            return NOOP;
+        }
+    }
+
+    /**
+     * Begins timing a message's dispatch.
+     *
+     * @return handle, or null if not recording
+     */
+    public @Nullable Object beginDispatch() {
+        return null;
+    }
+
+    /**
+     * Completes timing a message's dispatch.
+     *
+     * @param handle handle from {@link #beginDispatch()}
+     * @param source source endpoint name
+     * @param destinations number of destinations
+     */
+    public void endDispatch(@Nullable Object handle, @NonNull String source, int destinations) {
+    }
+
+    /**
+     * Begins timing a filter.
+     *
+     * @return handle, or null if not recording
+     */
+    public @Nullable Object beginFilter() {
+        return null;
+    }
+
+    /**
+     * Completes timing a filter.
+     *
+     * @param handle handle from {@link #beginFilter()}
+     * @param link link description
+     * @param filter filter type
+     * @param rejected whether the filter rejected the message
+     */
+    public void endFilter(@Nullable Object handle, @NonNull String link, @NonNull String filter, boolean rejected) {
+    }
+
+    /**
+     * Gets if IRC sends are recorded, so callers may skip tracking them.
+     *
+     * @return true if recording
+     */
+    public boolean isIrcSendEnabled() {
+        return false;
+    }
+
+    /**
+     * Records a line written to IRC.
+     *
+     * @param bot bot name
+     * @param target channel or other target
+     * @param bytes message length in UTF-8 bytes
+     * @param pacingNanos time between queueing and writing the line
+     */
+    public void ircSend(@NonNull String bot, @NonNull String target, int bytes, long pacingNanos) {
+    }
+
+    /**
+     * Records the delivery queue growing past its threshold.
+     *
+     * @param depth queued messages
+     */
+    public void queueOverflow(int depth) {
+    }
+}
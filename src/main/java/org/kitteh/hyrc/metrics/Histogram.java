@@ -0,0 +1,206 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of recorded values, such as durations in nanoseconds.
+ * <p/>
+ * Values are counted in fixed buckets, eight per power of two, so any
+ * reported value is within 12.5% of a recorded one while recording stays
+ * a handful of instructions without allocation. Values from zero to about
+ * 1.7e13 are tracked, larger ones count as the largest.
+ */
+public final class Histogram {
+    /**
+     * A histogram ignoring values, handed out while metrics are disabled.
+     */
+    public static final Histogram NOOP = new Histogram(false);
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_MAGNITUDE = 43;
+    private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+    /**
+     * Number of buckets.
+     */
+    public static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final boolean enabled;
+    private final AtomicLongArray buckets;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    Histogram(boolean enabled) {
+        this.enabled = enabled;
+        this.buckets = new AtomicLongArray(enabled ? BUCKETS : 0);
+    }
+
+    /**
+     * Gets if values are recorded. When not, callers may skip measuring.
+     *
+     * @return true if recording
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Records a value. Negative values count as zero.
+     *
+     * @param value value
+     */
+    public void record(long value) {
+        if (!this.enabled) {
+            return;
+        }
+        long clamped = Math.min(Math.max(0, value), MAX_VALUE);
+        this.buckets.incrementAndGet(index(clamped));
+        this.count.increment();
+        this.sum.add(clamped);
+    }
+
+    /**
+     * Records the time since a {@link System#nanoTime()} reading.
+     *
+     * @param startNanos reading taken at the start
+     */
+    public void recordSince(long startNanos) {
+        if (this.enabled) {
+            this.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return count
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Gets the sum of recorded values.
+     *
+     * @return sum
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * Gets an upper bound of the value below which the given share of
+     * recorded values lie.
+     *
+     * @param quantile share, from 0 to 1
+     * @return value, zero if nothing recorded
+     */
+    public long getValueAtQuantile(double quantile) {
+        if (!this.enabled) {
+            return 0;
+        }
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+        }
+        return valueAtQuantile(counts, total, quantile);
+    }
+
+    /**
+     * Gets the highest bucket bound holding any value.
+     *
+     * @return value, zero if nothing recorded
+     */
+    public long getMax() {
+        for (int i = this.buckets.length() - 1; i >= 0; i--) {
+            if (this.buckets.get(i) > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Copies the per-bucket counts, to compute several quantiles from
+     * one consistent-enough view without allocating.
+     *
+     * @param into array of at least {@link #BUCKETS} length
+     * @return the total of copied counts
+     */
+    public long copyBuckets(long[] into) {
+        long total = 0;
+        for (int i = 0; i < this.buckets.length(); i++) {
+            into[i] = this.buckets.get(i);
+            total += into[i];
+        }
+        return total;
+    }
+
+    /**
+     * Gets an upper bound of the value below which the given share of
+     * values lie, from copied bucket counts.
+     *
+     * @param counts counts copied by {@link #copyBuckets(long[])}
+     * @param total total of the counts
+     * @param quantile share, from 0 to 1
+     * @return value, zero if no counts
+     */
+    public static long valueAtQuantile(long[] counts, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) - SUB_COUNT);
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long sub = index & (SUB_COUNT - 1);
+        return ((SUB_COUNT + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of HyRC's counters, histograms and gauges.
+ * <p/>
+ * Metrics are looked up once by name and labels, then held by whatever
+ * updates them. While disabled, lookups return shared instances ignoring
+ * updates, so instrumented code costs little more than a method call.
+ */
+public final class Metrics {
+    /**
+     * A metric's name and labels.
+     */
+    public static final class Name {
+        private final String name;
+        private final String[] labels;
+
+        private Name(@NonNull String name, @NonNull String[] labels) {
+            if ((labels.length & 1) != 0) {
+                throw new IllegalArgumentException("Labels must be name and value pairs");
+            }
+            this.name = name;
+            this.labels = labels.clone();
+        }
+
+        /**
+         * Gets the metric's name.
+         *
+         * @return name
+         */
+        public @NonNull String getName() {
+            return this.name;
+        }
+
+        /**
+         * Gets the metric's labels, in registration order.
+         *
+         * @return label names to values
+         */
+        public @NonNull Map<String, String> getLabels() {
+            Map<String, String> labels = new LinkedHashMap<>();
+            for (int i = 0; i < this.labels.length; i += 2) {
+                labels.put(this.labels[i], this.labels[i + 1]);
+            }
+            return labels;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            return o instanceof Name && this.name.equals(((Name) o).name) && Arrays.equals(this.labels, ((Name) o).labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.name.hashCode() * 31 + Arrays.hashCode(this.labels);
+        }
+
+        @Override
+        public @NonNull String toString() {
+            return this.name + this.getLabels();
+        }
+    }
+
+    /**
+     * A registry handing out only no-op metrics.
+     */
+    public static final Metrics DISABLED = new Metrics(false);
+
+    private final boolean enabled;
+    private final ConcurrentMap<Name, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Name, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Name, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a registry.
+     *
+     * @param enabled whether metrics are recorded
+     */
+    public Metrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Gets if metrics are recorded.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Gets or creates a counter.
+     *
+     * @param name metric name
+     * @param labels alternating label names and values
+     * @return counter
+     */
+    public @NonNull Counter counter(@NonNull String name, @NonNull String... labels) {
+        if (!this.enabled) {
+            return Counter.NOOP;
+        }
+        return this.counters.computeIfAbsent(new Name(name, labels), n -> new Counter(true));
+    }
+
+    /**
+     * Gets or creates a histogram.
+     *
+     * @param name metric name
+     * @param labels alternating label names and values
+     * @return histogram
+     */
+    public @NonNull Histogram histogram(@NonNull String name, @NonNull String... labels) {
+        if (!this.enabled) {
+            return Histogram.NOOP;
+        }
+        return this.histograms.computeIfAbsent(new Name(name, labels), n -> new Histogram(true));
+    }
+
+    /**
+     * Registers a gauge, read whenever metrics are read.
+     *
+     * @param name metric name
+     * @param supplier supplies the current value
+     * @param labels alternating label names and values
+     */
+    public void gauge(@NonNull String name, @NonNull LongSupplier supplier, @NonNull String... labels) {
+        if (this.enabled) {
+            this.gauges.put(new Name(name, labels), supplier);
+        }
+    }
+
+    /**
+     * Gets all counters.
+     *
+     * @return unmodifiable view of counters by name
+     */
+    public @NonNull Map<Name, Counter> getCounters() {
+        return Collections.unmodifiableMap(this.counters);
+    }
+
+    /**
+     * Gets all histograms.
+     *
+     * @return unmodifiable view of histograms by name
+     */
+    public @NonNull Map<Name, Histogram> getHistograms() {
+        return Collections.unmodifiableMap(this.histograms);
+    }
+
+    /**
+     * Gets all gauges.
+     *
+     * @return unmodifiable view of gauges by name
+     */
+    public @NonNull Map<Name, LongSupplier> getGauges() {
+        return Collections.unmodifiableMap(this.gauges);
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Serves the metrics registry in the Prometheus text format.
+ * <p/>
+ * Counters and gauges are exported as such, and histograms as histograms
+ * with cumulative buckets from a microsecond to ten seconds, converting
+ * "_nanoseconds" metrics to seconds. A bucket counts the values recorded
+ * in histogram buckets wholly at or below its bound, so it may miss some
+ * values within 12.5% of the bound but never counts one above it.
+ * The name and label text of every series is rendered once, and only
+ * again when metrics are added to the registry. Each scrape writes into
+ * the same buffers, so scraping every few seconds makes little garbage.
+ * Scrapes are handled one at a time on the server's own thread.
+ */
+public final class PrometheusExporter {
+    private static final long[] BOUNDS = {
+            1_000L, 2_500L, 5_000L, 10_000L, 25_000L, 50_000L, 100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L, 250_000_000L, 500_000_000L,
+            1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+    // Last histogram bucket counted by each bound
+    private static final int[] BOUND_INDEXES = new int[BOUNDS.length];
+    private static final String NANOSECONDS = "_nanoseconds";
+    private static final byte[] BUCKET = "_bucket".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SUM = "_sum".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COUNT = "_count".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            int index = Histogram.index(BOUNDS[i]);
+            BOUND_INDEXES[i] = (Histogram.upperBound(index) == BOUNDS[i]) ? index : index - 1;
+        }
+    }
+
+    private static final class Series {
+        private final byte[] name;
+        private final byte[] labels;
+        private final byte @Nullable [][] bucketLabels;
+        private final @Nullable Counter counter;
+        private final @Nullable Histogram histogram;
+        private final @Nullable LongSupplier gauge;
+
+        private Series(byte @NonNull [] name, @NonNull Map<String, String> labels, @Nullable Counter counter, @Nullable Histogram histogram, @Nullable LongSupplier gauge) {
+            this.name = name;
+            this.labels = labels(labels, null);
+            this.counter = counter;
+            this.histogram = histogram;
+            this.gauge = gauge;
+            if (histogram != null) {
+                this.bucketLabels = new byte[BOUNDS.length + 1][];
+                for (int i = 0; i < BOUNDS.length; i++) {
+                    this.bucketLabels[i] = labels(labels, BigDecimal.valueOf(BOUNDS[i], 9).stripTrailingZeros().toPlainString());
+                }
+                this.bucketLabels[BOUNDS.length] = labels(labels, "+Inf");
+            } else {
+                this.bucketLabels = null;
+            }
+        }
+    }
+
+    private static final class Family {
+        private final byte[] header;
+        private final List<Series> series = new ArrayList<>();
+
+        private Family(@NonNull String name, @NonNull String type) {
+            this.header = ("# TYPE " + name + ' ' + type + '\n').getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private final Metrics metrics;
+    private final HttpServer server;
+    private final long[] buckets = new long[Histogram.BUCKETS];
+    private List<Family> families = new ArrayList<>();
+    private int registered = -1;
+    private byte[] buffer = new byte[16 * 1024];
+    private int length;
+
+    /**
+     * Creates and binds an exporter, which does nothing until started.
+     *
+     * @param metrics metrics to export
+     * @param address address to bind
+     * @throws IOException if unable to bind
+     */
+    public PrometheusExporter(@NonNull Metrics metrics, @NonNull InetSocketAddress address) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext("/", this::handle);
+    }
+
+    /**
+     * Starts serving.
+     */
+    public void start() {
+        this.server.start();
+    }
+
+    /**
+     * Gets the bound port.
+     *
+     * @return port
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stops serving.
+     */
+    public void close() {
+        this.server.stop(0);
+    }
+
+    private void handle(@NonNull HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            synchronized (this) {
+                this.render();
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, this.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(this.buffer, 0, this.length);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Renders all metrics into the buffer.
+     */
+    synchronized void render() {
+        int registered = this.metrics.getCounters().size() + this.metrics.getHistograms().size() + this.metrics.getGauges().size();
+        if (registered != this.registered) {
+            this.families = this.buildFamilies();
+            this.registered = registered;
+        }
+        this.length = 0;
+        for (Family family : this.families) {
+            this.write(family.header);
+            for (Series series : family.series) {
+                if (series.histogram != null) {
+                    this.writeHistogram(series, series.histogram);
+                } else {
+                    this.write(series.name);
+                    this.write(series.labels);
+                    this.write((byte) ' ');
+                    this.writeLong((series.counter != null) ? series.counter.get() : series.gauge.getAsLong());
+                    this.write((byte) '\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the last rendered text.
+     *
+     * @return text
+     */
+    @NonNull String getRendered() {
+        return new String(this.buffer, 0, this.length, StandardCharsets.UTF_8);
+    }
+
+    private void writeHistogram(@NonNull Series series, @NonNull Histogram histogram) {
+        long total = histogram.copyBuckets(this.buckets);
+        long cumulative = 0;
+        int index = 0;
+        for (int i = 0; i <= BOUNDS.length; i++) {
+            if (i < BOUNDS.length) {
+                for (; index <= BOUND_INDEXES[i]; index++) {
+                    cumulative += this.buckets[index];
+                }
+            } else {
+                cumulative = total;
+            }
+            this.write(series.name);
+            this.write(BUCKET);
+            this.write(series.bucketLabels[i]);
+            this.write((byte) ' ');
+            this.writeLong(cumulative);
+            this.write((byte) '\n');
+        }
+        this.write(series.name);
+        this.write(SUM);
+        this.write(series.labels);
+        this.write((byte) ' ');
+        this.writeNanos(histogram.getSum());
+        this.write((byte) '\n');
+        this.write(series.name);
+        this.write(COUNT);
+        this.write(series.labels);
+        this.write((byte) ' ');
+        this.writeLong(total);
+        this.write((byte) '\n');
+    }
+
+    private @NonNull List<Family> buildFamilies() {
+        Map<String, Family> families = new TreeMap<>();
+        for (Map.Entry<Metrics.Name, Counter> entry : this.metrics.getCounters().entrySet()) {
+            String name = entry.getKey().getName();
+            families.computeIfAbsent(name, n -> new Family(n, "counter")).series.add(new Series(bytes(name), entry.getKey().getLabels(), entry.getValue(), null, null));
+        }
+        for (Map.Entry<Metrics.Name, LongSupplier> entry : this.metrics.getGauges().entrySet()) {
+            String name = entry.getKey().getName();
+            families.computeIfAbsent(name, n -> new Family(n, "gauge")).series.add(new Series(bytes(name), entry.getKey().getLabels(), null, null, entry.getValue()));
+        }
+        for (Map.Entry<Metrics.Name, Histogram> entry : this.metrics.getHistograms().entrySet()) {
+            String name = entry.getKey().getName();
+            if (name.endsWith(NANOSECONDS)) {
+                name = name.substring(0, name.length() - NANOSECONDS.length()) + "_seconds";
+            }
+            families.computeIfAbsent(name, n -> new Family(n, "histogram")).series.add(new Series(bytes(name), entry.getKey().getLabels(), null, entry.getValue(), null));
+        }
+        return new ArrayList<>(families.values());
+    }
+
+    private void write(byte value) {
+        this.ensure(1);
+        this.buffer[this.length++] = value;
+    }
+
+    private void write(byte @NonNull [] bytes) {
+        this.ensure(bytes.length);
+        System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+        this.length += bytes.length;
+    }
+
+    private void writeLong(long value) {
+        this.ensure(20);
+        if (value < 0) {
+            this.buffer[this.length++] = '-';
+            value = -value;
+        }
+        int start = this.length;
+        do {
+            this.buffer[this.length++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = this.length - 1; i < j; i++, j--) {
+            byte swap = this.buffer[i];
+            this.buffer[i] = this.buffer[j];
+            this.buffer[j] = swap;
+        }
+    }
+
+    private void writeNanos(long nanos) {
+        this.writeLong(nanos / 1_000_000_000L);
+        this.ensure(10);
+        this.buffer[this.length++] = '.';
+        long fraction = nanos % 1_000_000_000L;
+        for (long divisor = 100_000_000L; divisor > 0; divisor /= 10) {
+            this.buffer[this.length++] = (byte) ('0' + (fraction / divisor) % 10);
+        }
+    }
+
+    private void ensure(int bytes) {
+        if (this.length + bytes > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + bytes));
+        }
+    }
+
+    private static byte @NonNull [] bytes(@NonNull String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte @NonNull [] labels(@NonNull Map<String, String> labels, @Nullable String bound) {
+        if (labels.isEmpty() && bound == null) {
+            return new byte[0];
+        }
+        StringBuilder builder = new StringBuilder("{");
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            if (builder.length() > 1) {
+                builder.append(',');
+            }
+            builder.append(label.getKey()).append("=\"").append(escape(label.getValue())).append('"');
+        }
+        if (bound != null) {
+            if (builder.length() > 1) {
+                builder.append(',');
+            }
+            builder.append("le=\"").append(bound).append('"');
+        }
+        return bytes(builder.append('}').toString());
+    }
+
+    private static @NonNull String escape(@NonNull String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Events per second over a fixed window of whole seconds, ending with the
+ * last completed second. Reading does not reset anything, so any number of
+ * readers, at any interval, see the same rate.
+ */
+public final class Rate {
+    private final int window;
+    private final long[] seconds;
+    private final long[] counts;
+
+    /**
+     * Creates a rate.
+     *
+     * @param window window length, in seconds
+     */
+    public Rate(int window) {
+        this.window = Math.max(1, window);
+        // One more slot for the second in progress
+        this.seconds = new long[this.window + 1];
+        this.counts = new long[this.window + 1];
+    }
+
+    /**
+     * Records one event now.
+     */
+    public void mark() {
+        this.mark(now());
+    }
+
+    synchronized void mark(long second) {
+        int slot = (int) Math.floorMod(second, (long) this.seconds.length);
+        if (this.seconds[slot] != second) {
+            this.seconds[slot] = second;
+            this.counts[slot] = 0;
+        }
+        this.counts[slot]++;
+    }
+
+    /**
+     * Gets the rate over the window ending with the last completed second.
+     *
+     * @return events per second
+     */
+    public double get() {
+        return this.get(now());
+    }
+
+    synchronized double get(long second) {
+        long total = 0;
+        for (int slot = 0; slot < this.seconds.length; slot++) {
+            long age = second - this.seconds[slot];
+            if (age > 0 && age <= this.window) {
+                total += this.counts[slot];
+            }
+        }
+        return (double) total / this.window;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+}
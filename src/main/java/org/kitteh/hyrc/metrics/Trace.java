@@ -0,0 +1,126 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * {@link System#nanoTime()} stamps of the stages a message went through.
+ * <p/>
+ * Stamps are added by whichever thread handles the message at the time,
+ * each handing the message to the next through a queue or directly, so no
+ * locking is needed.
+ */
+public final class Trace {
+    private final String source;
+    private final long startMillis = System.currentTimeMillis();
+    private String[] stages = new String[16];
+    private long[] stamps = new long[16];
+    private int count;
+
+    Trace(@NonNull String source) {
+        this.source = source;
+    }
+
+    /**
+     * Gets the name of the endpoint the message was sent from.
+     *
+     * @return source endpoint name
+     */
+    public @NonNull String getSource() {
+        return this.source;
+    }
+
+    /**
+     * Gets when the trace started.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long getStartMillis() {
+        return this.startMillis;
+    }
+
+    /**
+     * Stamps the end of a stage with the current time.
+     *
+     * @param stage stage name
+     */
+    public void stamp(@NonNull String stage) {
+        if (this.count == this.stamps.length) {
+            this.stages = Arrays.copyOf(this.stages, this.count * 2);
+            this.stamps = Arrays.copyOf(this.stamps, this.count * 2);
+        }
+        this.stages[this.count] = stage;
+        this.stamps[this.count++] = System.nanoTime();
+    }
+
+    /**
+     * Gets the number of stamps.
+     *
+     * @return stamp count
+     */
+    public int getStageCount() {
+        return this.count;
+    }
+
+    /**
+     * Gets a stamp's stage name.
+     *
+     * @param index stamp index
+     * @return stage name
+     */
+    public @NonNull String getStage(int index) {
+        return this.stages[index];
+    }
+
+    /**
+     * Gets a stamp's time.
+     *
+     * @param index stamp index
+     * @return {@link System#nanoTime()} reading
+     */
+    public long getStamp(int index) {
+        return this.stamps[index];
+    }
+
+    /**
+     * Describes each stage with the microseconds since the previous one.
+     *
+     * @return description
+     */
+    @Override
+    public @NonNull String toString() {
+        StringBuilder builder = new StringBuilder(this.source).append(" at ").append(this.startMillis).append(':');
+        for (int i = 0; i < this.count; i++) {
+            long since = (i == 0) ? 0 : this.stamps[i] - this.stamps[i - 1];
+            builder.append(' ').append(this.stages[i]).append(" +").append(since / 1000).append("us");
+        }
+        if (this.count > 1) {
+            builder.append(", total ").append((this.stamps[this.count - 1] - this.stamps[0]) / 1000).append("us");
+        }
+        return builder.toString();
+    }
+}
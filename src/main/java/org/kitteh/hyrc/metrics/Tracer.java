@@ -0,0 +1,116 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Starts {@link Trace}s for a sampled share of messages and keeps the most
+ * recent completed ones in a ring.
+ * <p/>
+ * Completing a trace claims the next ring slot with one atomic increment,
+ * overwriting the oldest trace, so tracing threads never wait on each
+ * other or on anyone reading the ring.
+ */
+public final class Tracer {
+    /**
+     * A tracer never sampling.
+     */
+    public static final Tracer DISABLED = new Tracer(0, 1);
+
+    private final double sampleRate;
+    private final AtomicReferenceArray<Trace> ring;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Creates a tracer.
+     *
+     * @param sampleRate share of messages to trace, from 0 to 1
+     * @param ringSize number of completed traces kept
+     */
+    public Tracer(double sampleRate, int ringSize) {
+        this.sampleRate = sampleRate;
+        this.ring = new AtomicReferenceArray<>(ringSize);
+    }
+
+    /**
+     * Gets if any messages are traced. When not, callers need not try
+     * starting traces.
+     *
+     * @return true if sampling
+     */
+    public boolean isSampling() {
+        return this.sampleRate > 0;
+    }
+
+    /**
+     * Starts tracing a message if it is sampled, stamping the "ingest"
+     * stage.
+     *
+     * @param source name of the endpoint sending the message
+     * @return a trace, or null if not sampled
+     */
+    public @Nullable Trace start(@NonNull String source) {
+        if (this.sampleRate <= 0 || (this.sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= this.sampleRate)) {
+            return null;
+        }
+        Trace trace = new Trace(source);
+        trace.stamp("ingest");
+        return trace;
+    }
+
+    /**
+     * Stores a trace no longer being stamped.
+     *
+     * @param trace trace
+     */
+    public void complete(@NonNull Trace trace) {
+        this.ring.set((int) (this.next.getAndIncrement() % this.ring.length()), trace);
+    }
+
+    /**
+     * Gets the stored traces.
+     *
+     * @return traces, oldest first
+     */
+    public @NonNull List<Trace> getTraces() {
+        long end = this.next.get();
+        long start = Math.max(0, end - this.ring.length());
+        List<Trace> traces = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            Trace trace = this.ring.get((int) (i % this.ring.length()));
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.util;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.kitteh.hyrc.util.shutdownable.Shutdownable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Hands log messages to a thread writing them to another logger.
+ * <p/>
+ * The handoff queue is bounded. When full, info and warnings are counted
+ * and dropped, with the count logged later, while severe messages are
+ * written right away. Suppliers are called on the writing thread, so they
+ * should capture what they format rather than read state which may
+ * change.
+ * <p/>
+ * Within a window, only the first of identical messages is written and
+ * the rest are counted, with a single summary written once the window
+ * passes.
+ */
+public final class AsyncLogger extends Thread implements Logger, Shutdownable {
+    private enum Level {
+        INFO,
+        WARNING,
+        SEVERE
+    }
+
+    private static final class Entry {
+        private final Level level;
+        private final Object message;
+        private final @Nullable Throwable thrown;
+
+        private Entry(@NonNull Level level, @NonNull Object message, @Nullable Throwable thrown) {
+            this.level = level;
+            this.message = message;
+            this.thrown = thrown;
+        }
+
+        @SuppressWarnings("unchecked")
+        private @NonNull String getMessage() {
+            if (this.message instanceof Supplier) {
+                return String.valueOf(((Supplier<String>) this.message).get());
+            }
+            return (String) this.message;
+        }
+    }
+
+    private static final class Repeat {
+        private final Level level;
+        private final String message;
+        private final long start;
+        private int count;
+
+        private Repeat(@NonNull Level level, @NonNull String message, long start) {
+            this.level = level;
+            this.message = message;
+            this.start = start;
+        }
+    }
+
+    private static final int MAX_TRACKED_REPEATS = 256;
+
+    private final Logger delegate;
+    private final BlockingQueue<Entry> queue;
+    private final long repeatWindowMillis;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Map<String, Repeat> repeats = new LinkedHashMap<>();
+    private volatile boolean running = true;
+
+    /**
+     * Creates a logger, which must then be started.
+     *
+     * @param delegate logger to write to
+     * @param queueSize most messages waiting to be written
+     * @param repeatWindowMillis window over which identical messages are
+     * counted rather than written, or zero to write all
+     */
+    public AsyncLogger(@NonNull Logger delegate, int queueSize, long repeatWindowMillis) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.repeatWindowMillis = repeatWindowMillis;
+        this.setName("HyRC logger");
+        this.setDaemon(true);
+    }
+
+    /**
+     * Gets the logger being written to.
+     *
+     * @return delegate
+     */
+    public @NonNull Logger getDelegate() {
+        return this.delegate;
+    }
+
+    @Override
+    public void info(@NonNull String info) {
+        this.add(new Entry(Level.INFO, info, null));
+    }
+
+    @Override
+    public void info(@NonNull Supplier<String> info) {
+        this.add(new Entry(Level.INFO, info, null));
+    }
+
+    @Override
+    public void warning(@NonNull String warning) {
+        this.add(new Entry(Level.WARNING, warning, null));
+    }
+
+    @Override
+    public void warning(@NonNull Supplier<String> warning) {
+        this.add(new Entry(Level.WARNING, warning, null));
+    }
+
+    @Override
+    public void warning(@NonNull String warning, @NonNull Throwable thrown) {
+        this.add(new Entry(Level.WARNING, warning, thrown));
+    }
+
+    @Override
+    public void warning(@NonNull Supplier<String> warning, @NonNull Throwable thrown) {
+        this.add(new Entry(Level.WARNING, warning, thrown));
+    }
+
+    @Override
+    public void severe(@NonNull String severe) {
+        this.add(new Entry(Level.SEVERE, severe, null));
+    }
+
+    @Override
+    public void severe(@NonNull String severe, @NonNull Throwable thrown) {
+        this.add(new Entry(Level.SEVERE, severe, thrown));
+    }
+
+    private void add(@NonNull Entry entry) {
+        if (!this.running) {
+            this.write(entry.level, entry.getMessage(), entry.thrown);
+        } else if (!this.queue.offer(entry)) {
+            if (entry.level == Level.SEVERE) {
+                this.write(entry.level, entry.getMessage(), entry.thrown);
+            } else {
+                this.dropped.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (this.running || !this.queue.isEmpty()) {
+            Entry entry;
+            try {
+                entry = this.queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            if (entry != null) {
+                this.handle(entry, now);
+            }
+            this.flushRepeats(now, false);
+            long dropped = this.dropped.getAndSet(0);
+            if (dropped > 0) {
+                this.delegate.warning(dropped + " log messages dropped, the logging queue was full");
+            }
+        }
+        this.flushRepeats(0, true);
+    }
+
+    private void handle(@NonNull Entry entry, long now) {
+        String message;
+        try {
+            message = entry.getMessage();
+        } catch (Throwable thrown) {
+            this.delegate.warning("Unable to build a log message", thrown);
+            return;
+        }
+        if (this.repeatWindowMillis > 0) {
+            String key = entry.level.ordinal() + message + (entry.thrown == null ? "" : '\n' + entry.thrown.toString());
+            Repeat repeat = this.repeats.get(key);
+            if (repeat != null && now - repeat.start < this.repeatWindowMillis) {
+                repeat.count++;
+                return;
+            }
+            if (repeat != null) {
+                this.writeRepeat(repeat);
+            }
+            this.repeats.remove(key);
+            this.repeats.put(key, new Repeat(entry.level, message, now));
+            if (this.repeats.size() > MAX_TRACKED_REPEATS) {
+                Iterator<Repeat> eldest = this.repeats.values().iterator();
+                this.writeRepeat(eldest.next());
+                eldest.remove();
+            }
+        }
+        this.write(entry.level, message, entry.thrown);
+    }
+
+    private void flushRepeats(long now, boolean all) {
+        Iterator<Repeat> iterator = this.repeats.values().iterator();
+        while (iterator.hasNext()) {
+            Repeat repeat = iterator.next();
+            if (!all && now - repeat.start < this.repeatWindowMillis) {
+                // Insertion ordered, so the rest are newer still
+                break;
+            }
+            this.writeRepeat(repeat);
+            iterator.remove();
+        }
+    }
+
+    private void writeRepeat(@NonNull Repeat repeat) {
+        if (repeat.count > 0) {
+            this.write(repeat.level, "Repeated " + repeat.count + " times: " + repeat.message, null);
+        }
+    }
+
+    private void write(@NonNull Level level, @NonNull String message, @Nullable Throwable thrown) {
+        switch (level) {
+            case INFO:
+                this.delegate.info(message);
+                break;
+            case WARNING:
+                if (thrown == null) {
+                    this.delegate.warning(message);
+                } else {
+                    this.delegate.warning(message, thrown);
+                }
+                break;
+            default:
+                if (thrown == null) {
+                    this.delegate.severe(message);
+                } else {
+                    this.delegate.severe(message, thrown);
+                }
+        }
+    }
+
+    /**
+     * Writes everything waiting and stops, writing any later messages
+     * right away.
+     */
+    @Override
+    public void shutdown() {
+        this.running = false;
+        this.interrupt();
+        try {
+            this.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Entry entry;
+        while ((entry = this.queue.poll()) != null) {
+            this.write(entry.level, entry.getMessage(), entry.thrown);
+        }
+    }
+}
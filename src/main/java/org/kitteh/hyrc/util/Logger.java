@@ -25,6 +25,8 @@ package org.kitteh.hyrc.util;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
 
+import java.util.function.Supplier;
+
 /**
  * Wrap a logger.
  */
@@ -38,4 +40,32 @@ public interface Logger {
     void severe(@NonNull String severe);
 
     void severe(@NonNull String severe, @NonNull Throwable thrown);
+
+    /**
+     * Logs info built only if and when it is written.
+     *
+     * @param info supplies the info
+     */
+    default void info(@NonNull Supplier<String> info) {
+        this.info(info.get());
+    }
+
+    /**
+     * Logs a warning built only if and when it is written.
+     *
+     * @param warning supplies the warning
+     */
+    default void warning(@NonNull Supplier<String> warning) {
+        this.warning(warning.get());
+    }
+
+    /**
+     * Logs a warning built only if and when it is written.
+     *
+     * @param warning supplies the warning
+     * @param thrown thrown
+     */
+    default void warning(@NonNull Supplier<String> warning, @NonNull Throwable thrown) {
+        this.warning(warning.get(), thrown);
+    }
 }
@@ -26,6 +26,7 @@ package org.kitteh.hyrc.util;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -151,4 +152,13 @@ public class WrappedMap<Key, Value> {
     public void putAll(@NonNull Map<? extends Key, ? extends Value> m) {
         this.outerMap.putAll(m);
     }
+
+    /**
+     * Gets the mappings stored in the modifiable, outer map.
+     *
+     * @return an unmodifiable view of the changed and added mappings
+     */
+    public @NonNull Map<Key, Value> getChanges() {
+        return Collections.unmodifiableMap(this.outerMap);
+    }
 }
@@ -0,0 +1,179 @@
+/*
+ * * Copyright (C) 2014-2019 Matt Baxter http://kitteh.org
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.kitteh.hyrc.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Flight Recorder events, only loaded once Flight Recorder is known to be
+ * available.
+ */
+final class JfrFlightEvents extends FlightEvents {
+    @Name("org.kitteh.hyrc.Dispatch")
+    @Label("Message Dispatch")
+    @Category("HyRC")
+    @Description("Delivery of a message to all its destinations")
+    @Threshold("20 ms")
+    @StackTrace(false)
+    static final class DispatchEvent extends Event {
+        @Label("Source")
+        String source;
+        @Label("Destinations")
+        int destinations;
+    }
+
+    @Name("org.kitteh.hyrc.Filter")
+    @Label("Filter")
+    @Category("HyRC")
+    @Description("A filter processing a message")
+    @Threshold("5 ms")
+    @StackTrace(false)
+    static final class FilterEvent extends Event {
+        @Label("Link")
+        String link;
+        @Label("Filter")
+        String filter;
+        @Label("Rejected")
+        boolean rejected;
+    }
+
+    @Name("org.kitteh.hyrc.IrcSend")
+    @Label("IRC Send")
+    @Category("HyRC")
+    @Description("A line written to IRC after waiting in the client's queue")
+    @StackTrace(false)
+    static final class IrcSendEvent extends Event {
+        @Label("Bot")
+        String bot;
+        @Label("Target")
+        String target;
+        @Label("Size")
+        @DataAmount
+        int bytes;
+        @Label("Pacing Delay")
+        @Timespan
+        long pacingDelay;
+    }
+
+    @Name("org.kitteh.hyrc.QueueOverflow")
+    @Label("Queue Overflow")
+    @Category("HyRC")
+    @Description("The delivery queue growing past its threshold")
+    static final class QueueOverflowEvent extends Event {
+        @Label("Depth")
+        int depth;
+    }
+
+    private final long ircSendThresholdNanos;
+
+    JfrFlightEvents(long ircSendThresholdNanos) {
+        this.ircSendThresholdNanos = ircSendThresholdNanos;
+    }
+
+    @Override
+    public @Nullable Object beginDispatch() {
+        DispatchEvent event = new DispatchEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endDispatch(@Nullable Object handle, @NonNull String source, int destinations) {
+        if (handle != null) {
+            DispatchEvent event = (DispatchEvent) handle;
+            event.end();
+            if (event.shouldCommit()) {
+                event.source = source;
+                event.destinations = destinations;
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public @Nullable Object beginFilter() {
+        FilterEvent event = new FilterEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endFilter(@Nullable Object handle, @NonNull String link, @NonNull String filter, boolean rejected) {
+        if (handle != null) {
+            FilterEvent event = (FilterEvent) handle;
+            event.end();
+            if (event.shouldCommit()) {
+                event.link = link;
+                event.filter = filter;
+                event.rejected = rejected;
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public boolean isIrcSendEnabled() {
+        return new IrcSendEvent().isEnabled();
+    }
+
+    @Override
+    public void ircSend(@NonNull String bot, @NonNull String target, int bytes, long pacingNanos) {
+        if (pacingNanos < this.ircSendThresholdNanos) {
+            return;
+        }
+        IrcSendEvent event = new IrcSendEvent();
+        if (event.isEnabled()) {
+            event.bot = bot;
+            event.target = target;
+            event.bytes = bytes;
+            event.pacingDelay = pacingNanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void queueOverflow(int depth) {
+        QueueOverflowEvent event = new QueueOverflowEvent();
+        if (event.isEnabled()) {
+            event.depth = depth;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.kitteh.hyrc.endpoint;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class CircuitBreakerTest {
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private CircuitBreaker breaker(long openMillis) {
+        return new CircuitBreaker(10, 4, 0.5, SLOW, 0.5, openMillis, 2, true, 0);
+    }
+
+    @Test
+    public void opensOnFailureRate() {
+        CircuitBreaker breaker = this.breaker(60000);
+        Assert.assertNull(breaker.record(1, true));
+        Assert.assertNull(breaker.record(1, false));
+        Assert.assertNull(breaker.record(1, true));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.record(1, false));
+        Assert.assertFalse(breaker.allowsDelivery());
+        Assert.assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void opensOnSlowCalls() {
+        CircuitBreaker breaker = this.breaker(60000);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertNull(breaker.record(SLOW, false));
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.record(SLOW, false));
+    }
+
+    @Test
+    public void staysClosedWhileHealthy() {
+        CircuitBreaker breaker = this.breaker(60000);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNull(breaker.record(1, i % 4 == 1));
+        }
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenTrials() throws InterruptedException {
+        CircuitBreaker breaker = this.breaker(20);
+        for (int i = 0; i < 4; i++) {
+            breaker.record(1, true);
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(40);
+        Assert.assertTrue(breaker.tryAcquire());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.record(1, true));
+
+        Thread.sleep(40);
+        Assert.assertTrue(breaker.tryAcquire());
+        Assert.assertTrue(breaker.tryAcquire());
+        Assert.assertFalse(breaker.tryAcquire());
+        Assert.assertNull(breaker.record(1, false));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.record(1, false));
+        Assert.assertTrue(breaker.tryAcquire());
+    }
+}
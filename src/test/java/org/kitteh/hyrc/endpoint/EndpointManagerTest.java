@@ -0,0 +1,107 @@
+package org.kitteh.hyrc.endpoint;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.util.BareHyRC;
+import org.kitteh.hyrc.util.MapBuilder;
+import org.kitteh.hyrc.util.NamedEndpoint;
+import org.kitteh.hyrc.util.RecordingLogger;
+
+import java.io.File;
+import java.util.Collections;
+
+public class EndpointManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final NamedEndpoint source = new NamedEndpoint("Source");
+    private RecordingLogger logger;
+    private HyRC plugin;
+
+    @Before
+    public void setUp() throws Exception {
+        this.logger = RecordingLogger.install();
+        this.plugin = BareHyRC.create(this.folder.newFolder());
+    }
+
+    @After
+    public void tearDown() {
+        this.plugin.shutdown();
+        RecordingLogger.uninstall();
+    }
+
+    private Message message(int i) {
+        return new Message(this.source, "message " + i, new MapBuilder<String, Object>().put(Endpoint.MESSAGE_TEXT, "text " + i).build());
+    }
+
+    private EndpointManager manager(long maxBytes) {
+        ConfigurationNode journal = SimpleConfigurationNode.root();
+        journal.getNode("enabled").setValue(true);
+        ConfigurationNode heapBudget = SimpleConfigurationNode.root();
+        heapBudget.getNode("max-bytes").setValue(maxBytes);
+        heapBudget.getNode("overflow").setValue("spill");
+        return new EndpointManager(this.plugin, Collections.emptyList(), SimpleConfigurationNode.root(), journal, heapBudget);
+    }
+
+    private int replay() throws Exception {
+        return new MessageJournal(new File(this.plugin.getDataFolder(), "journal"), 16 << 20).replay(name -> this.source, message -> {
+        });
+    }
+
+    @Test
+    public void drainsQueueAndCommitsJournal() throws Exception {
+        EndpointManager manager = this.manager(0);
+        for (int i = 0; i < 5; i++) {
+            manager.sendMessage(this.message(i));
+        }
+        Assert.assertEquals(5, manager.getQueuedCount());
+        Assert.assertEquals(5, this.replay());
+
+        Assert.assertEquals(5, manager.drainQueue());
+        Assert.assertEquals(0, manager.getQueuedCount());
+        Assert.assertEquals(0, manager.getDispatchedCount());
+        Assert.assertEquals(0, this.replay());
+        Assert.assertEquals("Discarded 5 queued messages", this.logger.getWarnings().get(0));
+
+        Assert.assertEquals(0, manager.drainQueue());
+        Assert.assertEquals(1, this.logger.getWarnings().size());
+    }
+
+    @Test
+    public void drainsSpilledMessages() throws Exception {
+        EndpointManager manager = this.manager(this.message(0).getEstimatedBytes() * 2);
+        manager.processCompleted(this.source);
+        for (int i = 0; i < 5; i++) {
+            manager.sendMessage(this.message(i));
+        }
+        Assert.assertEquals(5, manager.getQueuedCount());
+        Assert.assertTrue(manager.getHeapUsedBytes() > 0);
+
+        Assert.assertEquals(5, manager.drainQueue());
+        Assert.assertEquals(0, manager.getQueuedCount());
+        Assert.assertEquals(0, manager.getHeapUsedBytes());
+        Assert.assertEquals(0, this.replay());
+    }
+
+    @Test
+    public void accountsUnreadableSpills() throws Exception {
+        EndpointManager manager = this.manager(this.message(0).getEstimatedBytes() * 2);
+        // The source isn't registered, so spilled messages can't be read back
+        for (int i = 0; i < 5; i++) {
+            manager.sendMessage(this.message(i));
+        }
+        Assert.assertEquals(5, manager.getQueuedCount());
+
+        Assert.assertEquals(2, manager.drainQueue());
+        Assert.assertEquals(0, manager.getQueuedCount());
+        Assert.assertEquals(0, manager.getHeapUsedBytes());
+        Assert.assertEquals(0, this.replay());
+    }
+}
@@ -0,0 +1,134 @@
+package org.kitteh.hyrc.endpoint;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kitteh.hyrc.metrics.Metrics;
+import org.kitteh.hyrc.util.MapBuilder;
+import org.kitteh.hyrc.util.NamedEndpoint;
+import org.kitteh.hyrc.util.RecordingLogger;
+
+public class HeapBudgetTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final NamedEndpoint source = new NamedEndpoint("Source");
+
+    @Before
+    public void setUp() {
+        RecordingLogger.install();
+    }
+
+    @After
+    public void tearDown() {
+        RecordingLogger.uninstall();
+    }
+
+    private Endpoint lookup(String name) {
+        return name.equals("Source") ? this.source : null;
+    }
+
+    private HeapBudget budget(long maxBytes, HeapBudget.Overflow overflow) throws Exception {
+        return new HeapBudget(maxBytes, overflow, 200, 1 << 20, this.folder.newFile(), this::lookup, position -> {
+        }, new Metrics(false));
+    }
+
+    private Message message(int i) {
+        return new Message(this.source, "message " + i, new MapBuilder<String, Object>().put("number", i).put(Endpoint.MESSAGE_TEXT, "text " + i).build());
+    }
+
+    @Test
+    public void estimatesFromContent() {
+        Message small = new Message(this.source, "hi", new MapBuilder<String, Object>().build());
+        Message large = new Message(this.source, "hi", new MapBuilder<String, Object>().put(Endpoint.MESSAGE_TEXT, new String(new char[1000])).build());
+        Assert.assertTrue(large.getEstimatedBytes() - small.getEstimatedBytes() >= 2000);
+    }
+
+    @Test
+    public void dropsPastBudget() throws Exception {
+        Message message = this.message(0);
+        HeapBudget budget = this.budget(message.getEstimatedBytes() * 2L, HeapBudget.Overflow.DROP);
+        Assert.assertEquals(HeapBudget.Admission.QUEUE, budget.reserve(message));
+        Assert.assertEquals(HeapBudget.Admission.QUEUE, budget.reserve(this.message(1)));
+        Assert.assertEquals(HeapBudget.Admission.DROP, budget.reserve(this.message(2)));
+        Assert.assertEquals(message.getEstimatedBytes() * 2L, budget.getUsedBytes());
+        budget.release(message);
+        Assert.assertEquals(HeapBudget.Admission.QUEUE, budget.reserve(this.message(3)));
+        budget.release(message);
+        Assert.assertEquals(message.getEstimatedBytes(), budget.getUsedBytes());
+        Assert.assertEquals(message.getEstimatedBytes() * 2L, budget.getHighWaterBytes());
+    }
+
+    @Test
+    public void spillsInOrder() throws Exception {
+        Message first = this.message(0);
+        HeapBudget budget = this.budget(first.getEstimatedBytes(), HeapBudget.Overflow.SPILL);
+        Assert.assertEquals(HeapBudget.Admission.QUEUE, budget.order(first, budget.reserve(first)));
+        for (int i = 1; i < 4; i++) {
+            Message message = this.message(i);
+            message.setJournalPosition(i);
+            Assert.assertEquals(HeapBudget.Admission.SPILL, budget.order(message, budget.reserve(message)));
+            Assert.assertTrue(budget.spill(message));
+        }
+        budget.release(first);
+        // Still spilling, to keep order
+        Message fourth = this.message(4);
+        fourth.setJournalPosition(4);
+        Assert.assertEquals(HeapBudget.Admission.SPILL, budget.order(fourth, budget.reserve(fourth)));
+        Assert.assertTrue(budget.spill(fourth));
+        for (int i = 1; i < 5; i++) {
+            Message message = budget.unspill();
+            Assert.assertNotNull(message);
+            Assert.assertEquals("message " + i, message.getDefaultMessage());
+            Assert.assertEquals(i, message.getData().get("number"));
+            Assert.assertEquals(i, message.getJournalPosition());
+            Assert.assertEquals(message.getEstimatedBytes(), budget.getUsedBytes());
+            budget.release(message);
+        }
+        Assert.assertNull(budget.unspill());
+        Message fifth = this.message(5);
+        Assert.assertEquals(HeapBudget.Admission.QUEUE, budget.order(fifth, budget.reserve(fifth)));
+        budget.close();
+    }
+
+    @Test
+    public void queuedAfterSpillDecisionIsSpilled() throws Exception {
+        Message first = this.message(0);
+        HeapBudget budget = this.budget(first.getEstimatedBytes(), HeapBudget.Overflow.SPILL);
+        Assert.assertEquals(HeapBudget.Admission.QUEUE, budget.order(first, budget.reserve(first)));
+        Message second = this.message(1);
+        HeapBudget.Admission secondAdmission = budget.reserve(second);
+        Assert.assertEquals(HeapBudget.Admission.SPILL, secondAdmission);
+        // Room frees up before the second is settled, and a third reserves it
+        budget.release(first);
+        Message third = this.message(2);
+        HeapBudget.Admission thirdAdmission = budget.reserve(third);
+        Assert.assertEquals(HeapBudget.Admission.QUEUE, thirdAdmission);
+        Assert.assertEquals(HeapBudget.Admission.SPILL, budget.order(second, secondAdmission));
+        Assert.assertTrue(budget.spill(second));
+        Assert.assertEquals(HeapBudget.Admission.SPILL, budget.order(third, thirdAdmission));
+        Assert.assertEquals(0, budget.getUsedBytes());
+        budget.close();
+    }
+
+    @Test
+    public void blocksUntilReleased() throws Exception {
+        Message first = this.message(0);
+        HeapBudget budget = this.budget(first.getEstimatedBytes(), HeapBudget.Overflow.BLOCK);
+        Assert.assertEquals(HeapBudget.Admission.QUEUE, budget.reserve(first));
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            budget.release(first);
+        });
+        releaser.start();
+        Assert.assertEquals(HeapBudget.Admission.QUEUE, budget.reserve(this.message(1)));
+        releaser.join();
+        Assert.assertEquals(HeapBudget.Admission.DROP, budget.reserve(this.message(2)));
+    }
+}
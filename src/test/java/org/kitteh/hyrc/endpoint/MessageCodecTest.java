@@ -0,0 +1,118 @@
+package org.kitteh.hyrc.endpoint;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitteh.hyrc.endpoint.defaults.IRCEndpoint;
+import org.kitteh.hyrc.util.MapBuilder;
+import org.kitteh.hyrc.util.NamedEndpoint;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+public class MessageCodecTest {
+    private final Endpoint source = new NamedEndpoint("Source");
+    private final Endpoint target = new NamedEndpoint("Target");
+
+    private Endpoint lookup(String name) {
+        return name.equals("Source") ? this.source : null;
+    }
+
+    private Message message() {
+        Map<String, Object> data = new MapBuilder<String, Object>()
+                .put(Endpoint.MESSAGE_TEXT, "héllo 🐱")
+                .put(Endpoint.SENDER_NAME, "kitteh")
+                .put(IRCEndpoint.IRC_PREFIX, '@')
+                .put(IRCEndpoint.IRC_MESSAGE_TYPE, IRCEndpoint.MessageType.ME)
+                .put("custom", -5L)
+                .put("number", 42)
+                .put("flag", true)
+                .put("ratio", 0.5)
+                .put("nothing", null)
+                .build();
+        return new Message(this.source, "default", data, "remote", "Elsewhere", 2);
+    }
+
+    @Test
+    public void roundTripsMessage() {
+        Message message = this.message();
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        MessageCodec.encode(message, buffer);
+        buffer.flip();
+        Message decoded = MessageCodec.decode(buffer, this::lookup);
+        Assert.assertFalse(buffer.hasRemaining());
+        Assert.assertSame(this.source, decoded.getSource());
+        Assert.assertEquals("default", decoded.getDefaultMessage());
+        Assert.assertEquals("remote", decoded.getOriginInstance());
+        Assert.assertEquals("Elsewhere", decoded.getOrigin());
+        Assert.assertEquals(2, decoded.getHops());
+        Assert.assertEquals(message.getData(), decoded.getData());
+        for (String key : decoded.getData().keySet()) {
+            if (key.equals(Endpoint.MESSAGE_TEXT)) {
+                Assert.assertSame(Endpoint.MESSAGE_TEXT, key);
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsTargetedMessage() {
+        TargetedMessage message = new TargetedMessage(this.target, this.message());
+        message.setCustomMessage("custom");
+        message.getCustomData().put(Endpoint.MESSAGE_TEXT, "changed");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(512);
+        MessageCodec.encode(message, buffer);
+        buffer.flip();
+        TargetedMessage decoded = MessageCodec.decode(buffer, this.target, this::lookup);
+        Assert.assertSame(this.target, decoded.getTarget());
+        Assert.assertEquals("custom", decoded.getCustomMessage());
+        Assert.assertEquals("changed", decoded.getCustomData().get(Endpoint.MESSAGE_TEXT));
+        Assert.assertEquals("héllo 🐱", decoded.getOriginatingMessage().getData().get(Endpoint.MESSAGE_TEXT));
+    }
+
+    @Test
+    public void usesDictionaryForKnownKeys() {
+        Map<String, Object> data = new MapBuilder<String, Object>().put(IRCEndpoint.IRC_PREFIXES, "").build();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        MessageCodec.encode(new Message(this.source, "", data), buffer);
+        // Source, origin instance, origin, hops, default message, data size, key, type, value
+        Assert.assertEquals(7 + 17 + 7 + 1 + 1 + 1 + 1 + 1 + 1, buffer.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncated() {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        MessageCodec.encode(this.message(), buffer);
+        buffer.flip();
+        buffer.limit(buffer.limit() - 3);
+        MessageCodec.decode(buffer, this::lookup);
+    }
+
+    @Test
+    public void rejectsNegativeLengths() {
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(64), ByteBuffer.allocateDirect(64)}) {
+            // A five byte varint decoding to -1
+            buffer.put(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 0, 0});
+            buffer.flip();
+            try {
+                MessageCodec.decode(buffer, this::lookup);
+                Assert.fail();
+            } catch (IllegalArgumentException expected) {
+                // Not StringIndexOutOfBounds or NegativeArraySize
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        MessageCodec.writeString(buffer, "Source");
+        MessageCodec.writeString(buffer, "instance");
+        MessageCodec.writeString(buffer, "Source");
+        MessageCodec.writeVarInt(buffer, 0);
+        MessageCodec.writeString(buffer, "hi");
+        MessageCodec.writeVarInt(buffer, -1);
+        buffer.flip();
+        try {
+            MessageCodec.decode(buffer, this::lookup);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            Assert.assertTrue(expected.getMessage().startsWith("Negative data size"));
+        }
+    }
+}
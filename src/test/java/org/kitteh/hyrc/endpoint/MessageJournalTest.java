@@ -0,0 +1,116 @@
+package org.kitteh.hyrc.endpoint;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kitteh.hyrc.util.MapBuilder;
+import org.kitteh.hyrc.util.NamedEndpoint;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+
+public class MessageJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Endpoint endpoint = new NamedEndpoint("Meow");
+
+    private Endpoint lookup(String name) {
+        return name.equals("Meow") ? this.endpoint : null;
+    }
+
+    private Message message(int i) {
+        return new Message(this.endpoint, "message " + i, new MapBuilder<String, Object>().put(Endpoint.MESSAGE_TEXT, "text " + i).put("number", i).build());
+    }
+
+    private List<String> replay(File directory, int segmentSize) throws Exception {
+        List<String> replayed = new LinkedList<>();
+        new MessageJournal(directory, segmentSize).replay(this::lookup, message -> replayed.add(message.getDefaultMessage()));
+        return replayed;
+    }
+
+    @Test
+    public void replaysUncommitted() throws Exception {
+        File directory = this.folder.newFolder();
+        MessageJournal journal = new MessageJournal(directory, 4096);
+        Assert.assertEquals(0, journal.replay(this::lookup, message -> Assert.fail()));
+        List<Message> messages = new LinkedList<>();
+        for (int i = 0; i < 5; i++) {
+            Message message = this.message(i);
+            journal.append(message);
+            messages.add(message);
+        }
+        journal.commit(messages.get(0).getJournalPosition());
+        journal.commit(messages.get(1).getJournalPosition());
+        List<String> replayed = this.replay(directory, 4096);
+        Assert.assertEquals(3, replayed.size());
+        Assert.assertEquals("message 2", replayed.get(0));
+        Assert.assertEquals("message 4", replayed.get(2));
+    }
+
+    @Test
+    public void rotatesSegments() throws Exception {
+        File directory = this.folder.newFolder();
+        MessageJournal journal = new MessageJournal(directory, 128);
+        journal.replay(this::lookup, message -> {
+        });
+        List<Message> messages = new LinkedList<>();
+        for (int i = 0; i < 50; i++) {
+            Message message = this.message(i);
+            journal.append(message);
+            messages.add(message);
+        }
+        for (int i = 0; i < 40; i++) {
+            journal.commit(messages.get(i).getJournalPosition());
+        }
+        List<String> replayed = this.replay(directory, 128);
+        Assert.assertEquals(10, replayed.size());
+        Assert.assertEquals("message 40", replayed.get(0));
+        Assert.assertTrue(directory.listFiles().length < 20);
+    }
+
+    @Test
+    public void skipsUnknownEndpoints() throws Exception {
+        File directory = this.folder.newFolder();
+        MessageJournal journal = new MessageJournal(directory, 4096);
+        journal.replay(this::lookup, message -> {
+        });
+        journal.append(this.message(0));
+        journal.append(new Message(new NamedEndpoint("Gone"), "gone", new MapBuilder<String, Object>().build()));
+        journal.append(this.message(2));
+
+        journal = new MessageJournal(directory, 4096);
+        List<Message> replayed = new LinkedList<>();
+        journal.replay(this::lookup, replayed::add);
+        Assert.assertEquals(2, replayed.size());
+        Assert.assertEquals(2, replayed.get(1).getData().get("number"));
+        journal.commit(replayed.get(1).getJournalPosition());
+        Assert.assertEquals(2, this.replay(directory, 4096).size());
+        journal.commit(replayed.get(0).getJournalPosition());
+        Assert.assertTrue(this.replay(directory, 4096).isEmpty());
+    }
+
+    @Test
+    public void keepsEarlierUncommittedWhenCommittedOutOfOrder() throws Exception {
+        File directory = this.folder.newFolder();
+        MessageJournal journal = new MessageJournal(directory, 4096);
+        journal.replay(this::lookup, message -> {
+        });
+        List<Message> messages = new LinkedList<>();
+        for (int i = 0; i < 4; i++) {
+            Message message = this.message(i);
+            journal.append(message);
+            messages.add(message);
+        }
+        journal.commit(messages.get(1).getJournalPosition());
+        journal.commit(messages.get(2).getJournalPosition());
+        List<String> replayed = this.replay(directory, 4096);
+        Assert.assertEquals(4, replayed.size());
+        journal.commit(messages.get(0).getJournalPosition());
+        replayed = this.replay(directory, 4096);
+        Assert.assertEquals(1, replayed.size());
+        Assert.assertEquals("message 3", replayed.get(0));
+    }
+}
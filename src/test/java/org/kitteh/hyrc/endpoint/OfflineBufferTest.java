@@ -0,0 +1,105 @@
+package org.kitteh.hyrc.endpoint;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kitteh.hyrc.util.MapBuilder;
+import org.kitteh.hyrc.util.NamedEndpoint;
+
+import java.util.List;
+
+public class OfflineBufferTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final NamedEndpoint source = new NamedEndpoint("Source");
+    private final NamedEndpoint target = new NamedEndpoint("Target");
+
+    private Endpoint lookup(String name) {
+        return name.equals("Source") ? this.source : null;
+    }
+
+    private OfflineBuffer buffer(int summarizeAbove) throws Exception {
+        ConfigurationNode config = SimpleConfigurationNode.root();
+        config.getNode("memory-messages").setValue(3);
+        config.getNode("replay-per-second").setValue(1000);
+        config.getNode("summarize-above").setValue(summarizeAbove);
+        return new OfflineBuffer(this.target, config, this.folder.newFile(), this::lookup);
+    }
+
+    private TargetedMessage message(int i) {
+        TargetedMessage message = new TargetedMessage(this.target, new Message(this.source, "message " + i, new MapBuilder<String, Object>().put("number", i).build()));
+        message.setCustomMessage("custom " + i);
+        message.getCustomData().put("changed", i * 2);
+        return message;
+    }
+
+    private List<TargetedMessage> awaitReceived(int count) throws InterruptedException {
+        for (int i = 0; i < 500 && this.target.getReceived().size() < count; i++) {
+            Thread.sleep(10);
+        }
+        return this.target.getReceived();
+    }
+
+    @Test
+    public void passesThroughWhileAvailable() throws Exception {
+        OfflineBuffer buffer = this.buffer(0);
+        Assert.assertFalse(buffer.offer(this.message(0)));
+        Assert.assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void holdsUndeliveredWhileAvailable() throws Exception {
+        OfflineBuffer buffer = this.buffer(0);
+        buffer.hold(this.message(0));
+        Assert.assertEquals(1, buffer.size());
+        Assert.assertTrue(buffer.offer(this.message(1)));
+        buffer.start();
+        List<TargetedMessage> received = this.awaitReceived(2);
+        buffer.interrupt();
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals("custom 0", received.get(0).getCustomMessage());
+    }
+
+    @Test
+    public void replaysInOrderIncludingSpilled() throws Exception {
+        OfflineBuffer buffer = this.buffer(0);
+        this.target.setAvailable(false);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(buffer.offer(this.message(i)));
+        }
+        Assert.assertEquals(10, buffer.size());
+        buffer.start();
+        this.target.setAvailable(true);
+        List<TargetedMessage> received = this.awaitReceived(10);
+        buffer.interrupt();
+        Assert.assertEquals(10, received.size());
+        for (int i = 0; i < 10; i++) {
+            TargetedMessage message = received.get(i);
+            Assert.assertEquals("custom " + i, message.getCustomMessage());
+            Assert.assertEquals(i * 2, message.getCustomData().get("changed"));
+            Assert.assertEquals(i, message.getCustomData().get("number"));
+            Assert.assertSame(this.source, message.getOriginatingMessage().getSource());
+        }
+    }
+
+    @Test
+    public void summarizesOldest() throws Exception {
+        OfflineBuffer buffer = this.buffer(2);
+        this.target.setAvailable(false);
+        for (int i = 0; i < 6; i++) {
+            buffer.offer(this.message(i));
+        }
+        buffer.start();
+        this.target.setAvailable(true);
+        List<TargetedMessage> received = this.awaitReceived(3);
+        buffer.interrupt();
+        Assert.assertEquals(3, received.size());
+        Assert.assertEquals("4 messages missed", received.get(0).getCustomMessage());
+        Assert.assertEquals("custom 4", received.get(1).getCustomMessage());
+        Assert.assertEquals("custom 5", received.get(2).getCustomMessage());
+    }
+}
@@ -0,0 +1,71 @@
+package org.kitteh.hyrc.endpoint;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitteh.hyrc.util.MapBuilder;
+import org.kitteh.hyrc.util.NamedEndpoint;
+
+import java.util.List;
+
+public class ScrollbackTest {
+    private final Endpoint endpoint = new NamedEndpoint("Meow");
+
+    private Endpoint lookup(String name) {
+        return name.equals("Meow") ? this.endpoint : null;
+    }
+
+    private Message message(int i) {
+        return new Message(this.endpoint, "message " + i, new MapBuilder<String, Object>().put(Endpoint.MESSAGE_TEXT, "text " + i).build());
+    }
+
+    @Test
+    public void keepsLatest() {
+        Scrollback scrollback = new Scrollback(this.endpoint, 5, 4096, this::lookup);
+        for (int i = 0; i < 8; i++) {
+            scrollback.addSent(this.message(i));
+        }
+        TargetedMessage received = new TargetedMessage(this.endpoint, this.message(8));
+        received.setCustomMessage("custom 8");
+        scrollback.addReceived(received);
+        Assert.assertEquals(5, scrollback.size());
+        List<Scrollback.Entry> last = scrollback.getLast(3);
+        Assert.assertEquals(3, last.size());
+        Assert.assertEquals("message 6", last.get(0).getText());
+        Assert.assertFalse(last.get(1).isReceived());
+        Assert.assertTrue(last.get(2).isReceived());
+        Assert.assertEquals("custom 8", last.get(2).getText());
+        Assert.assertEquals("message 8", last.get(2).getMessage().getDefaultMessage());
+        Assert.assertEquals(5, scrollback.getLast(100).size());
+    }
+
+    @Test
+    public void wrapsByBytes() {
+        Scrollback scrollback = new Scrollback(this.endpoint, 1000, 256, this::lookup);
+        List<Scrollback.Entry> early = null;
+        for (int i = 0; i < 100; i++) {
+            scrollback.addSent(this.message(i));
+            if (i == 0) {
+                early = scrollback.getLast(1);
+            }
+        }
+        List<Scrollback.Entry> all = scrollback.getLast(1000);
+        Assert.assertTrue(all.size() > 1 && all.size() < 100);
+        for (int i = 0; i < all.size(); i++) {
+            Assert.assertEquals("message " + (100 - all.size() + i), all.get(i).getText());
+        }
+        Assert.assertNull(early.get(0).getText());
+    }
+
+    @Test
+    public void queriesByTime() {
+        Scrollback scrollback = new Scrollback(this.endpoint, 100, 8192, this::lookup);
+        long before = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            scrollback.addSent(this.message(i));
+        }
+        long after = System.currentTimeMillis() + 1;
+        Assert.assertEquals(10, scrollback.getRange(before, after).size());
+        Assert.assertEquals(0, scrollback.getRange(after, after + 1000).size());
+        Assert.assertEquals(0, scrollback.getRange(0, before).size());
+    }
+}
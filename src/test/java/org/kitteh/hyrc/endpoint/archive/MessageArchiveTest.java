@@ -0,0 +1,129 @@
+package org.kitteh.hyrc.endpoint.archive;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.Message;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+import org.kitteh.hyrc.util.MapBuilder;
+import org.kitteh.hyrc.util.NamedEndpoint;
+
+import java.io.File;
+import java.util.List;
+
+public class MessageArchiveTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Endpoint archive = new NamedEndpoint("Archive");
+    private final Endpoint chat = new NamedEndpoint("Chat");
+    private final Endpoint irc = new NamedEndpoint("IRC");
+
+    private Endpoint lookup(String name) {
+        switch (name) {
+            case "Chat":
+                return this.chat;
+            case "IRC":
+                return this.irc;
+            case "Archive":
+                return this.archive;
+            default:
+                return null;
+        }
+    }
+
+    private MessageArchive open(File directory) throws Exception {
+        return this.open(directory, false);
+    }
+
+    private MessageArchive open(File directory, boolean searchable) throws Exception {
+        return new MessageArchive(directory, this.archive, this::lookup, 4096, 16384, 1, 60000, searchable);
+    }
+
+    private TargetedMessage message(int i) {
+        Endpoint source = (i % 2 == 0) ? this.chat : this.irc;
+        return new TargetedMessage(this.archive, new Message(source, "message " + i, new MapBuilder<String, Object>().put(Endpoint.MESSAGE_TEXT, "text " + i).put("number", i).build()));
+    }
+
+    @Test
+    public void readsBackAcrossSegments() throws Exception {
+        File directory = this.folder.newFolder();
+        MessageArchive archive = this.open(directory);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 2000; i++) {
+            archive.append(this.message(i));
+        }
+        List<MessageArchive.Record> all = archive.read(null, start, Long.MAX_VALUE);
+        Assert.assertEquals(2000, all.size());
+        Assert.assertEquals(1999, all.get(1999).getMessage().getCustomData().get("number"));
+
+        List<MessageArchive.Record> irc = archive.read("IRC", 0, Long.MAX_VALUE);
+        Assert.assertEquals(1000, irc.size());
+        Assert.assertEquals("message 1", irc.get(0).getMessage().getCustomMessage());
+        archive.close();
+
+        Assert.assertTrue(directory.listFiles().length > 2);
+        archive = this.open(directory);
+        Assert.assertEquals(2000, archive.read(null, 0, Long.MAX_VALUE).size());
+        archive.append(this.message(2000));
+        Assert.assertEquals(1001, archive.read("Chat", 0, Long.MAX_VALUE).size());
+        archive.close();
+    }
+
+    @Test
+    public void readsTimeRange() throws Exception {
+        MessageArchive archive = this.open(this.folder.newFolder());
+        archive.append(this.message(0));
+        Thread.sleep(5);
+        long middle = System.currentTimeMillis();
+        archive.append(this.message(1));
+        Assert.assertEquals(1, archive.read(null, middle, Long.MAX_VALUE).size());
+        Assert.assertEquals(1, archive.read(null, 0, middle).size());
+        Assert.assertEquals(0, archive.read(null, 0, 1).size());
+        archive.close();
+    }
+
+    @Test
+    public void searchesIncludingHistory() throws Exception {
+        File directory = this.folder.newFolder();
+        MessageArchive archive = this.open(directory, true);
+        for (int i = 0; i < 500; i++) {
+            archive.append(this.message(i));
+        }
+        Assert.assertEquals(1, archive.search(MessageIndex.Field.TEXT, "text 250", null, 0, Long.MAX_VALUE, 10).size());
+        archive.close();
+
+        archive = this.open(directory, true);
+        archive.append(this.message(500));
+        for (int i = 0; i < 500 && !archive.getSearchIndex().isComplete(); i++) {
+            Thread.sleep(10);
+        }
+        List<MessageArchive.Record> found = archive.search(MessageIndex.Field.TEXT, "text", "Chat", 0, Long.MAX_VALUE, 1000);
+        Assert.assertEquals(251, found.size());
+        Assert.assertEquals(0, found.get(0).getMessage().getCustomData().get("number"));
+        Assert.assertEquals(500, found.get(250).getMessage().getCustomData().get("number"));
+        archive.close();
+    }
+
+    @Test
+    public void flushesIdleBlock() throws Exception {
+        File directory = this.folder.newFolder();
+        MessageArchive archive = new MessageArchive(directory, this.archive, this::lookup, 4096, 16384, 1, 50, false);
+        archive.append(this.message(0));
+        long written = 0;
+        for (int i = 0; i < 200 && written == 0; i++) {
+            Thread.sleep(10);
+            written = 0;
+            for (File file : directory.listFiles()) {
+                written += file.length();
+            }
+        }
+        Assert.assertTrue(written > 0);
+        archive.close();
+        archive = this.open(directory);
+        Assert.assertEquals(1, archive.read(null, 0, Long.MAX_VALUE).size());
+        archive.close();
+    }
+}
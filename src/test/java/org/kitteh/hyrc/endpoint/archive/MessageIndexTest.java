@@ -0,0 +1,54 @@
+package org.kitteh.hyrc.endpoint.archive;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class MessageIndexTest {
+    private static final MessageIndex.Field TEXT = MessageIndex.Field.TEXT;
+
+    @Test
+    public void findsTermsAndPhrases() {
+        MessageIndex index = new MessageIndex("test", false);
+        index.add(0, 100, "IRC", "The quick brown fox", "kitteh");
+        index.add(1, 200, "Chat", "quick, brown!", "Cat");
+        index.add(2, 300, "IRC", "brown quick", "kitteh");
+
+        Assert.assertEquals(3, index.search(TEXT, "QUICK", null, 0, Long.MAX_VALUE, 10).size());
+        List<MessageIndex.Hit> phrase = index.search(TEXT, "quick brown", null, 0, Long.MAX_VALUE, 10);
+        Assert.assertEquals(2, phrase.size());
+        Assert.assertEquals(0, phrase.get(0).getRecord());
+        Assert.assertEquals(1, phrase.get(1).getRecord());
+        Assert.assertEquals(1, index.search(TEXT, "quick brown", "Chat", 0, Long.MAX_VALUE, 10).size());
+        Assert.assertEquals(1, index.search(TEXT, "quick brown", null, 150, 250, 10).size());
+        Assert.assertEquals(2, index.search(MessageIndex.Field.SENDER, "kitteh", null, 0, Long.MAX_VALUE, 10).size());
+        Assert.assertEquals(0, index.search(TEXT, "kitteh", null, 0, Long.MAX_VALUE, 10).size());
+        Assert.assertEquals(0, index.search(TEXT, "quick", "Nowhere", 0, Long.MAX_VALUE, 10).size());
+
+        List<MessageIndex.Hit> latest = index.search(TEXT, "brown", null, 0, Long.MAX_VALUE, 2);
+        Assert.assertEquals(2, latest.size());
+        Assert.assertEquals(1, latest.get(0).getRecord());
+        Assert.assertEquals(2, latest.get(1).getRecord());
+        index.close();
+    }
+
+    @Test
+    public void mergesSegmentsInBackground() throws Exception {
+        MessageIndex index = new MessageIndex("test", false);
+        int count = 4096 * 8 + 10;
+        for (int i = 0; i < count; i++) {
+            index.add(i, i, "IRC", "message number " + i + ((i % 1000 == 0) ? " special" : ""), "sender");
+        }
+        for (int i = 0; i < 500 && index.getSegmentCount() > 5; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(index.getSegmentCount() <= 5);
+        Assert.assertEquals(count, index.search(TEXT, "message", null, 0, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+        List<MessageIndex.Hit> special = index.search(TEXT, "special", null, 0, Long.MAX_VALUE, 100);
+        Assert.assertEquals(33, special.size());
+        Assert.assertEquals(5000, special.get(5).getRecord());
+        Assert.assertEquals(1, index.search(TEXT, "number 12345", null, 0, Long.MAX_VALUE, 100).size());
+        index.close();
+    }
+}
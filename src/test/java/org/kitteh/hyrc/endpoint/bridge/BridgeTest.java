@@ -0,0 +1,160 @@
+package org.kitteh.hyrc.endpoint.bridge;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.Message;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+import org.kitteh.hyrc.util.MapBuilder;
+import org.kitteh.hyrc.util.NamedEndpoint;
+import org.kitteh.hyrc.util.RecordingLogger;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class BridgeTest {
+    private final Endpoint chat = new NamedEndpoint("Chat");
+    private final Endpoint serverEndpoint = new NamedEndpoint("ToGame");
+    private final Endpoint clientEndpoint = new NamedEndpoint("ToIRC");
+    private final List<Message> serverReceived = new CopyOnWriteArrayList<>();
+    private final List<Message> clientReceived = new CopyOnWriteArrayList<>();
+    private final Bridge server = new Bridge(this.serverEndpoint, this.serverReceived::add, "secret", 64, 16384, 100000, 100, 60000, 200);
+    private final Bridge client = new Bridge(this.clientEndpoint, this.clientReceived::add, "secret", 64, 16384, 100000, 100, 60000, 200);
+
+    @After
+    public void close() {
+        this.client.close();
+        this.server.close();
+    }
+
+    private TargetedMessage message(Endpoint target, int i) {
+        TargetedMessage message = new TargetedMessage(target, new Message(this.chat, "message " + i, new MapBuilder<String, Object>().put(Endpoint.MESSAGE_TEXT, "text " + i).build()));
+        message.setCustomMessage("custom " + i);
+        return message;
+    }
+
+    private static void await(List<?> list, int size) throws InterruptedException {
+        for (int i = 0; i < 1000 && list.size() < size; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private int start() throws Exception {
+        int port = this.server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        return port;
+    }
+
+    @Test
+    public void deliversBothWays() throws Exception {
+        this.start();
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            this.client.send(this.message(this.clientEndpoint, i));
+        }
+        await(this.serverReceived, count);
+        Assert.assertEquals(count, this.serverReceived.size());
+        Message first = this.serverReceived.get(0);
+        Assert.assertSame(this.serverEndpoint, first.getSource());
+        Assert.assertEquals("custom 0", first.getDefaultMessage());
+        Assert.assertEquals(Message.getInstanceId(), first.getOriginInstance());
+        Assert.assertEquals("Chat", first.getOrigin());
+        Assert.assertEquals(1, first.getHops());
+        Assert.assertEquals("text 19999", this.serverReceived.get(count - 1).getData().get(Endpoint.MESSAGE_TEXT));
+
+        this.server.send(this.message(this.serverEndpoint, 1));
+        await(this.clientReceived, 1);
+        Assert.assertEquals("custom 1", this.clientReceived.get(0).getDefaultMessage());
+
+        for (int i = 0; i < 100 && this.client.getUnacknowledged() > 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, this.client.getUnacknowledged());
+    }
+
+    @Test
+    public void queuesUntilConnected() throws Exception {
+        this.client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), 1));
+        for (int i = 0; i < 10; i++) {
+            this.client.send(this.message(this.clientEndpoint, i));
+        }
+        Assert.assertEquals(10, this.client.getUnacknowledged());
+        this.client.close();
+    }
+
+    @Test
+    public void rejectsWrongSecret() throws Exception {
+        Bridge intruder = new Bridge(this.clientEndpoint, this.clientReceived::add, "guess", 64, 16384, 100000, 100, 60000, 200);
+        try {
+            int port = this.server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            intruder.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            intruder.send(this.message(this.clientEndpoint, 1));
+            Thread.sleep(500);
+            Assert.assertTrue(this.serverReceived.isEmpty());
+            Assert.assertEquals(1, intruder.getUnacknowledged());
+        } finally {
+            intruder.close();
+        }
+    }
+
+    @Test
+    public void acknowledgesPoisonMessage() throws Exception {
+        RecordingLogger logger = RecordingLogger.install();
+        Bridge picky = new Bridge(this.serverEndpoint, message -> {
+            if (message.getDefaultMessage().equals("custom 0")) {
+                throw new IllegalStateException("poison");
+            }
+            this.serverReceived.add(message);
+        }, "secret", 64, 16384, 100000, 100, 60000, 200);
+        try {
+            int port = picky.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            this.client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            this.client.send(this.message(this.clientEndpoint, 0));
+            this.client.send(this.message(this.clientEndpoint, 1));
+            await(this.serverReceived, 1);
+            Assert.assertEquals("custom 1", this.serverReceived.get(0).getDefaultMessage());
+            for (int i = 0; i < 100 && this.client.getUnacknowledged() > 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, this.client.getUnacknowledged());
+            Assert.assertEquals(1, logger.getWarnings().size());
+        } finally {
+            picky.close();
+            RecordingLogger.uninstall();
+        }
+    }
+
+    @Test
+    public void closesSilentConnection() throws Exception {
+        int port = this.server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            long start = System.currentTimeMillis();
+            while (in.read() >= 0) {
+                // Reading HELLO until the bridge gives up on us
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void staysConnectedWhileIdle() throws Exception {
+        Bridge slow = new Bridge(this.clientEndpoint, this.clientReceived::add, "secret", 64, 16384, 100000, 60000, 60000, 200);
+        try {
+            int port = this.server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            slow.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            Thread.sleep(1000);
+            slow.send(this.message(this.clientEndpoint, 1));
+            await(this.serverReceived, 1);
+            Assert.assertEquals(1, this.serverReceived.size());
+        } finally {
+            slow.close();
+        }
+    }
+}
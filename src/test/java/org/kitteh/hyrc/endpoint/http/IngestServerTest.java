@@ -0,0 +1,132 @@
+package org.kitteh.hyrc.endpoint.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.Message;
+import org.kitteh.hyrc.util.NamedEndpoint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IngestServerTest {
+    private final Endpoint endpoint = new NamedEndpoint("Webhook");
+    private final List<List<Message>> received = new CopyOnWriteArrayList<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger accepting = new AtomicInteger(Integer.MAX_VALUE);
+    private IngestServer server;
+    private String response;
+
+    @Before
+    public void start() throws Exception {
+        this.server = new IngestServer(this.endpoint, this::accept, this.queued::get, 100, 4096, "secret", new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        this.server.start();
+    }
+
+    @After
+    public void close() {
+        this.server.close();
+    }
+
+    private int accept(List<Message> messages) {
+        this.received.add(messages);
+        return Math.min(messages.size(), this.accepting.get());
+    }
+
+    private int post(String body, String token) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + this.server.getPort() + "/").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        if (token != null) {
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        int status = connection.getResponseCode();
+        try (InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream()) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                content.write(buffer, 0, read);
+            }
+            this.response = new String(content.toByteArray(), StandardCharsets.UTF_8).trim();
+        }
+        connection.disconnect();
+        return status;
+    }
+
+    @Test
+    public void acceptsSingleAndBatch() throws Exception {
+        Assert.assertEquals(202, this.post("{\"text\": \"hi\", \"sender\": \"kitteh\", \"data\": {\"level\": 3}}", "secret"));
+        Assert.assertEquals(202, this.post("[{\"text\": \"one\"}, {\"text\": \"two\", \"message\": \"custom\"}]", "secret"));
+        Assert.assertEquals("Accepted 2 of 2", this.response);
+        Assert.assertEquals(2, this.received.size());
+        Message single = this.received.get(0).get(0);
+        Assert.assertEquals("<kitteh> hi", single.getDefaultMessage());
+        Assert.assertEquals(3, single.getData().get("level"));
+        Assert.assertSame(this.endpoint, single.getSource());
+        List<Message> batch = this.received.get(1);
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals("one", batch.get(0).getDefaultMessage());
+        Assert.assertEquals("custom", batch.get(1).getDefaultMessage());
+    }
+
+    @Test
+    public void rejectsBadRequests() throws Exception {
+        Assert.assertEquals(401, this.post("{\"text\": \"hi\"}", null));
+        Assert.assertEquals(401, this.post("{\"text\": \"hi\"}", "secreT"));
+        Assert.assertEquals(401, this.post("{\"text\": \"hi\"}", "secret2"));
+        Assert.assertEquals(400, this.post("{\"sender\": \"nobody\"}", "secret"));
+        Assert.assertEquals(400, this.post("{\"text\": ", "secret"));
+        StringBuilder large = new StringBuilder("{\"text\": \"");
+        for (int i = 0; i < 5000; i++) {
+            large.append('a');
+        }
+        Assert.assertEquals(413, this.post(large.append("\"}").toString(), "secret"));
+        this.queued.set(100);
+        Assert.assertEquals(429, this.post("{\"text\": \"hi\"}", "secret"));
+        Assert.assertTrue(this.received.isEmpty());
+    }
+
+    @Test
+    public void rejectsNonJson() throws Exception {
+        Assert.assertEquals(400, this.post("a: &a [\"x\"]\nb: [*a, *a]", "secret"));
+        Assert.assertEquals(400, this.post("{\"text\": !!str hi}", "secret"));
+        Assert.assertEquals(400, this.post("{\"text\": \"hi\"} {}", "secret"));
+        Assert.assertEquals(400, this.post("{\"text\": \"hi\", \"text\": \"again\"}", "secret"));
+        StringBuilder deep = new StringBuilder("{\"text\": \"hi\", \"data\": ");
+        for (int i = 0; i < 100; i++) {
+            deep.append('[');
+        }
+        Assert.assertEquals(400, this.post(deep.toString(), "secret"));
+        Assert.assertTrue(this.received.isEmpty());
+        Assert.assertEquals(202, this.post("{\"text\": \"caf\\u00e9 \\\"quoted\\\"\", \"data\": {\"big\": 12345678901, \"ratio\": 0.5, \"flag\": true}}", "secret"));
+        Message message = this.received.get(0).get(0);
+        Assert.assertEquals("caf\u00e9 \"quoted\"", message.getDefaultMessage());
+        Assert.assertEquals(12345678901L, message.getData().get("big"));
+        Assert.assertEquals(0.5, message.getData().get("ratio"));
+        Assert.assertEquals(Boolean.TRUE, message.getData().get("flag"));
+    }
+
+    @Test
+    public void reportsAcceptedCount() throws Exception {
+        this.accepting.set(1);
+        Assert.assertEquals(202, this.post("[{\"text\": \"one\"}, {\"text\": \"two\"}]", "secret"));
+        Assert.assertEquals("Accepted 1 of 2", this.response);
+        this.accepting.set(0);
+        Assert.assertEquals(429, this.post("[{\"text\": \"one\"}]", "secret"));
+    }
+}
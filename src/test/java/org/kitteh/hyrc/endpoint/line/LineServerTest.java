@@ -0,0 +1,86 @@
+package org.kitteh.hyrc.endpoint.line;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.Message;
+import org.kitteh.hyrc.util.NamedEndpoint;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LineServerTest {
+    private final Endpoint endpoint = new NamedEndpoint("Line");
+    private final List<Message> received = new CopyOnWriteArrayList<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private LineServer server;
+
+    @After
+    public void close() {
+        this.server.close();
+    }
+
+    private Socket start() throws Exception {
+        this.server = new LineServer(this.endpoint, this.received::add, this.queued::get, 100, 64, 4096);
+        int port = this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.server.start();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        for (int i = 0; i < 200 && this.server.getClientCount() == 0; i++) {
+            Thread.sleep(5);
+        }
+        return socket;
+    }
+
+    private void await(int size) throws InterruptedException {
+        for (int i = 0; i < 200 && this.received.size() < size; i++) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void readsAndWritesLines() throws Exception {
+        try (Socket socket = this.start()) {
+            OutputStream out = socket.getOutputStream();
+            out.write("hello\r\nkitteh\tmeow\n".getBytes(StandardCharsets.UTF_8));
+            out.write(new byte[100]);
+            out.write("\npart".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            out.write("ial\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            this.await(3);
+            Assert.assertEquals(3, this.received.size());
+            Assert.assertEquals("hello", this.received.get(0).getDefaultMessage());
+            Assert.assertEquals("<kitteh> meow", this.received.get(1).getDefaultMessage());
+            Assert.assertEquals("kitteh", this.received.get(1).getData().get(Endpoint.SENDER_NAME));
+            Assert.assertEquals("partial", this.received.get(2).getData().get(Endpoint.MESSAGE_TEXT));
+
+            this.server.send("out\ngoing");
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Assert.assertEquals("out going", reader.readLine());
+        }
+    }
+
+    @Test
+    public void pausesWhileQueueIsFull() throws Exception {
+        try (Socket socket = this.start()) {
+            this.queued.set(1000);
+            Thread.sleep(250);
+            socket.getOutputStream().write("held\n".getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            Thread.sleep(250);
+            Assert.assertEquals(0, this.received.size());
+            this.queued.set(0);
+            this.await(1);
+            Assert.assertEquals(1, this.received.size());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.kitteh.hyrc.endpoint.link;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LinkManagerTest {
+    private static Map<String, List<String>> graph(String... edges) {
+        Map<String, List<String>> graph = new LinkedHashMap<>();
+        for (String edge : edges) {
+            String[] split = edge.split(">");
+            graph.computeIfAbsent(split[0], k -> new ArrayList<>()).add(split[1]);
+        }
+        return graph;
+    }
+
+    @Test
+    public void ignoresCyclesWithoutRelaying() {
+        Map<String, List<String>> graph = graph("irc>game", "game>irc");
+        Assert.assertTrue(LinkManager.findCycles(graph, name -> false).isEmpty());
+    }
+
+    @Test
+    public void findsCycleThroughRelaying() {
+        Map<String, List<String>> graph = graph("irc>bridge", "bridge>irc", "irc>game");
+        List<List<String>> cycles = LinkManager.findCycles(graph, "bridge"::equals);
+        Assert.assertEquals(1, cycles.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("irc", "bridge")), new HashSet<>(cycles.get(0)));
+    }
+
+    @Test
+    public void groupsOverlappingCycles() {
+        Map<String, List<String>> graph = graph("a>b", "a>c", "c>d", "d>b", "b>e", "e>c", "c>a", "x>a");
+        Assert.assertTrue(LinkManager.findCycles(graph, "x"::equals).isEmpty());
+        List<List<String>> cycles = LinkManager.findCycles(graph, "d"::equals);
+        Assert.assertEquals(1, cycles.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b", "c", "d", "e")), new HashSet<>(cycles.get(0)));
+    }
+
+    @Test
+    public void findsSelfLink() {
+        Map<String, List<String>> graph = graph("bridge>bridge", "bridge>irc");
+        Assert.assertEquals(Collections.singletonList(Collections.singletonList("bridge")), LinkManager.findCycles(graph, "bridge"::equals));
+        Assert.assertTrue(LinkManager.findCycles(graph("irc>bridge"), "bridge"::equals).isEmpty());
+    }
+}
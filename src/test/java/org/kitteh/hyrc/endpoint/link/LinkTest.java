@@ -0,0 +1,50 @@
+package org.kitteh.hyrc.endpoint.link;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitteh.hyrc.endpoint.Message;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+import org.kitteh.hyrc.endpoint.filter.Filter;
+import org.kitteh.hyrc.util.MapBuilder;
+import org.kitteh.hyrc.util.NamedEndpoint;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LinkTest {
+    private final NamedEndpoint endpoint = new NamedEndpoint("B");
+
+    private TargetedMessage message() {
+        return new TargetedMessage(this.endpoint, new Message(this.endpoint, "hi", new MapBuilder<String, Object>().build()));
+    }
+
+    @Test
+    public void pausedRejectsWithoutFiltering() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Link link = new Link(null, "A", "B", null);
+        Constructor<Link.LinkFilterLoader> constructor = Link.LinkFilterLoader.class.getDeclaredConstructor(Link.class);
+        constructor.setAccessible(true);
+        constructor.newInstance(link).addFilter(new Filter() {
+            @Override
+            public void processMessage(@NonNull TargetedMessage message) {
+                calls.incrementAndGet();
+            }
+        });
+        Assert.assertFalse(link.isPaused());
+
+        link.setPaused(true);
+        Assert.assertTrue(link.isPaused());
+        TargetedMessage paused = this.message();
+        link.filterMessage(paused);
+        Assert.assertTrue(paused.isRejected());
+        Assert.assertEquals(0, calls.get());
+
+        link.setPaused(false);
+        Assert.assertFalse(link.isPaused());
+        TargetedMessage resumed = this.message();
+        link.filterMessage(resumed);
+        Assert.assertFalse(resumed.isRejected());
+        Assert.assertEquals(1, calls.get());
+    }
+}
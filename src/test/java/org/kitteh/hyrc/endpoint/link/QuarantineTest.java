@@ -0,0 +1,113 @@
+package org.kitteh.hyrc.endpoint.link;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kitteh.hyrc.endpoint.Message;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+import org.kitteh.hyrc.endpoint.filter.Filter;
+import org.kitteh.hyrc.util.MapBuilder;
+import org.kitteh.hyrc.util.NamedEndpoint;
+import org.kitteh.hyrc.util.RecordingLogger;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QuarantineTest {
+    private final NamedEndpoint endpoint = new NamedEndpoint("B");
+    private RecordingLogger logger;
+
+    @Before
+    public void setUp() {
+        this.logger = RecordingLogger.install();
+    }
+
+    @After
+    public void tearDown() {
+        RecordingLogger.uninstall();
+    }
+
+    private Link link(QuarantinePolicy policy, Filter... filters) throws Exception {
+        Link link = new Link(null, "A", "B", null, policy);
+        Constructor<Link.LinkFilterLoader> constructor = Link.LinkFilterLoader.class.getDeclaredConstructor(Link.class);
+        constructor.setAccessible(true);
+        Link.LinkFilterLoader loader = constructor.newInstance(link);
+        for (Filter filter : filters) {
+            loader.addFilter(filter);
+        }
+        return link;
+    }
+
+    private TargetedMessage message() {
+        return new TargetedMessage(this.endpoint, new Message(this.endpoint, "hi", new MapBuilder<String, Object>().build()));
+    }
+
+    @Test
+    public void quarantinesFailingFilterThenResumes() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Filter broken = new Filter() {
+            @Override
+            public void processMessage(@NonNull TargetedMessage message) {
+                calls.incrementAndGet();
+                throw new IllegalStateException("broken");
+            }
+        };
+        Link link = this.link(new QuarantinePolicy(true, 60000, 3, Long.MAX_VALUE, 3, 200, false), broken);
+        for (int i = 0; i < 10; i++) {
+            TargetedMessage message = this.message();
+            link.filterMessage(message);
+            Assert.assertFalse(message.isRejected());
+        }
+        Assert.assertEquals(4, calls.get());
+        Assert.assertEquals(2, this.logger.getWarnings().size());
+        Assert.assertTrue(this.logger.getWarnings().get(1).startsWith("Quarantined filter #0"));
+
+        Thread.sleep(250);
+        link.filterMessage(this.message());
+        Assert.assertEquals(5, calls.get());
+    }
+
+    @Test
+    public void quarantinesSlowFilterRejecting() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Filter slow = new Filter() {
+            @Override
+            public void processMessage(@NonNull TargetedMessage message) {
+                calls.incrementAndGet();
+                try {
+                    Thread.sleep(3);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Link link = this.link(new QuarantinePolicy(true, 60000, 3, 1_000_000L, 2, 60000, true), slow);
+        for (int i = 0; i < 3; i++) {
+            TargetedMessage message = this.message();
+            link.filterMessage(message);
+            Assert.assertFalse(message.isRejected());
+        }
+        TargetedMessage message = this.message();
+        link.filterMessage(message);
+        Assert.assertTrue(message.isRejected());
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(1, this.logger.getWarnings().size());
+    }
+
+    @Test
+    public void disabledLogsEveryError() throws Exception {
+        Filter broken = new Filter() {
+            @Override
+            public void processMessage(@NonNull TargetedMessage message) {
+                throw new IllegalStateException("broken");
+            }
+        };
+        Link link = this.link(QuarantinePolicy.DISABLED, broken);
+        for (int i = 0; i < 5; i++) {
+            link.filterMessage(this.message());
+        }
+        Assert.assertEquals(5, this.logger.getWarnings().size());
+    }
+}
@@ -0,0 +1,109 @@
+package org.kitteh.hyrc.endpoint.tail;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class FileTailerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> lines = new CopyOnWriteArrayList<>();
+    private FileTailer tailer;
+
+    @After
+    public void close() {
+        if (this.tailer != null) {
+            this.tailer.close();
+        }
+    }
+
+    private void start(File file, File offsetFile, boolean startAtEnd) throws IOException {
+        this.tailer = new FileTailer("test", file, offsetFile, this.lines::add, 10, 64, 32, startAtEnd);
+        this.tailer.start();
+    }
+
+    private static void append(File file, String text) throws IOException {
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void await(String... expected) throws InterruptedException {
+        for (int i = 0; i < 500 && this.lines.size() < expected.length; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        Assert.assertEquals(Arrays.asList(expected), this.lines);
+    }
+
+    @Test
+    public void followsAppendsRotationAndTruncation() throws Exception {
+        File file = new File(this.folder.getRoot(), "chat.log");
+        append(file, "one\r\ntwo\n");
+        this.start(file, new File(this.folder.getRoot(), "chat.pos"), false);
+        this.await("one", "two");
+
+        append(file, "thr");
+        Thread.sleep(50);
+        append(file, "ee\n" + new String(new char[100]).replace('\0', 'x') + "\nfour\n");
+        this.await("one", "two", "three", "four");
+
+        File rotated = new File(this.folder.getRoot(), "chat.log.1");
+        Assert.assertTrue(file.renameTo(rotated));
+        append(rotated, "five\n");
+        append(file, "six\n");
+        this.await("one", "two", "three", "four", "five", "six");
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write("7\n".getBytes(StandardCharsets.UTF_8));
+        }
+        this.await("one", "two", "three", "four", "five", "six", "7");
+    }
+
+    @Test
+    public void resumesFromStoredOffset() throws Exception {
+        File file = new File(this.folder.getRoot(), "chat.log");
+        File offsetFile = new File(this.folder.getRoot(), "chat.pos");
+        append(file, "old\n");
+        this.start(file, offsetFile, true);
+        Thread.sleep(100);
+        append(file, "new\n");
+        this.await("new");
+        this.tailer.close();
+        Thread.sleep(50);
+        Assert.assertEquals(8, this.tailer.getOffset());
+
+        append(file, "later\n");
+        this.start(file, offsetFile, true);
+        this.await("new", "later");
+    }
+
+    @Test
+    public void identifiesByFullKey() throws Exception {
+        File file = new File(this.folder.getRoot(), "chat.log");
+        append(file, "line\n");
+        FileTailer.Identity identity = FileTailer.identity(file);
+        Assert.assertTrue(identity.matches(FileTailer.identity(file)));
+        append(file, "more\n");
+        Assert.assertTrue(identity.matches(FileTailer.identity(file)));
+        File other = new File(this.folder.getRoot(), "other.log");
+        append(other, "line\n");
+        Assert.assertFalse(identity.matches(FileTailer.identity(other)));
+
+        Assert.assertFalse(new FileTailer.Identity("(dev=1,ino=2)", 1000).matches(new FileTailer.Identity("(dev=1,ino=2)", 2000)));
+        Assert.assertTrue(new FileTailer.Identity("(dev=1,ino=2)", 0).matches(new FileTailer.Identity("(dev=1,ino=2)", 2000)));
+        Assert.assertFalse(new FileTailer.Identity("(dev=1,ino=2)", 0).matches(new FileTailer.Identity("(dev=1,ino=3)", 0)));
+    }
+}
@@ -0,0 +1,48 @@
+package org.kitteh.hyrc.irc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitteh.irc.client.library.Client;
+import org.kitteh.irc.client.library.element.ServerInfo;
+import org.kitteh.irc.client.library.feature.CaseMapping;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ChannelTableTest {
+    private static final int CHANNELS = 500;
+
+    private final AtomicReference<CaseMapping> caseMapping = new AtomicReference<>(CaseMapping.RFC1459);
+
+    private Client client() {
+        ServerInfo info = (ServerInfo) Proxy.newProxyInstance(ServerInfo.class.getClassLoader(), new Class<?>[]{ServerInfo.class}, (proxy, method, args) -> method.getName().equals("getCaseMapping") ? this.caseMapping.get() : null);
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[]{Client.class}, (proxy, method, args) -> method.getName().equals("getServerInfo") ? info : null);
+    }
+
+    @Test
+    public void manyChannels() {
+        ChannelTable table = new ChannelTable(this.client(), this.caseMapping::get);
+        ChannelTable.BotChannel[] added = new ChannelTable.BotChannel[CHANNELS];
+        for (int i = 0; i < CHANNELS; i++) {
+            added[i] = table.add("#Chan[" + i + "]");
+        }
+        Assert.assertEquals(CHANNELS, table.getChannels().size());
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < CHANNELS; i++) {
+                Assert.assertSame(added[i], table.get("#Chan[" + i + "]"));
+                Assert.assertSame(added[i], table.get("#CHAN{" + i + "}"));
+            }
+        }
+        Assert.assertNull(table.get("#elsewhere"));
+    }
+
+    @Test
+    public void refold() {
+        ChannelTable table = new ChannelTable(this.client(), this.caseMapping::get);
+        ChannelTable.BotChannel channel = table.add("#Meow[]");
+        Assert.assertSame(channel, table.get("#meow{}"));
+        this.caseMapping.set(CaseMapping.ASCII);
+        Assert.assertNull(table.get("#meow{}"));
+        Assert.assertSame(channel, table.get("#MEOW[]"));
+    }
+}
@@ -0,0 +1,146 @@
+package org.kitteh.hyrc.irc;
+
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.metrics.FlightEvents;
+import org.kitteh.hyrc.util.BareHyRC;
+import org.kitteh.hyrc.util.RecordingLogger;
+import org.kitteh.irc.client.library.Client;
+import org.kitteh.irc.client.library.element.ServerInfo;
+import org.kitteh.irc.client.library.feature.CaseMapping;
+import org.kitteh.irc.client.library.feature.EventManager;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class IRCBotTest {
+    private static final int POOL = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Integer> senders = new CopyOnWriteArrayList<>();
+    private HyRC plugin;
+    private BotManager manager;
+    private IRCBot bot;
+
+    @Before
+    public void setUp() throws Exception {
+        RecordingLogger.install();
+        this.plugin = BareHyRC.create(this.folder.newFolder());
+        this.manager = new BotManager(this.plugin, Collections.emptyList(), SimpleConfigurationNode.root());
+        List<Client> clients = new ArrayList<>();
+        List<ClientTraffic> traffic = new ArrayList<>();
+        List<RawCapture> captures = new ArrayList<>();
+        for (int i = 0; i < POOL; i++) {
+            clients.add(this.client(i));
+            traffic.add(new ClientTraffic("bot", FlightEvents.NOOP));
+            captures.add(new RawCapture("bot", 0, false, false, false));
+        }
+        this.bot = new IRCBot(this.plugin, this.manager, "bot", "irc.example.com", clients, traffic, captures);
+    }
+
+    @After
+    public void tearDown() {
+        RecordingLogger.uninstall();
+    }
+
+    private Client client(int index) {
+        ServerInfo info = (ServerInfo) Proxy.newProxyInstance(ServerInfo.class.getClassLoader(), new Class<?>[]{ServerInfo.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getCaseMapping":
+                    return CaseMapping.RFC1459;
+                case "getNetworkName":
+                    return Optional.of("Kitteh");
+                default:
+                    return null;
+            }
+        });
+        EventManager events = (EventManager) Proxy.newProxyInstance(EventManager.class.getClassLoader(), new Class<?>[]{EventManager.class}, (proxy, method, args) -> null);
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[]{Client.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getServerInfo":
+                    return info;
+                case "getEventManager":
+                    return events;
+                case "getNick":
+                    return "HyRC" + index;
+                case "sendMessage":
+                    this.senders.add(index);
+                    return null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private Object member(int index) throws Exception {
+        Field members = IRCBot.class.getDeclaredField("members");
+        members.setAccessible(true);
+        return ((List<?>) members.get(this.bot)).get(index);
+    }
+
+    private void setJoined(int index, String channel, boolean joined) throws Exception {
+        Object member = this.member(index);
+        Field channels = member.getClass().getDeclaredField("channels");
+        channels.setAccessible(true);
+        ((ChannelTable) channels.get(member)).add(channel).setJoined(joined);
+    }
+
+    private boolean isHandler(int index, String channel) throws Exception {
+        Object member = this.member(index);
+        Method isHandler = IRCBot.class.getDeclaredMethod("isHandler", member.getClass(), String.class);
+        isHandler.setAccessible(true);
+        return (Boolean) isHandler.invoke(this.bot, member, channel);
+    }
+
+    @Test
+    public void sendsRoundRobinAmongJoined() throws Exception {
+        this.setJoined(0, "#busy", true);
+        this.setJoined(2, "#busy", true);
+        for (int i = 0; i < 6; i++) {
+            this.bot.sendMessage("#busy", "meow " + i);
+        }
+        Assert.assertEquals(6, this.senders.size());
+        Assert.assertEquals(3, Collections.frequency(this.senders, 0));
+        Assert.assertEquals(3, Collections.frequency(this.senders, 2));
+
+        this.senders.clear();
+        this.bot.sendMessage("#elsewhere", "meow");
+        this.bot.sendMessage("#elsewhere", "meow");
+        Assert.assertEquals(Collections.nCopies(2, 0), this.senders);
+    }
+
+    @Test
+    public void lowestJoinedMemberHandlesInput() throws Exception {
+        this.setJoined(1, "#busy", true);
+        this.setJoined(2, "#busy", true);
+        Assert.assertTrue(this.isHandler(0, "#busy"));
+        Assert.assertTrue(this.isHandler(1, "#busy"));
+        Assert.assertFalse(this.isHandler(2, "#busy"));
+
+        this.setJoined(1, "#busy", false);
+        Assert.assertTrue(this.isHandler(2, "#busy"));
+        this.setJoined(0, "#busy", true);
+        Assert.assertFalse(this.isHandler(2, "#busy"));
+    }
+
+    @Test
+    public void tracksOwnNicks() {
+        Assert.assertEquals(POOL, this.bot.getPoolSize());
+        Assert.assertTrue(this.manager.isOwnNick("Kitteh", "HyRC2"));
+        Assert.assertFalse(this.manager.isOwnNick("Kitteh", "HyRC3"));
+    }
+}
@@ -0,0 +1,62 @@
+package org.kitteh.hyrc.irc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageDeduplicatorTest {
+    private final Object botA = new Object();
+    private final Object botB = new Object();
+
+    @Test
+    public void otherBotIsDuplicate() {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(64, 60000);
+        Assert.assertFalse(deduplicator.isDuplicate(this.botA, "net", "#chan", "nick!user@host", "meow"));
+        Assert.assertTrue(deduplicator.isDuplicate(this.botB, "net", "#chan", "nick!user@host", "meow"));
+        Assert.assertEquals(1, deduplicator.getSuppressedCount());
+    }
+
+    @Test
+    public void sameBotIsNotDuplicate() {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(64, 60000);
+        Assert.assertFalse(deduplicator.isDuplicate(this.botA, "net", "#chan", "nick!user@host", "meow"));
+        Assert.assertFalse(deduplicator.isDuplicate(this.botA, "net", "#chan", "nick!user@host", "meow"));
+        Assert.assertEquals(0, deduplicator.getSuppressedCount());
+    }
+
+    @Test
+    public void differentLinesAreNotDuplicates() {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(64, 60000);
+        Assert.assertFalse(deduplicator.isDuplicate(this.botA, "net", "#chan", "nick!user@host", "meow"));
+        Assert.assertFalse(deduplicator.isDuplicate(this.botB, "net", "#chan", "nick!user@host", "purr"));
+        Assert.assertFalse(deduplicator.isDuplicate(this.botB, "net", "#other", "nick!user@host", "meow"));
+        Assert.assertFalse(deduplicator.isDuplicate(this.botB, "othernet", "#chan", "nick!user@host", "meow"));
+    }
+
+    @Test
+    public void equalStringHashCodesAreNotDuplicates() {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(64, 60000);
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        Assert.assertFalse(deduplicator.isDuplicate(this.botA, "net", "#chan", "nick!user@host", "Aa"));
+        Assert.assertFalse(deduplicator.isDuplicate(this.botB, "net", "#chan", "nick!user@host", "BB"));
+        Assert.assertFalse(deduplicator.isDuplicate(this.botA, "net", "#chan", "nick!user@host", "AaAa"));
+        Assert.assertFalse(deduplicator.isDuplicate(this.botB, "net", "#chan", "nick!user@host", "BBBB"));
+        Assert.assertFalse(deduplicator.isDuplicate(this.botB, "net", "#chan", "nick!user@hostA", "a"));
+    }
+
+    @Test
+    public void windowExpires() throws InterruptedException {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(64, 1);
+        Assert.assertFalse(deduplicator.isDuplicate(this.botA, "net", "#chan", "nick!user@host", "meow"));
+        Thread.sleep(5);
+        Assert.assertFalse(deduplicator.isDuplicate(this.botB, "net", "#chan", "nick!user@host", "meow"));
+    }
+
+    @Test
+    public void boundedTable() {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(16, 60000);
+        for (int i = 0; i < 10000; i++) {
+            deduplicator.isDuplicate(this.botA, "net", "#chan", "nick!user@host", "line " + i);
+        }
+        Assert.assertTrue(deduplicator.isDuplicate(this.botB, "net", "#chan", "nick!user@host", "line 9999"));
+    }
+}
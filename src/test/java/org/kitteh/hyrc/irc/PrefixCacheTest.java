@@ -0,0 +1,92 @@
+package org.kitteh.hyrc.irc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitteh.irc.client.library.Client;
+import org.kitteh.irc.client.library.element.Channel;
+import org.kitteh.irc.client.library.element.ServerInfo;
+import org.kitteh.irc.client.library.element.User;
+import org.kitteh.irc.client.library.element.mode.ChannelUserMode;
+import org.kitteh.irc.client.library.feature.CaseMapping;
+
+import java.lang.reflect.Proxy;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PrefixCacheTest {
+    private static final String RANKS = "~&@%+";
+
+    private final Map<String, String> modes = new HashMap<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private Client client() {
+        ServerInfo info = (ServerInfo) Proxy.newProxyInstance(ServerInfo.class.getClassLoader(), new Class<?>[]{ServerInfo.class}, (proxy, method, args) -> method.getName().equals("getCaseMapping") ? CaseMapping.RFC1459 : null);
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[]{Client.class}, (proxy, method, args) -> method.getName().equals("getServerInfo") ? info : null);
+    }
+
+    private Channel channel() {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("getUserModes")) {
+                return null;
+            }
+            this.lookups.incrementAndGet();
+            String prefixes = this.modes.get(((User) args[0]).getNick());
+            if (prefixes == null) {
+                return Optional.empty();
+            }
+            SortedSet<ChannelUserMode> set = new TreeSet<>(Comparator.comparingInt(mode -> RANKS.indexOf(mode.getNickPrefix())));
+            for (char prefix : prefixes.toCharArray()) {
+                set.add((ChannelUserMode) Proxy.newProxyInstance(ChannelUserMode.class.getClassLoader(), new Class<?>[]{ChannelUserMode.class}, (modeProxy, modeMethod, modeArgs) -> modeMethod.getName().equals("getNickPrefix") ? prefix : null));
+            }
+            return Optional.of(set);
+        });
+    }
+
+    private User user(String nick) {
+        return (User) Proxy.newProxyInstance(User.class.getClassLoader(), new Class<?>[]{User.class}, (proxy, method, args) -> method.getName().equals("getNick") ? nick : null);
+    }
+
+    @Test
+    public void cachesUntilForgotten() {
+        PrefixCache cache = new PrefixCache(this.client());
+        Channel channel = this.channel();
+        this.modes.put("kitteh", "+@");
+        PrefixCache.Prefixes prefixes = cache.get(channel, this.user("kitteh"));
+        Assert.assertEquals('@', prefixes.getPrefix());
+        Assert.assertEquals("@+", prefixes.getPrefixes());
+
+        this.modes.put("kitteh", "+");
+        Assert.assertSame(prefixes, cache.get(channel, this.user("kitteh")));
+        Assert.assertEquals(1, this.lookups.get());
+
+        cache.forget("someone");
+        Assert.assertSame(prefixes, cache.get(channel, this.user("kitteh")));
+        cache.forget("kitteh");
+        Assert.assertEquals("+", cache.get(channel, this.user("kitteh")).getPrefixes());
+        Assert.assertEquals(2, this.lookups.get());
+    }
+
+    @Test
+    public void clearForgetsEverybody() {
+        PrefixCache cache = new PrefixCache(this.client());
+        Channel channel = this.channel();
+        this.modes.put("kitteh", "@");
+        Assert.assertEquals("@", cache.get(channel, this.user("kitteh")).getPrefixes());
+        PrefixCache.Prefixes none = cache.get(channel, this.user("lurker"));
+        Assert.assertEquals("", none.getPrefix());
+        Assert.assertEquals("", none.getPrefixes());
+        Assert.assertEquals(2, this.lookups.get());
+
+        this.modes.remove("kitteh");
+        this.modes.put("lurker", "%");
+        cache.clear();
+        Assert.assertEquals("", cache.get(channel, this.user("kitteh")).getPrefixes());
+        Assert.assertEquals('%', cache.get(channel, this.user("lurker")).getPrefix());
+        Assert.assertEquals(4, this.lookups.get());
+    }
+}
@@ -0,0 +1,39 @@
+package org.kitteh.hyrc.irc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class RawCaptureTest {
+    @Test
+    public void keepsLatestLines() {
+        RawCapture capture = new RawCapture("bot", 3, true, false, false);
+        for (int i = 0; i < 5; i++) {
+            capture.input("line " + i);
+        }
+        capture.output("PASS hunter2");
+        List<String> lines = capture.snapshot();
+        Assert.assertEquals(3, lines.size());
+        Assert.assertTrue(lines.get(0).endsWith(" [IN] line 3"));
+        Assert.assertTrue(lines.get(1).endsWith(" [IN] line 4"));
+        Assert.assertTrue(lines.get(2).endsWith(" [OUT] PASS <redacted>"));
+    }
+
+    @Test
+    public void toggles() {
+        RawCapture capture = new RawCapture("bot", 3, false, false, false);
+        capture.input("ignored");
+        Assert.assertTrue(capture.snapshot().isEmpty());
+        Assert.assertTrue(capture.setEnabled(true));
+        capture.output("PRIVMSG NickServ :IDENTIFY hunter2");
+        Assert.assertEquals(1, capture.snapshot().size());
+        Assert.assertTrue(capture.snapshot().get(0).endsWith("PRIVMSG NickServ :<redacted>"));
+
+        RawCapture none = new RawCapture("bot", 0, true, true, true);
+        Assert.assertFalse(none.isEnabled());
+        Assert.assertFalse(none.setEnabled(true));
+        none.input("ignored");
+        Assert.assertTrue(none.snapshot().isEmpty());
+    }
+}
@@ -0,0 +1,76 @@
+package org.kitteh.hyrc.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsTest {
+    @Test
+    public void disabledHandsOutNoops() {
+        Metrics metrics = new Metrics(false);
+        Counter counter = metrics.counter("count");
+        counter.increment();
+        Assert.assertSame(Counter.NOOP, counter);
+        Assert.assertEquals(0, counter.get());
+        Histogram histogram = metrics.histogram("time");
+        Assert.assertFalse(histogram.isEnabled());
+        histogram.record(5);
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtQuantile(0.5));
+        Assert.assertTrue(metrics.getCounters().isEmpty());
+    }
+
+    @Test
+    public void registersByNameAndLabels() {
+        Metrics metrics = new Metrics(true);
+        metrics.counter("sent", "endpoint", "IRC").add(3);
+        metrics.counter("sent", "endpoint", "IRC").increment();
+        metrics.counter("sent", "endpoint", "Chat").increment();
+        Assert.assertEquals(4, metrics.counter("sent", "endpoint", "IRC").get());
+        Assert.assertEquals(2, metrics.getCounters().size());
+        metrics.gauge("depth", () -> 7);
+        Assert.assertEquals(7, metrics.getGauges().values().iterator().next().getAsLong());
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (long value = 0; value < 100000; value++) {
+            int index = Histogram.index(value);
+            Assert.assertTrue(value <= Histogram.upperBound(index));
+            Assert.assertTrue(index == 0 || value > Histogram.upperBound(index - 1));
+        }
+        Assert.assertEquals(Histogram.BUCKETS - 1, Histogram.index(Long.MAX_VALUE >>> 19));
+    }
+
+    @Test
+    public void reportsQuantilesWithinPrecision() {
+        Histogram histogram = new Metrics(true).histogram("time");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(500500000L, histogram.getSum());
+        long median = histogram.getValueAtQuantile(0.5);
+        Assert.assertTrue(median >= 500000 && median <= 500000 * 1.125);
+        long p99 = histogram.getValueAtQuantile(0.99);
+        Assert.assertTrue(p99 >= 990000 && p99 <= 990000 * 1.125);
+        Assert.assertTrue(histogram.getMax() >= 1000000);
+    }
+
+    @Test
+    public void rateCoversLastCompletedWindow() {
+        Rate rate = new Rate(10);
+        for (int i = 0; i < 30; i++) {
+            rate.mark(100);
+        }
+        rate.mark(105);
+        rate.mark(110);
+        Assert.assertEquals(3.1, rate.get(110), 0.0001);
+        Assert.assertEquals(3.1, rate.get(110), 0.0001);
+        Assert.assertEquals(0.2, rate.get(111), 0.0001);
+        Assert.assertEquals(0.1, rate.get(116), 0.0001);
+        Assert.assertEquals(0, rate.get(121), 0.0001);
+        rate.mark(121);
+        Assert.assertEquals(0, rate.get(121), 0.0001);
+        Assert.assertEquals(0.1, rate.get(122), 0.0001);
+    }
+}
@@ -0,0 +1,84 @@
+package org.kitteh.hyrc.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+public class PrometheusExporterTest {
+    @Test
+    public void rendersFamilies() throws Exception {
+        Metrics metrics = new Metrics(true);
+        metrics.counter("hyrc_endpoint_sent_total", "endpoint", "IRC").add(12);
+        metrics.counter("hyrc_endpoint_sent_total", "endpoint", "Say \"hi\"").increment();
+        metrics.gauge("hyrc_queue_depth", () -> 3);
+        Histogram histogram = metrics.histogram("hyrc_dispatch_nanoseconds");
+        histogram.record(1_500_000_000L);
+        PrometheusExporter exporter = new PrometheusExporter(metrics, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        exporter.render();
+        String text = exporter.getRendered();
+        Assert.assertTrue(text, text.contains("# TYPE hyrc_endpoint_sent_total counter\n"));
+        Assert.assertTrue(text, text.contains("hyrc_endpoint_sent_total{endpoint=\"IRC\"} 12\n"));
+        Assert.assertTrue(text, text.contains("hyrc_endpoint_sent_total{endpoint=\"Say \\\"hi\\\"\"} 1\n"));
+        Assert.assertTrue(text, text.contains("# TYPE hyrc_queue_depth gauge\nhyrc_queue_depth 3\n"));
+        Assert.assertTrue(text, text.contains("# TYPE hyrc_dispatch_seconds histogram\nhyrc_dispatch_seconds_bucket{le=\"0.000001\"} 0\n"));
+        Assert.assertTrue(text, text.contains("hyrc_dispatch_seconds_bucket{le=\"1\"} 0\nhyrc_dispatch_seconds_bucket{le=\"2.5\"} 1\n"));
+        Assert.assertTrue(text, text.contains("hyrc_dispatch_seconds_bucket{le=\"10\"} 1\nhyrc_dispatch_seconds_bucket{le=\"+Inf\"} 1\n"));
+        Assert.assertTrue(text, text.contains("hyrc_dispatch_seconds_sum 1.500000000\n"));
+        Assert.assertTrue(text, text.contains("hyrc_dispatch_seconds_count 1\n"));
+        Assert.assertFalse(text, text.contains("quantile"));
+
+        metrics.counter("hyrc_link_messages_total", "source", "A", "target", "B").increment();
+        exporter.render();
+        Assert.assertTrue(exporter.getRendered().contains("hyrc_link_messages_total{source=\"A\",target=\"B\"} 1\n"));
+    }
+
+    @Test
+    public void bucketsAreCumulative() throws Exception {
+        Metrics metrics = new Metrics(true);
+        Histogram histogram = metrics.histogram("hyrc_filter_nanoseconds", "filter", "regex");
+        histogram.record(3_000L);
+        histogram.record(4_000L);
+        histogram.record(40_000_000L);
+        histogram.record(60_000_000_000L);
+        PrometheusExporter exporter = new PrometheusExporter(metrics, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        exporter.render();
+        String text = exporter.getRendered();
+        Assert.assertTrue(text, text.contains("hyrc_filter_seconds_bucket{filter=\"regex\",le=\"0.0000025\"} 0\n"));
+        Assert.assertTrue(text, text.contains("hyrc_filter_seconds_bucket{filter=\"regex\",le=\"0.000005\"} 2\n"));
+        Assert.assertTrue(text, text.contains("hyrc_filter_seconds_bucket{filter=\"regex\",le=\"0.025\"} 2\n"));
+        Assert.assertTrue(text, text.contains("hyrc_filter_seconds_bucket{filter=\"regex\",le=\"0.05\"} 3\n"));
+        Assert.assertTrue(text, text.contains("hyrc_filter_seconds_bucket{filter=\"regex\",le=\"10\"} 3\n"));
+        Assert.assertTrue(text, text.contains("hyrc_filter_seconds_bucket{filter=\"regex\",le=\"+Inf\"} 4\n"));
+        Assert.assertTrue(text, text.contains("hyrc_filter_seconds_count{filter=\"regex\"} 4\n"));
+    }
+
+    @Test
+    public void servesScrapes() throws Exception {
+        Metrics metrics = new Metrics(true);
+        metrics.counter("hyrc_messages_looped_total").add(2);
+        PrometheusExporter exporter = new PrometheusExporter(metrics, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        exporter.start();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + exporter.getPort() + "/metrics").openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            Assert.assertEquals("# TYPE hyrc_messages_looped_total counter\nhyrc_messages_looped_total 2\n", new String(body.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            exporter.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.kitteh.hyrc.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class TracerTest {
+    @Test
+    public void disabledTracesNothing() {
+        Assert.assertFalse(Tracer.DISABLED.isSampling());
+        Assert.assertNull(Tracer.DISABLED.start("Chat"));
+        Assert.assertTrue(Tracer.DISABLED.getTraces().isEmpty());
+    }
+
+    @Test
+    public void keepsMostRecentTraces() {
+        Tracer tracer = new Tracer(1, 4);
+        for (int i = 0; i < 10; i++) {
+            Trace trace = tracer.start("Source" + i);
+            Assert.assertNotNull(trace);
+            trace.stamp("dequeue");
+            trace.stamp("delivered IRC");
+            tracer.complete(trace);
+        }
+        List<Trace> traces = tracer.getTraces();
+        Assert.assertEquals(4, traces.size());
+        Assert.assertEquals("Source6", traces.get(0).getSource());
+        Assert.assertEquals("Source9", traces.get(3).getSource());
+        Trace last = traces.get(3);
+        Assert.assertEquals(3, last.getStageCount());
+        Assert.assertEquals("ingest", last.getStage(0));
+        Assert.assertTrue(last.getStamp(2) >= last.getStamp(0));
+        Assert.assertTrue(last.toString().contains("delivered IRC +"));
+    }
+
+    @Test
+    public void samplesShare() {
+        Tracer tracer = new Tracer(0.1, 16);
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (tracer.start("Chat") != null) {
+                sampled++;
+            }
+        }
+        Assert.assertTrue(String.valueOf(sampled), sampled > 800 && sampled < 1200);
+    }
+}
@@ -0,0 +1,91 @@
+package org.kitteh.hyrc.util;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncLoggerTest {
+    private static class ListLogger implements Logger {
+        private final List<String> lines = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void info(@NonNull String info) {
+            this.lines.add("I " + info);
+        }
+
+        @Override
+        public void warning(@NonNull String warning) {
+            this.lines.add("W " + warning);
+        }
+
+        @Override
+        public void warning(@NonNull String warning, @NonNull Throwable thrown) {
+            this.lines.add("W " + warning + " " + thrown.getMessage());
+        }
+
+        @Override
+        public void severe(@NonNull String severe) {
+            this.lines.add("S " + severe);
+        }
+
+        @Override
+        public void severe(@NonNull String severe, @NonNull Throwable thrown) {
+            this.lines.add("S " + severe + " " + thrown.getMessage());
+        }
+    }
+
+    @Test
+    public void writesInOrder() {
+        ListLogger target = new ListLogger();
+        AsyncLogger logger = new AsyncLogger(target, 64, 0);
+        logger.start();
+        logger.info("one");
+        logger.warning(() -> "two");
+        logger.warning("three", new IllegalStateException("oops"));
+        logger.severe("four");
+        logger.shutdown();
+        Assert.assertEquals(4, target.lines.size());
+        Assert.assertEquals("I one", target.lines.get(0));
+        Assert.assertEquals("W two", target.lines.get(1));
+        Assert.assertEquals("W three oops", target.lines.get(2));
+        Assert.assertEquals("S four", target.lines.get(3));
+    }
+
+    @Test
+    public void summarizesRepeats() {
+        ListLogger target = new ListLogger();
+        AsyncLogger logger = new AsyncLogger(target, 64, 60000);
+        logger.start();
+        for (int i = 0; i < 5; i++) {
+            logger.warning("storm", new IllegalStateException("oops"));
+            logger.info("other");
+        }
+        logger.shutdown();
+        Assert.assertEquals(4, target.lines.size());
+        Assert.assertEquals("W storm oops", target.lines.get(0));
+        Assert.assertEquals("I other", target.lines.get(1));
+        Assert.assertTrue(target.lines.contains("W Repeated 4 times: storm"));
+        Assert.assertTrue(target.lines.contains("I Repeated 4 times: other"));
+    }
+
+    @Test
+    public void dropsWhenFullButNotSevere() {
+        ListLogger target = new ListLogger();
+        AsyncLogger logger = new AsyncLogger(target, 2, 0);
+        AtomicInteger built = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            logger.info(() -> "built " + built.incrementAndGet());
+        }
+        logger.severe("severe");
+        Assert.assertEquals(0, built.get());
+        Assert.assertEquals(1, target.lines.size());
+        logger.start();
+        logger.shutdown();
+        Assert.assertEquals(2, built.get());
+        Assert.assertTrue(target.lines.contains("W 3 log messages dropped, the logging queue was full"));
+    }
+}
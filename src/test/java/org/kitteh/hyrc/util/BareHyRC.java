@@ -0,0 +1,52 @@
+package org.kitteh.hyrc.util;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.hyrc.HyRC;
+import org.kitteh.hyrc.metrics.FlightEvents;
+import org.kitteh.hyrc.metrics.Metrics;
+import org.kitteh.hyrc.metrics.Tracer;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Builds a HyRC without reading a config or starting anything, for
+ * handing to managers under test.
+ */
+public final class BareHyRC {
+    private BareHyRC() {
+    }
+
+    /**
+     * Creates a HyRC with metrics, tracing and flight events off, and no
+     * managers.
+     *
+     * @param dataFolder data folder
+     * @return the HyRC
+     */
+    public static HyRC create(@NonNull File dataFolder) {
+        try {
+            // Skips the constructor, so every field is set here
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+            unsafeField.setAccessible(true);
+            HyRC plugin = (HyRC) unsafeClass.getMethod("allocateInstance", Class.class).invoke(unsafeField.get(null), HyRC.class);
+            set(plugin, "dataFolder", dataFolder);
+            set(plugin, "metrics", Metrics.DISABLED);
+            set(plugin, "tracer", Tracer.DISABLED);
+            set(plugin, "flightEvents", FlightEvents.NOOP);
+            set(plugin, "queueOverflowThreshold", Integer.MAX_VALUE);
+            set(plugin, "shutdownables", new CopyOnWriteArraySet<>());
+            return plugin;
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void set(@NonNull HyRC plugin, @NonNull String name, Object value) throws ReflectiveOperationException {
+        Field field = HyRC.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(plugin, value);
+    }
+}
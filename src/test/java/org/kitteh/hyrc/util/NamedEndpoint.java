@@ -0,0 +1,45 @@
+package org.kitteh.hyrc.util;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.hyrc.endpoint.Endpoint;
+import org.kitteh.hyrc.endpoint.TargetedMessage;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An endpoint with a name, remembering what it receives.
+ */
+public class NamedEndpoint extends Endpoint {
+    private final List<TargetedMessage> received = new CopyOnWriteArrayList<>();
+    private volatile boolean available = true;
+
+    public NamedEndpoint(@NonNull String name) {
+        try {
+            Field field = Endpoint.class.getDeclaredField("name");
+            field.setAccessible(true);
+            field.set(this, name);
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return this.available;
+    }
+
+    public @NonNull List<TargetedMessage> getReceived() {
+        return this.received;
+    }
+
+    @Override
+    protected void receiveMessage(@NonNull TargetedMessage message) {
+        this.received.add(message);
+    }
+}
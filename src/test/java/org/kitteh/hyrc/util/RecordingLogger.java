@@ -0,0 +1,69 @@
+package org.kitteh.hyrc.util;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.kitteh.hyrc.HyRC;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A logger remembering its warnings, installable as HyRC's logger.
+ */
+public class RecordingLogger implements Logger {
+    private final List<String> warnings = new CopyOnWriteArrayList<>();
+
+    /**
+     * Installs a new logger as HyRC's logger.
+     *
+     * @return the installed logger
+     */
+    public static RecordingLogger install() {
+        RecordingLogger logger = new RecordingLogger();
+        set(logger);
+        return logger;
+    }
+
+    /**
+     * Clears HyRC's logger.
+     */
+    public static void uninstall() {
+        set(null);
+    }
+
+    private static void set(Logger logger) {
+        try {
+            Field field = HyRC.class.getDeclaredField("logger");
+            field.setAccessible(true);
+            field.set(null, logger);
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public List<String> getWarnings() {
+        return this.warnings;
+    }
+
+    @Override
+    public void info(@NonNull String info) {
+    }
+
+    @Override
+    public void warning(@NonNull String warning) {
+        this.warnings.add(warning);
+    }
+
+    @Override
+    public void warning(@NonNull String warning, @NonNull Throwable thrown) {
+        this.warnings.add(warning);
+    }
+
+    @Override
+    public void severe(@NonNull String severe) {
+    }
+
+    @Override
+    public void severe(@NonNull String severe, @NonNull Throwable thrown) {
+    }
+}
@@ -0,0 +1,58 @@
+package org.kitteh.hyrc.metrics;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class FlightEventsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsPastThresholds() throws Exception {
+        FlightEvents events = FlightEvents.create(1_000_000L);
+        Assume.assumeTrue(events != FlightEvents.NOOP);
+        Assert.assertNull(events.beginDispatch());
+        Assert.assertFalse(events.isIrcSendEnabled());
+
+        Path file = this.folder.getRoot().toPath().resolve("test.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.kitteh.hyrc.Dispatch").withThreshold(Duration.ZERO);
+            recording.enable("org.kitteh.hyrc.Filter");
+            recording.enable("org.kitteh.hyrc.IrcSend");
+            recording.enable("org.kitteh.hyrc.QueueOverflow");
+            recording.start();
+            events.endDispatch(events.beginDispatch(), "Chat", 2);
+            events.endFilter(events.beginFilter(), "Chat -> IRC", "datamapper", false);
+            Assert.assertTrue(events.isIrcSendEnabled());
+            events.ircSend("Bot", "#channel", 10, 500_000L);
+            events.ircSend("Bot", "#channel", 12, 2_000_000L);
+            events.queueOverflow(1001);
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> recorded = RecordingFile.readAllEvents(file).stream()
+                .filter(event -> event.getEventType().getName().startsWith("org.kitteh.hyrc."))
+                .collect(Collectors.toList());
+        List<String> names = recorded.stream().map(event -> event.getEventType().getName()).collect(Collectors.toList());
+        Assert.assertTrue(names.toString(), names.contains("org.kitteh.hyrc.Dispatch"));
+        Assert.assertFalse("Filter below its 5 ms default threshold", names.contains("org.kitteh.hyrc.Filter"));
+        Assert.assertTrue(names.contains("org.kitteh.hyrc.QueueOverflow"));
+        List<RecordedEvent> sends = recorded.stream().filter(event -> event.getEventType().getName().equals("org.kitteh.hyrc.IrcSend")).collect(Collectors.toList());
+        Assert.assertEquals(1, sends.size());
+        Assert.assertEquals(12, sends.get(0).getInt("bytes"));
+        RecordedEvent dispatch = recorded.stream().filter(event -> event.getEventType().getName().equals("org.kitteh.hyrc.Dispatch")).findFirst().get();
+        Assert.assertEquals("Chat", dispatch.getString("source"));
+        Assert.assertEquals(2, dispatch.getInt("destinations"));
+    }
+}